@@ -129,8 +129,7 @@ public class ApiIntentReceiver extends BroadcastReceiver {
 
 		byte[] line1 = Protocol.getInstance(context).createOled1line(context, null, "");
 		byte[] line2 = Protocol.getInstance(context).createOled1line(context, null, "");
-		byte[] scroll = null;
-		int scrollLen = 0;
+		OledScroller scroll = null;
 		if (intent.hasExtra("oled1")) {
 		    line1 = Protocol.getInstance(context).createOled1line(context, null, intent.getStringExtra("oled1"));
 		} else {
@@ -158,12 +157,11 @@ public class ApiIntentReceiver extends BroadcastReceiver {
 			if (intent.hasExtra("oled2b")) {
 			    oled2b = intent.getStringExtra("oled2b");
 			}
-			scroll = new byte[800];
-			scrollLen = Protocol.getInstance(context).createOled2linesLong(context, oled2b, scroll);
+			scroll = Protocol.getInstance(context).createOled2linesLong(context, oled2b);
 			line2 = Protocol.getInstance(context).createOled2lines(context, oled2a, oled2b);
 		    }
 		}
-		Notification.getInstance().addOledNotification(context, line1, line2, scroll, scrollLen, vibrate, "API oled notification");
+		Notification.getInstance().addOledNotification(context, line1, line2, scroll, vibrate, "API oled notification");
 
 	    } else if (intent.hasExtra("text")) {
 		String title = "Notification";
@@ -0,0 +1,103 @@
+package org.metawatch.manager;
+
+import java.util.Random;
+
+import org.metawatch.manager.MetaWatchService.Preferences;
+
+import android.graphics.Bitmap;
+
+/*
+ * Rough on-device timings for the hot paths, run from the Test screen. Each
+ * benchmark warms up first, then reports the average time per operation.
+ */
+public class Benchmarks {
+
+    private static final int WARMUP = 2000;
+    private static final int ITERATIONS = 20000;
+
+    public static String crc() {
+	byte[] packet = new byte[30];
+	new Random(0).nextBytes(packet);
+
+	int sink = 0;
+	for (int i = 0; i < WARMUP; i++) {
+	    sink += Crc16.compute(packet, 0, packet.length);
+	    sink += Crc16.computeBitwise(packet, 0, packet.length);
+	}
+
+	long start = System.nanoTime();
+	for (int i = 0; i < ITERATIONS; i++)
+	    sink += Crc16.compute(packet, 0, packet.length);
+	long table = System.nanoTime() - start;
+
+	start = System.nanoTime();
+	for (int i = 0; i < ITERATIONS; i++)
+	    sink += Crc16.computeBitwise(packet, 0, packet.length);
+	long bitwise = System.nanoTime() - start;
+
+	return report("CRC of a 30 byte packet", "table", table, "bitwise", bitwise, sink);
+    }
+
+    public static String dither() {
+	StringBuilder result = new StringBuilder();
+	result.append(dither(96));
+	result.append('\n');
+	result.append(dither(320));
+	return result.toString();
+    }
+
+    /*
+     * A photo-like source: a diagonal gradient with some noise on top.
+     */
+    private static String dither(int size) {
+	Random random = new Random(0);
+	int[] source = new int[size * size];
+	for (int y = 0; y < size; y++) {
+	    for (int x = 0; x < size; x++) {
+		int grey = Math.max(0, Math.min(255, ((x + y) * 255) / (2 * size) + random.nextInt(48) - 24));
+		source[y * size + x] = 0xff000000 | (grey << 16) | (grey << 8) | grey;
+	    }
+	}
+	Bitmap bitmap = Bitmap.createBitmap(source, size, size, Bitmap.Config.ARGB_8888);
+
+	// Far fewer iterations than the other benchmarks, the old ditherer
+	// takes a good fraction of a second on larger images
+	final int iterations = (size > LcdEncoder.WIDTH) ? 5 : 20;
+	int sink = 0;
+	sink += Ditherer.ditherFloat(bitmap, false).getWidth();
+	sink += Ditherer.dither(bitmap, Ditherer.FLOYD_STEINBERG, false).getWidth();
+
+	long start = System.nanoTime();
+	for (int i = 0; i < iterations; i++)
+	    sink += Ditherer.ditherFloat(bitmap, false).getWidth();
+	long floating = System.nanoTime() - start;
+
+	long[] kernels = new long[3];
+	for (int kernel = 0; kernel < kernels.length; kernel++) {
+	    start = System.nanoTime();
+	    for (int i = 0; i < iterations; i++)
+		sink += Ditherer.dither(bitmap, kernel, false).getWidth();
+	    kernels[kernel] = System.nanoTime() - start;
+	}
+
+	String result = "Dither " + size + "x" + size + ": float " + (floating / iterations / 1000) + "us, Floyd-Steinberg " + (kernels[Ditherer.FLOYD_STEINBERG] / iterations / 1000) + "us, Atkinson " + (kernels[Ditherer.ATKINSON] / iterations / 1000) + "us, Bayer " + (kernels[Ditherer.BAYER] / iterations / 1000) + "us";
+
+	if (size == LcdEncoder.WIDTH) {
+	    start = System.nanoTime();
+	    for (int i = 0; i < iterations; i++)
+		sink += Ditherer.ditherToLcd(bitmap, Ditherer.FLOYD_STEINBERG, false).length;
+	    result += ", straight to LCD " + ((System.nanoTime() - start) / iterations / 1000) + "us";
+	}
+
+	if (Preferences.logging)
+	    Log.d(MetaWatchStatus.TAG, "Benchmarks: " + result + " (" + sink + ")");
+	return result;
+    }
+
+    private static String report(String title, String nameA, long timeA, String nameB, long timeB, int sink) {
+	String result = title + ": " + nameA + " " + (timeA / ITERATIONS) + "ns, " + nameB + " " + (timeB / ITERATIONS) + "ns";
+	if (Preferences.logging)
+	    Log.d(MetaWatchStatus.TAG, "Benchmarks: " + result + " (" + sink + ")");
+	return result;
+    }
+}
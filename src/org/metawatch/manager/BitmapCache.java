@@ -3,9 +3,8 @@ package org.metawatch.manager;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -13,10 +12,15 @@ import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.zip.ZipFile;
 
 import org.metawatch.manager.MetaWatchService.Preferences;
 
@@ -37,10 +41,56 @@ public class BitmapCache {
 	return mInstance;
     }
     
-    public void destroy() {
+    public synchronized void destroy() {
+	if (currentTheme != null)
+	    currentTheme.close();
+	synchronized (decoded) {
+	    decoded.clear();
+	    decodedBytes = 0;
+	}
 	mInstance = null;
     }
     
+    // Theme bitmaps are decoded on first use and dropped again, least
+    // recently used first, once they take up more than this
+    private static final int MAX_DECODED_BYTES = 512 * 1024;
+
+    private final Map<String, Bitmap> decoded = new LinkedHashMap<String, Bitmap>(32, 0.75f, true);
+    private int decodedBytes = 0;
+
+    private Bitmap getDecoded(String key) {
+	synchronized (decoded) {
+	    return decoded.get(key);
+	}
+    }
+
+    private void putDecoded(String key, Bitmap bitmap) {
+	synchronized (decoded) {
+	    Bitmap previous = decoded.remove(key);
+	    if (previous != null)
+		decodedBytes -= byteCount(previous);
+	    decodedBytes += byteCount(bitmap);
+	    decoded.put(key, bitmap);
+
+	    // Only forget them, whoever asked for them may still be drawing
+	    Iterator<Bitmap> it = decoded.values().iterator();
+	    while (decodedBytes > MAX_DECODED_BYTES && decoded.size() > 1) {
+		decodedBytes -= byteCount(it.next());
+		it.remove();
+	    }
+	}
+    }
+
+    private static int byteCount(Bitmap bitmap) {
+	return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /*
+     * A theme zip. Only the list of entries is read up front; bitmaps are
+     * decoded when first asked for, from the 1-bpp cache next to the theme
+     * if it has them (see ThemeConverter) or else from the zip, and kept in
+     * the shared LRU. Properties are small and kept for good.
+     */
     public class ThemeData {
 	public ThemeData(String name) {
 	    themeName = name;
@@ -51,90 +101,141 @@ public class BitmapCache {
 
 	protected HashMap<String, Object> data = new HashMap<String, Object>();
 
-	public Object get(String key) {
-	    return data.containsKey(key) ? data.get(key) : null;
-	}
+	private File file = null;
+	private final HashSet<String> entries = new HashSet<String>();
+	private ZipFile zip = null;
+	private ThemeConverter.Reader converted = null;
 
-	public Bitmap getBitmap(String key) {
-	    Object obj = data.get(key);
-	    return obj instanceof Bitmap ? (Bitmap) obj : null;
+	public Object get(String key) {
+	    Object obj = getProperties(key);
+	    return obj != null ? obj : getBitmap(key);
 	}
 
-	public Properties getProperties(String key) {
-	    Object obj = data.get(key);
-	    return obj instanceof Properties ? (Properties) obj : null;
-	}
+	public synchronized Bitmap getBitmap(String key) {
+	    if (!entries.contains(key) || !isBitmap(key))
+		return null;
 
-	public void readTheme(File themeFile) {
+	    final String cacheKey = themeName + ":" + timeStamp + "/" + key;
+	    Bitmap bitmap = getDecoded(cacheKey);
+	    if (bitmap != null)
+		return bitmap;
 
-	    HashMap<String, Object> newCache = new HashMap<String, Object>();
+	    if (converted != null)
+		bitmap = converted.getBitmap(key);
+	    if (bitmap == null) {
+		byte[] buffer = readEntry(key);
+		if (buffer != null)
+		    bitmap = BitmapFactory.decodeByteArray(buffer, 0, buffer.length);
+	    }
 
-	    FileInputStream fis = null;
-	    ZipInputStream zis = null;
+	    if (bitmap != null) {
+		putDecoded(cacheKey, bitmap);
+	    } else {
+		if (Preferences.logging)
+		    Log.d(MetaWatchStatus.TAG, "Failed to load " + key);
+	    }
+	    return bitmap;
+	}
 
-	    timeStamp = themeFile.lastModified();
+	public synchronized Properties getProperties(String key) {
+	    Object obj = data.get(key);
+	    if (obj instanceof Properties)
+		return (Properties) obj;
+	    if (!entries.contains(key) || !key.toLowerCase().endsWith(".xml"))
+		return null;
 
+	    byte[] buffer = readEntry(key);
+	    if (buffer == null)
+		return null;
 	    try {
+		Properties properties = new Properties();
+		properties.loadFromXML(new ByteArrayInputStream(buffer));
+		data.put(key, properties);
+		return properties;
+	    } catch (IOException e) {
+		return null;
+	    }
+	}
 
-		fis = new FileInputStream(themeFile);
-		zis = new ZipInputStream(fis);
-
-		ZipEntry ze = zis.getNextEntry();
-		while (ze != null) {
-		    String entryName = ze.getName();
+	public synchronized void readTheme(File themeFile) {
+	    close();
+	    entries.clear();
+	    data.clear();
 
-		    final int size = (int) ze.getSize();
+	    file = themeFile;
+	    timeStamp = themeFile.lastModified();
 
-		    // Need to copy into a buffer rather than decoding directly
-		    // from zis
-		    // as BitmapFactory seems unable to read a .bmp file from a
-		    // ZipInputStream :-\
-		    byte[] buffer = new byte[size];
-		    int offset = 0;
-		    int read = 0;
-		    do {
-			read = zis.read(buffer, offset, size - offset);
-			offset += read;
-		    } while (read > 0);
-
-		    if (entryName.toLowerCase().endsWith(".bmp") || entryName.toLowerCase().endsWith(".png")) {
-			Bitmap bitmap = BitmapFactory.decodeByteArray(buffer, 0, size);
-			if (bitmap != null) {
-			    // if (Preferences.logging)
-			    // Log.d(MetaWatchStatus.TAG,
-			    // "Loaded "+ze.getName());
-			    newCache.put(entryName, bitmap);
-			} else {
-			    if (Preferences.logging)
-				Log.d(MetaWatchStatus.TAG, "Failed to load " + ze.getName());
-			}
-		    } else if (entryName.toLowerCase().endsWith(".xml")) {
-			ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(buffer);
-			Properties properties = new Properties();
-			properties.loadFromXML(byteArrayInputStream);
+	    try {
+		zip = new ZipFile(themeFile);
+		Enumeration<? extends ZipEntry> zipEntries = zip.entries();
+		while (zipEntries.hasMoreElements()) {
+		    ZipEntry entry = zipEntries.nextElement();
+		    if (!entry.isDirectory())
+			entries.add(entry.getName());
+		}
+	    } catch (IOException e) {
+		if (Preferences.logging)
+		    Log.d(MetaWatchStatus.TAG, "Failed to open theme " + themeFile);
+		return;
+	    }
 
-			newCache.put(entryName, properties);
-		    }
+	    converted = ThemeConverter.open(themeFile);
+	}
 
-		    zis.closeEntry();
-		    ze = zis.getNextEntry();
+	/*
+	 * Has the 1 bpp cache written if there isn't one yet. Only for the
+	 * theme in use, a quick look at a theme isn't worth decoding all of
+	 * it.
+	 */
+	synchronized void convertLater() {
+	    if (zip != null && converted == null)
+		ThemeConverter.schedule(file);
+	}
 
+	/*
+	 * Lets go of the theme's files, they're opened again if anything
+	 * else is asked for.
+	 */
+	public synchronized void close() {
+	    if (zip != null) {
+		try {
+		    zip.close();
+		} catch (IOException e) {
 		}
+		zip = null;
+	    }
+	    if (converted != null) {
+		converted.close();
+		converted = null;
+	    }
+	}
 
-	    } catch (FileNotFoundException e) {
+	private byte[] readEntry(String key) {
+	    if (file == null)
+		return null;
+	    InputStream in = null;
+	    try {
+		if (zip == null)
+		    zip = new ZipFile(file);
+		ZipEntry entry = zip.getEntry(key);
+		if (entry == null)
+		    return null;
+
+		// Need to copy into a buffer rather than decoding directly
+		// from the zip as BitmapFactory seems unable to read a .bmp
+		// file from an inflater stream :-\
+		in = zip.getInputStream(entry);
+		return readFully(in, entry.getSize());
 	    } catch (IOException e) {
+		return null;
 	    } finally {
-		try {
-		    if (zis != null)
-			zis.close();
-		    if (fis != null)
-			fis.close();
-		} catch (IOException e) {
+		if (in != null) {
+		    try {
+			in.close();
+		    } catch (IOException e) {
+		    }
 		}
 	    }
-
-	    data = newCache;
-
 	}
 
 	public Bitmap getBanner() {
@@ -147,6 +248,24 @@ public class BitmapCache {
 
     }
 
+    static boolean isBitmap(String name) {
+	final String lower = name.toLowerCase();
+	return lower.endsWith(".bmp") || lower.endsWith(".png");
+    }
+
+    /*
+     * Reads in to the end. size is only a hint, zip entries don't always
+     * know theirs.
+     */
+    static byte[] readFully(InputStream in, long size) throws IOException {
+	ByteArrayOutputStream out = new ByteArrayOutputStream(size > 0 ? (int) size : 8192);
+	byte[] buffer = new byte[4096];
+	int read;
+	while ((read = in.read(buffer)) != -1)
+	    out.write(buffer, 0, read);
+	return out.toByteArray();
+    }
+
     private class DefaultTheme extends ThemeData {
 	public DefaultTheme(Context context) {
 	    super("");
@@ -160,27 +279,28 @@ public class BitmapCache {
 	}
 
 	@Override
-	public Bitmap getBitmap(String key) {
-	    Bitmap bitmap = super.getBitmap(key);
+	public synchronized Bitmap getBitmap(String key) {
+	    final String cacheKey = "assets/" + key;
+	    Bitmap bitmap = getDecoded(cacheKey);
 	    if (bitmap != null)
 		return bitmap;
 
 	    bitmap = loadBitmapFromAssets(context, key);
 
 	    if (bitmap != null) {
-		data.put(key, bitmap);
+		putDecoded(cacheKey, bitmap);
 		return bitmap;
 	    }
 	    return null;
 	}
 
 	@Override
-	public Properties getProperties(String key) {
-	    Properties properties = super.getProperties(key);
-	    if (properties != null)
-		return properties;
+	public synchronized Properties getProperties(String key) {
+	    Object obj = data.get(key);
+	    if (obj instanceof Properties)
+		return (Properties) obj;
 
-	    properties = loadPropertiesFromAssets(context, key);
+	    Properties properties = loadPropertiesFromAssets(context, key);
 
 	    if (properties != null) {
 		data.put(key, properties);
@@ -265,8 +385,11 @@ public class BitmapCache {
 
 	File themeFile = getThemeFile(context, Preferences.themeName);
 
-	if (currentTheme == null || Preferences.themeName != currentTheme.themeName || (themeFile.lastModified() != currentTheme.timeStamp)) {
+	if (currentTheme == null || !Preferences.themeName.equals(currentTheme.themeName) || (themeFile.lastModified() != currentTheme.timeStamp)) {
+	    if (currentTheme != null)
+		currentTheme.close();
 	    currentTheme = loadTheme(context, Preferences.themeName, themeFile);
+	    currentTheme.convertLater();
 	}
     }
 
@@ -275,6 +398,10 @@ public class BitmapCache {
 	return internalTheme;
     }
 
+    /*
+     * The theme called themeName, for a quick look at it. close() it when
+     * done.
+     */
     public ThemeData loadTheme(Context context, String themeName) {
 	File themeFile = getThemeFile(context, themeName);
 
@@ -299,9 +426,8 @@ public class BitmapCache {
 
     public void downloadAndInstallTheme(final ThemeContainer themeContainer, final String uri) {
 
-	Thread thread = new Thread("ThemeInstaller") {
+	TaskScheduler.post(TaskScheduler.IO, new Runnable() {
 
-	    @Override
 	    public void run() {
 
 		OutputStream fOut = null;
@@ -363,7 +489,6 @@ public class BitmapCache {
 		    });
 		}
 	    }
-	};
-	thread.start();
+	});
     }
 }
\ No newline at end of file
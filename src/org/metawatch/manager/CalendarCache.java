@@ -0,0 +1,265 @@
+package org.metawatch.manager;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.metawatch.manager.MetaWatchService.Preferences;
+import org.metawatch.manager.Utils.CalendarEntry;
+
+import android.content.Context;
+import android.text.format.DateUtils;
+
+/*
+ * The calendar as seen by CalendarWidget and CalendarApp. A task on the IO
+ * lane keeps the instances from yesterday (or the first of the month) to
+ * the end of next month sorted by start time, reloading them in a single
+ * query when the calendar provider reports a change (see
+ * Monitors.ContentObserverAppointments), when the displayed calendars change
+ * or when the day rolls over. Everyone reading the calendar is answered from
+ * that index in memory; only ranges outside it go back to the provider.
+ */
+public class CalendarCache {
+
+    public interface Listener {
+	// Called with null if the calendar couldn't be read
+	public void onCalendarRead(List<CalendarEntry> entries);
+    }
+
+    // The provider reports changes in bursts while a sync runs
+    private static final long RELOAD_DELAY = 2 * DateUtils.SECOND_IN_MILLIS;
+
+    private static final String RELOAD = "CalendarCache.reload";
+
+    private static final Comparator<CalendarEntry> BY_START = new Comparator<CalendarEntry>() {
+	public int compare(CalendarEntry a, CalendarEntry b) {
+	    return a.startTimestamp < b.startTimestamp ? -1 : (a.startTimestamp == b.startTimestamp ? 0 : 1);
+	}
+    };
+
+    /*
+     * Instances of one window, sorted by start, with the longest duration
+     * so an overlap search knows how far back to look.
+     */
+    private static class Index {
+	final long start;
+	final long end;
+	final String calendars;
+	final List<CalendarEntry> entries;
+	final long[] starts;
+	final long longest;
+
+	Index(long start, long end, String calendars, List<CalendarEntry> unsorted) {
+	    this.start = start;
+	    this.end = end;
+	    this.calendars = calendars;
+
+	    List<CalendarEntry> sorted = new ArrayList<CalendarEntry>(unsorted);
+	    Collections.sort(sorted, BY_START);
+	    entries = Collections.unmodifiableList(sorted);
+
+	    starts = new long[sorted.size()];
+	    long max = 0;
+	    for (int i = 0; i < starts.length; i++) {
+		CalendarEntry entry = sorted.get(i);
+		starts[i] = entry.startTimestamp;
+		max = Math.max(max, entry.endTimestamp - entry.startTimestamp);
+	    }
+	    longest = max;
+	}
+
+	boolean covers(long from, long to, String displayCalendars) {
+	    return from >= start && to <= end && equal(calendars, displayCalendars);
+	}
+
+	List<CalendarEntry> select(long from, long to, boolean singleEvent) {
+	    List<CalendarEntry> result = new ArrayList<CalendarEntry>();
+	    if (singleEvent) {
+		for (int i = firstAtOrAfter(from); i < starts.length && starts[i] <= to; i++) {
+		    if (!entries.get(i).isAllDay) {
+			result.add(entries.get(i));
+			break;
+		    }
+		}
+	    } else {
+		for (int i = firstAtOrAfter(from - longest); i < starts.length && starts[i] <= to; i++) {
+		    if (entries.get(i).endTimestamp >= from)
+			result.add(entries.get(i));
+		}
+	    }
+	    return Collections.unmodifiableList(result);
+	}
+
+	private int firstAtOrAfter(long time) {
+	    int low = 0;
+	    int high = starts.length;
+	    while (low < high) {
+		int mid = (low + high) >>> 1;
+		if (starts[mid] < time)
+		    low = mid + 1;
+		else
+		    high = mid;
+	    }
+	    return low;
+	}
+
+	boolean sameEntries(Index other) {
+	    if (other.entries.size() != entries.size())
+		return false;
+	    for (int i = 0; i < entries.size(); i++) {
+		CalendarEntry a = entries.get(i);
+		CalendarEntry b = other.entries.get(i);
+		if (a.startTimestamp != b.startTimestamp || a.endTimestamp != b.endTimestamp || a.isAllDay != b.isAllDay || !equal(a.title, b.title) || !equal(a.location, b.location))
+		    return false;
+	    }
+	    return true;
+	}
+    }
+
+    private static Context sContext = null;
+    private static volatile Index sIndex = null;
+    // Bumped whenever a reload finds different entries
+    private static volatile int sVersion = 0;
+
+    private CalendarCache() {
+    }
+
+    /*
+     * Instances overlapping startTime to endTime, in start order, if they're
+     * already in memory. With singleEvent only the first timed event starting
+     * after startTime is returned. Returns null, and starts loading, if the
+     * window isn't ready yet.
+     */
+    public static List<CalendarEntry> peek(Context context, long startTime, long endTime, boolean singleEvent) {
+	start(context);
+	Index index = sIndex;
+
+	if (index == null || !equal(index.calendars, Preferences.displayCalendars) || index.start != window(System.currentTimeMillis())[0])
+	    TaskScheduler.post(TaskScheduler.IO, RELOAD, reloader);
+
+	if (index != null && index.covers(startTime, endTime, Preferences.displayCalendars))
+	    return index.select(startTime, endTime, singleEvent);
+	return null;
+    }
+
+    /*
+     * As get(), but on the IO lane, for when peek() came back empty. The
+     * listener is called from there.
+     */
+    public static void read(final Context context, final long startTime, final long endTime, final boolean singleEvent, final Listener listener) {
+	start(context);
+	TaskScheduler.post(TaskScheduler.IO, new Runnable() {
+	    public void run() {
+		listener.onCalendarRead(get(context, startTime, endTime, singleEvent));
+	    }
+	});
+    }
+
+    /*
+     * As peek(), but reads from the provider on the calling thread if the
+     * range isn't in memory. null if the calendar couldn't be read.
+     */
+    public static List<CalendarEntry> get(Context context, long startTime, long endTime, boolean singleEvent) {
+	List<CalendarEntry> entries = peek(context, startTime, endTime, singleEvent);
+	if (entries != null)
+	    return entries;
+
+	List<CalendarEntry> read = Utils.queryCalendar(context, startTime, endTime);
+	if (read == null)
+	    return null;
+	return new Index(startTime, endTime, Preferences.displayCalendars, read).select(startTime, endTime, singleEvent);
+    }
+
+    /*
+     * Changes whenever the entries in memory do, so a reader can tell its
+     * copy is out of date.
+     */
+    public static int version() {
+	return sVersion;
+    }
+
+    /*
+     * The calendar changed, reload the window once things settle. What's in
+     * memory keeps being served until then.
+     */
+    public static synchronized void invalidate() {
+	if (sContext != null) {
+	    TaskScheduler.cancel(TaskScheduler.IO, RELOAD);
+	    TaskScheduler.postDelayed(TaskScheduler.IO, RELOAD, reloader, RELOAD_DELAY);
+	}
+    }
+
+    public static synchronized void destroy() {
+	TaskScheduler.cancel(TaskScheduler.IO, RELOAD);
+	sIndex = null;
+    }
+
+    private static synchronized void start(Context context) {
+	if (sContext == null)
+	    sContext = context.getApplicationContext();
+    }
+
+    private static final Runnable reloader = new Runnable() {
+	public void run() {
+	    reload();
+	}
+    };
+
+    // Runs on the IO lane
+    private static void reload() {
+	final long[] window = window(System.currentTimeMillis());
+	final long start = window[0];
+	final long end = window[1];
+	final String calendars = Preferences.displayCalendars;
+
+	List<CalendarEntry> entries = Utils.queryCalendar(sContext, start, end);
+	if (entries == null)
+	    return;
+
+	Index previous = sIndex;
+	Index index = new Index(start, end, calendars, entries);
+	sIndex = index;
+
+	if (Preferences.logging)
+	    Log.d(MetaWatchStatus.TAG, "CalendarCache.reload(): " + entries.size() + " instances");
+
+	// Let the widgets pick up the new entries
+	if (previous == null || !previous.sameEntries(index)) {
+	    sVersion++;
+	    Idle.getInstance().updateIdle(sContext, true);
+	}
+    }
+
+    /*
+     * From the start of yesterday or of this month, whichever is earlier, to
+     * the start of the month after next. That's enough for the widget's
+     * lookahead and for CalendarApp showing this month.
+     */
+    private static long[] window(long now) {
+	Calendar cal = Calendar.getInstance();
+	cal.setTimeInMillis(now);
+	cal.set(Calendar.HOUR_OF_DAY, 0);
+	cal.set(Calendar.MINUTE, 0);
+	cal.set(Calendar.SECOND, 0);
+	cal.set(Calendar.MILLISECOND, 0);
+	cal.add(Calendar.DAY_OF_MONTH, -1);
+	final long yesterday = cal.getTimeInMillis();
+
+	cal.setTimeInMillis(now);
+	cal.set(Calendar.DAY_OF_MONTH, 1);
+	cal.set(Calendar.HOUR_OF_DAY, 0);
+	cal.set(Calendar.MINUTE, 0);
+	cal.set(Calendar.SECOND, 0);
+	cal.set(Calendar.MILLISECOND, 0);
+	final long month = cal.getTimeInMillis();
+	cal.add(Calendar.MONTH, 2);
+
+	return new long[] { Math.min(yesterday, month), cal.getTimeInMillis() };
+    }
+
+    private static boolean equal(String a, String b) {
+	return a == null ? b == null : a.equals(b);
+    }
+}
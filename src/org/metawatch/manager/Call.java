@@ -75,11 +75,9 @@ public class Call {
 	    int top = 0;
 	    int centre = 48;
 
-	    Bitmap contactImage = Utils.getContactPhotoFromNumber(context, number);
+	    final int iconSize = 70;
+	    Bitmap contactImage = ContactCache.getInstance(context).getPhoto(number, iconSize, Preferences.invertLCD);
 	    if (contactImage != null) {
-		int iconSize = 70;
-		contactImage = Utils.resize(contactImage, iconSize, iconSize);
-		contactImage = Utils.ditherTo1bit(contactImage, Preferences.invertLCD);
 		canvas.drawBitmap(contactImage, (96 - iconSize) / 2, 0, null);
 
 		top = iconSize;
@@ -116,7 +114,7 @@ public class Call {
 	    Protocol.getInstance(context).updateLcdDisplay(MetaWatchService.WatchBuffers.NOTIFICATION);
 	} else {
 	    Bitmap icon = Utils.getBitmap(context, "phone.bmp");
-	    Notification.getInstance().addOledNotification(context, Protocol.getInstance(context).createOled1line(context, icon, "Call from"), Protocol.getInstance(context).createOled1line(context, null, name), null, 0, new VibratePattern(true, 500, 500, 3), "Phonecall");
+	    Notification.getInstance().addOledNotification(context, Protocol.getInstance(context).createOled1line(context, icon, "Call from"), Protocol.getInstance(context).createOled1line(context, null, name), null, new VibratePattern(true, 500, 500, 3), "Phonecall");
 	}
 	if (Preferences.notifyLight)
 	    Protocol.getInstance(context).ledChange(true);
@@ -0,0 +1,184 @@
+package org.metawatch.manager;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.metawatch.manager.MetaWatchService.Preferences;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.graphics.Bitmap;
+import android.provider.ContactsContract;
+import android.telephony.PhoneNumberUtils;
+
+/*
+ * Remembers who a number belongs to, and their photo already scaled and
+ * dithered for the watch, so a call or message from someone we've seen
+ * before doesn't have to query the contacts provider and decode the photo
+ * again. Any change to the contacts empties the cache.
+ */
+public class ContactCache {
+
+    private static final int MAX_ENTRIES = 64;
+
+    private static class Entry {
+	boolean nameLoaded = false;
+	String name = null;
+
+	// Photos are kept for one size and inversion at a time, which is all
+	// a caller ever asks for
+	boolean photoLoaded = false;
+	Bitmap photo = null;
+	int photoSize = 0;
+	boolean photoInverted = false;
+    }
+
+    private static ContactCache mInstance = null;
+
+    private final Context mContext;
+    private final ContentObserver mObserver;
+    // Bumped by clear(), so a lookup that raced with a contacts change
+    // isn't stored
+    private int mGeneration = 0;
+
+    private final Map<String, Entry> mEntries = new LinkedHashMap<String, Entry>(MAX_ENTRIES, 0.75f, true) {
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+	    return size() > MAX_ENTRIES;
+	}
+    };
+
+    public static synchronized ContactCache getInstance(Context context) {
+	if (mInstance == null)
+	    mInstance = new ContactCache(context.getApplicationContext());
+	return mInstance;
+    }
+
+    public static synchronized void destroy() {
+	if (mInstance != null) {
+	    mInstance.mContext.getContentResolver().unregisterContentObserver(mInstance.mObserver);
+	    mInstance = null;
+	}
+    }
+
+    private ContactCache(Context context) {
+	mContext = context;
+	mObserver = new ContentObserver(null) {
+	    @Override
+	    public void onChange(boolean selfChange) {
+		super.onChange(selfChange);
+		if (Preferences.logging)
+		    Log.d(MetaWatchStatus.TAG, "ContactCache: contacts changed, clearing");
+		clear();
+	    }
+	};
+	try {
+	    context.getContentResolver().registerContentObserver(ContactsContract.Contacts.CONTENT_URI, true, mObserver);
+	} catch (Exception x) {
+	}
+    }
+
+    public synchronized void clear() {
+	mEntries.clear();
+	mGeneration++;
+    }
+
+    /*
+     * The contact's display name, or number itself if it isn't a contact.
+     */
+    public String getName(String number) {
+	if (number.equals(""))
+	    return "Private number";
+
+	final String key = key(number);
+	final int generation;
+	synchronized (this) {
+	    Entry entry = mEntries.get(key);
+	    if (entry != null && entry.nameLoaded)
+		return entry.name != null ? entry.name : number;
+	    generation = mGeneration;
+	}
+
+	String name;
+	try {
+	    name = Utils.queryContactName(mContext, number);
+	} catch (IOException e) {
+	    // Not remembered, the next call asks again
+	    if (Preferences.logging)
+		Log.d(MetaWatchStatus.TAG, "ContactCache: " + e.getMessage());
+	    return number;
+	}
+
+	synchronized (this) {
+	    if (generation == mGeneration) {
+		Entry entry = entry(key);
+		entry.nameLoaded = true;
+		entry.name = name;
+	    }
+	}
+	return name != null ? name : number;
+    }
+
+    /*
+     * The contact's photo, size pixels square and dithered to black and
+     * white, or null if there isn't one.
+     */
+    public Bitmap getPhoto(String number, int size, boolean inverted) {
+	if (number.equals(""))
+	    return null;
+
+	final String key = key(number);
+	final int generation;
+	synchronized (this) {
+	    Entry entry = mEntries.get(key);
+	    if (entry != null && entry.photoLoaded && entry.photoSize == size && entry.photoInverted == inverted)
+		return entry.photo;
+	    generation = mGeneration;
+	}
+
+	Bitmap photo;
+	try {
+	    photo = Utils.queryContactPhoto(mContext, number);
+	} catch (IOException e) {
+	    // Not remembered, the next call asks again
+	    if (Preferences.logging)
+		Log.d(MetaWatchStatus.TAG, "ContactCache: " + e.getMessage());
+	    return null;
+	}
+	if (photo != null) {
+	    Bitmap resized = Utils.resize(photo, size, size);
+	    if (resized != photo)
+		photo.recycle();
+	    photo = Ditherer.dither(resized, Ditherer.FLOYD_STEINBERG, inverted);
+	    resized.recycle();
+	}
+
+	synchronized (this) {
+	    if (generation == mGeneration) {
+		Entry entry = entry(key);
+		entry.photoLoaded = true;
+		entry.photo = photo;
+		entry.photoSize = size;
+		entry.photoInverted = inverted;
+	    }
+	}
+	return photo;
+    }
+
+    private Entry entry(String key) {
+	Entry entry = mEntries.get(key);
+	if (entry == null) {
+	    entry = new Entry();
+	    mEntries.put(key, entry);
+	}
+	return entry;
+    }
+
+    private static String key(String number) {
+	String stripped = PhoneNumberUtils.stripSeparators(number);
+	return (stripped != null && stripped.length() > 0) ? stripped : number;
+    }
+}
@@ -0,0 +1,80 @@
+package org.metawatch.manager;
+
+/*
+ * CRC-CCITT as used by the watch protocol: initial value 0xFFFF, polynomial
+ * 0x1021, bits fed least significant first. The result goes on the wire low
+ * byte first.
+ *
+ * Feeding a byte LSB first into an MSB first register is the same as feeding
+ * the bit reversed byte MSB first, so the usual byte-at-a-time table works
+ * once the input is run through REVERSE.
+ */
+public class Crc16 {
+
+    public static final int INITIAL = 0xFFFF;
+
+    private static final int POLYNOMIAL = 0x1021;
+
+    private static final int[] TABLE = new int[256];
+    private static final int[] REVERSE = new int[256];
+
+    static {
+	for (int i = 0; i < 256; i++) {
+	    int crc = i << 8;
+	    for (int bit = 0; bit < 8; bit++) {
+		if ((crc & 0x8000) != 0)
+		    crc = (crc << 1) ^ POLYNOMIAL;
+		else
+		    crc <<= 1;
+	    }
+	    TABLE[i] = crc & 0xFFFF;
+	    REVERSE[i] = Integer.reverse(i) >>> 24;
+	}
+    }
+
+    private Crc16() {
+    }
+
+    public static int compute(byte[] bytes, int offset, int length) {
+	return update(INITIAL, bytes, offset, length);
+    }
+
+    /*
+     * Continues a CRC over more data, start with INITIAL.
+     */
+    public static int update(int crc, byte[] bytes, int offset, int length) {
+	for (int i = offset; i < offset + length; i++)
+	    crc = ((crc << 8) ^ TABLE[((crc >> 8) ^ REVERSE[bytes[i] & 0xFF]) & 0xFF]) & 0xFFFF;
+	return crc;
+    }
+
+    /*
+     * Writes the CRC of packet[0..length) into packet[length] and
+     * packet[length + 1], returning the full packet length.
+     */
+    public static int append(byte[] packet, int length) {
+	final int crc = compute(packet, 0, length);
+	packet[length] = (byte) crc;
+	packet[length + 1] = (byte) (crc >> 8);
+	return length + 2;
+    }
+
+    /*
+     * Original bit at a time implementation, kept as the reference for the
+     * benchmark.
+     */
+    static int computeBitwise(byte[] bytes, int offset, int length) {
+	int crc = INITIAL;
+	for (int j = offset; j < offset + length; j++) {
+	    final int c = bytes[j];
+	    for (int bit = 0; bit < 8; bit++) {
+		boolean c15 = (crc & 0x8000) != 0;
+		boolean in = ((c >> bit) & 1) == 1;
+		crc = (crc << 1) & 0xFFFF;
+		if (c15 ^ in)
+		    crc ^= POLYNOMIAL; // 0001 0000 0010 0001 (0, 5, 12)
+	    }
+	}
+	return crc;
+    }
+}
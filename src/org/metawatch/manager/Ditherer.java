@@ -0,0 +1,189 @@
+package org.metawatch.manager;
+
+import java.util.Arrays;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+
+/*
+ * Reduces images to black and white for the LCD. Works on whole rows of
+ * pixels pulled out with getPixels, in fixed point, keeping only the few rows
+ * of diffused error the kernel needs. The result can go back into a bitmap or
+ * straight into the packed 1-bpp layout used by WriteBuffer.
+ */
+public class Ditherer {
+
+    public static final int FLOYD_STEINBERG = 0;
+    // Only spreads 3/4 of the error, which keeps highlights and shadows
+    // cleaner on small images
+    public static final int ATKINSON = 1;
+    // Ordered dither, no error is carried so it's the fastest
+    public static final int BAYER = 2;
+
+    // Luminance is kept with 16 fractional bits, so 1.0 is pure white
+    private static final int ONE = 1 << 16;
+    private static final int HALF = ONE >> 1;
+    // Error can spill two pixels either side of the current one
+    private static final int PAD = 2;
+
+    private static final int BLACK = 0xff000000;
+    private static final int WHITE = 0xffffffff;
+
+    private static final int[] BAYER_THRESHOLDS = new int[64];
+
+    static {
+	final int[] matrix = { 0, 32, 8, 40, 2, 34, 10, 42, 48, 16, 56, 24, 50, 18, 58, 26, 12, 44, 4, 36, 14, 46, 6, 38, 60, 28, 52, 20, 62, 30, 54, 22, 3, 35, 11, 43, 1, 33, 9, 41, 51, 19, 59, 27, 49, 17, 57, 25, 15, 47, 7, 39, 13, 45, 5, 37, 63, 31, 55, 23, 61, 29, 53, 21 };
+	for (int i = 0; i < 64; i++)
+	    BAYER_THRESHOLDS[i] = ((matrix[i] << 1) + 1) * (ONE / 128);
+    }
+
+    private Ditherer() {
+    }
+
+    public static Bitmap dither(Bitmap input, int kernel, boolean inverted) {
+	final int width = input.getWidth();
+	final int height = input.getHeight();
+
+	int[] pixels = new int[width * height];
+	input.getPixels(pixels, 0, width, 0, 0, width, height);
+	dither(pixels, width, height, kernel, inverted, null);
+
+	Bitmap output = Bitmap.createBitmap(width, height, Config.RGB_565);
+	output.setPixels(pixels, 0, width, 0, 0, width, height);
+	return output;
+    }
+
+    /*
+     * Dithers a 96x96 bitmap straight into an LCD frame, ready for
+     * Protocol.sendLcdBuffer().
+     */
+    public static byte[] ditherToLcd(Bitmap input, int kernel, boolean inverted) {
+	byte[] frame = new byte[LcdEncoder.FRAME_BYTES];
+	dither(LcdEncoder.pixels(input), LcdEncoder.WIDTH, LcdEncoder.HEIGHT, kernel, inverted, frame);
+	return frame;
+    }
+
+    /*
+     * Dithers pixels (ARGB, row major). If packed is null the result is
+     * written back into pixels as black and white, otherwise pixels is left
+     * alone and packed gets (width + 7) / 8 bytes per row, least significant
+     * bit leftmost, set for black.
+     */
+    public static void dither(int[] pixels, int width, int height, int kernel, boolean inverted, byte[] packed) {
+	final int stride = width + 2 * PAD;
+	final int rowBytes = (width + 7) >> 3;
+
+	int[] current = new int[stride];
+	int[] below = new int[stride];
+	int[] below2 = new int[stride];
+
+	for (int y = 0; y < height; y++) {
+	    final int offset = y * width;
+	    final int bayerRow = (y & 7) << 3;
+	    int packedByte = 0;
+
+	    for (int x = 0; x < width; x++) {
+		final int color = pixels[offset + x];
+		final int luminance = ((color >> 16) & 0xFF) * 77 + ((color >> 8) & 0xFF) * 151 + (color & 0xFF) * 28;
+
+		final boolean white;
+		if (kernel == BAYER) {
+		    white = luminance >= BAYER_THRESHOLDS[bayerRow | (x & 7)];
+		} else {
+		    final int e = x + PAD;
+		    final int value = luminance + current[e];
+		    white = value >= HALF;
+		    final int error = white ? value - ONE : value;
+
+		    if (kernel == ATKINSON) {
+			final int eighth = error >> 3;
+			current[e + 1] += eighth;
+			current[e + 2] += eighth;
+			below[e - 1] += eighth;
+			below[e] += eighth;
+			below[e + 1] += eighth;
+			below2[e] += eighth;
+		    } else {
+			current[e + 1] += (error * 7) >> 4;
+			below[e - 1] += (error * 3) >> 4;
+			below[e] += (error * 5) >> 4;
+			below[e + 1] += error >> 4;
+		    }
+		}
+
+		final boolean black = (white == inverted);
+		if (packed == null) {
+		    pixels[offset + x] = black ? BLACK : WHITE;
+		} else {
+		    if (black)
+			packedByte |= 1 << (x & 7);
+		    if ((x & 7) == 7 || x == width - 1) {
+			packed[y * rowBytes + (x >> 3)] = (byte) packedByte;
+			packedByte = 0;
+		    }
+		}
+	    }
+
+	    // Error pushed into the padding falls off the edge, as it should
+	    int[] done = current;
+	    current = below;
+	    below = below2;
+	    below2 = done;
+	    Arrays.fill(below2, 0);
+	}
+    }
+
+    /*
+     * The original floating point Floyd-Steinberg, kept as a reference for
+     * the benchmark.
+     */
+    static Bitmap ditherFloat(Bitmap input, boolean inverted) {
+
+	Bitmap output = input.copy(Config.RGB_565, true);
+
+	double[][] pixels = new double[input.getWidth()][input.getHeight()];
+
+	final int w = input.getWidth();
+	final int h = input.getHeight();
+
+	for (int y = 0; y < h; ++y) {
+	    for (int x = 0; x < w; ++x) {
+		int col = input.getPixel(x, y);
+
+		double R = ((col >> 16) & 0xff) / 256.0;
+		double G = ((col >> 8) & 0xff) / 256.0;
+		double B = (col & 0xff) / 256.0;
+
+		pixels[x][y] = ((0.3 * R) + (0.59 * G) + (0.11 * B));
+	    }
+	}
+
+	for (int y = 0; y < h; ++y) {
+	    for (int x = 0; x < w; ++x) {
+		double oldpixel = pixels[x][y];
+		double newpixel = oldpixel < 0.5 ? 0 : 1;
+
+		pixels[x][y] = newpixel;
+		double quant_error = oldpixel - newpixel;
+		if (x < w - 1)
+		    pixels[x + 1][y] += 7.0 / 16.0 * quant_error;
+		if (x > 0 && y < h - 1)
+		    pixels[x - 1][y + 1] += 3.0 / 16.0 * quant_error;
+		if (y < h - 1)
+		    pixels[x][y + 1] += 5.0 / 16.0 * quant_error;
+		if (x < w - 1 && y < h - 1)
+		    pixels[x + 1][y + 1] += 1.0 / 16.0 * quant_error;
+
+		int col = 0;
+		if (inverted)
+		    col = newpixel > 0.5 ? 0xff000000 : 0xffffffff;
+		else
+		    col = newpixel > 0.5 ? 0xffffffff : 0xff000000;
+		output.setPixel(x, y, col);
+
+	    }
+	}
+
+	return output;
+    }
+}
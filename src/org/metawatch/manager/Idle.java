@@ -29,6 +29,8 @@
 package org.metawatch.manager;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -53,6 +55,8 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Paint.Align;
+import android.graphics.Rect;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 
 public class Idle {
@@ -72,6 +76,42 @@ public class Idle {
     private ArrayList<IdlePage> idlePages = null;
     private Map<String, WidgetData> widgetData = null;
     
+    private final IdleCompositor compositor = new IdleCompositor();
+    private final Rect dirty = new Rect();
+
+    private static final String UPDATE_TASK = "Idle.updateIdle";
+    // No update waits longer than this for a burst to end
+    private static final long UPDATE_MAX_LATENCY = 1000;
+
+    // The update waiting on the render lane, if there is one
+    private final Object updateLock = new Object();
+    private boolean updatePending = false;
+    private boolean updateRefresh = false;
+    private long updateFirstRequest = 0;
+    private Context updateContext = null;
+
+    private static final String PREFETCH_TASK = "Idle.prefetch";
+
+    /*
+     * A widget page drawn and encoded ahead of time, valid for as long as
+     * the page's key (see WidgetPage.frameKey) doesn't change.
+     */
+    private static class Prefetched {
+	final String key;
+	final byte[] frame;
+
+	Prefetched(String key, byte[] frame) {
+	    this.key = key;
+	    this.frame = frame;
+	}
+    }
+
+    // The pages either side of the current one, by page number. Guarded by
+    // this, like the pages themselves
+    private final Map<Integer, Prefetched> prefetched = new HashMap<Integer, Prefetched>();
+    private Bitmap prefetchBitmap = null;
+    private Context prefetchContext = null;
+
     private static Idle mInstance = null;
     
     public static Idle getInstance() {
@@ -81,6 +121,16 @@ public class Idle {
     }
     
     public void destroy() {
+	synchronized (updateLock) {
+	    TaskScheduler.cancel(TaskScheduler.RENDER, UPDATE_TASK);
+	    updatePending = false;
+	    updateContext = null;
+	}
+	TaskScheduler.cancel(TaskScheduler.RENDER, PREFETCH_TASK);
+	synchronized (this) {
+	    prefetched.clear();
+	    prefetchContext = null;
+	}
 	mInstance = null;
     }
     
@@ -103,9 +153,17 @@ public class Idle {
 	private List<WidgetRow> rows;
 	private int pageIndex;
 
+	private final ArrayList<IdleCompositor.Placement> placements = new ArrayList<IdleCompositor.Placement>();
+	private final int[] separators;
+	private int separatorCount = 0;
+	private final int[] rowPositions;
+	private int rowCount = 0;
+
 	public WidgetPage(List<WidgetRow> r, int p) {
 	    rows = r;
 	    pageIndex = p;
+	    separators = new int[r.size() + 1];
+	    rowPositions = new int[r.size()];
 	}
 
 	public void activate(final Context context, int watchType) {
@@ -142,9 +200,114 @@ public class Idle {
 	    Canvas canvas = new Canvas(bitmap);
 	    canvas.drawColor(Color.WHITE);
 
-	    boolean showClock = (pageIndex == 0 || Preferences.clockOnEveryPage);
+	    layout(watchType);
+	    paintBackground(context, canvas, preview, watchType);
+	    for (int i = 0; i < rowCount; i++)
+		rows.get(i).draw(widgetData, canvas, rowPositions[i]);
+	    paintOverlay(canvas);
+
+	    return bitmap;
+	}
+
+	/*
+	 * Draws the page into the compositor's framebuffer, only repainting
+	 * widgets that changed since the page was last drawn.
+	 */
+	public Bitmap compose(final Context context, IdleCompositor compositor, int width, int height, final int watchType) {
+	    layout(watchType);
+
+	    return compositor.compose(width, height, pageKey(watchType).toString(), placements, new IdleCompositor.Painter() {
+		public void paintBackground(Canvas canvas) {
+		    WidgetPage.this.paintBackground(context, canvas, false, watchType);
+		}
+
+		public void paintOverlay(Canvas canvas) {
+		    WidgetPage.this.paintOverlay(canvas);
+		}
+	    });
+	}
+
+	/*
+	 * Everything that decides how the page looks, widgets included. Two
+	 * frames drawn with the same key are identical.
+	 */
+	public String frameKey(int watchType) {
+	    layout(watchType);
+
+	    StringBuilder key = pageKey(watchType);
+	    for (IdleCompositor.Placement placement : placements)
+		key.append('/').append(placement.id).append(':').append(placement.version).append(':').append(placement.x).append(':').append(placement.y).append(':').append(placement.visible);
+	    return key.toString();
+	}
+
+	// What's on the page besides the widgets, after layout()
+	private StringBuilder pageKey(int watchType) {
+	    StringBuilder key = new StringBuilder();
+	    key.append(watchType).append('/').append(pageIndex).append('/').append(MetaWatchService.silentMode());
+	    for (int i = 0; i < separatorCount; i++)
+		key.append('/').append(separators[i]);
+	    return key;
+	}
+
+	private boolean showClock() {
+	    return (pageIndex == 0 || Preferences.clockOnEveryPage);
+	}
+
+	/*
+	 * Works out where every widget and separator on the page goes.
+	 */
+	private void layout(int watchType) {
+	    placements.clear();
+	    separatorCount = 0;
+	    rowCount = 0;
 
-	    if (watchType == WatchType.DIGITAL && preview && showClock) {
+	    if (MetaWatchService.silentMode())
+		return;
+
+	    boolean showClock = showClock();
+
+	    int totalHeight = 0;
+	    for (WidgetRow row : rows) {
+		totalHeight += row.getHeight();
+	    }
+
+	    float padding = 0;
+	    float yPos = 0;
+	    if (watchType == WatchType.DIGITAL && Preferences.alignWidgetRowToBottom) {
+		padding = 0;
+		yPos = (96 - totalHeight);
+	    } else {
+		padding = (watchType == WatchType.DIGITAL) ? (float) (((showClock ? 64 : 96) - totalHeight) / (float) (2 * rows.size())) : 0;
+		yPos = (watchType == WatchType.DIGITAL) ? (showClock ? 30 : 0) + padding : 0;
+	    }
+	    final float space = padding;
+
+	    float widgetRowYPos = yPos;
+	    for (WidgetRow row : rows) {
+		row.place((int) widgetRowYPos, placements);
+		rowPositions[rowCount++] = (int) widgetRowYPos;
+		widgetRowYPos += row.getHeight() + (space * 2);
+	    }
+
+	    float separatorYPos = yPos;
+	    if (watchType == WatchType.DIGITAL && Preferences.displayWidgetRowSeparator) {
+		separatorYPos -= space / 2; // Center the separators between
+					    // rows.
+		if (showClock) {
+		    separators[separatorCount++] = (int) separatorYPos;
+		}
+		int i = 0;
+		for (WidgetRow row : rows) {
+		    if (++i == rows.size())
+			continue;
+		    separatorYPos += row.getHeight() + (space * 2);
+		    separators[separatorCount++] = (int) separatorYPos;
+		}
+	    }
+	}
+
+	private void paintBackground(final Context context, Canvas canvas, boolean preview, int watchType) {
+	    if (watchType == WatchType.DIGITAL && preview && showClock()) {
 		canvas.drawBitmap(Utils.getBitmap(context, "dummy_clock.png"), 0, 0, null);
 	    }
 
@@ -160,48 +323,12 @@ public class Idle {
 		    canvas.drawText("Silent Mode", 48, 64, paint);
 
 		}
-	    } else {
-
-		int totalHeight = 0;
-		for (WidgetRow row : rows) {
-		    totalHeight += row.getHeight();
-		}
-
-		float padding = 0;
-		float yPos = 0;
-		if (watchType == WatchType.DIGITAL && Preferences.alignWidgetRowToBottom) {
-		    padding = 0;
-		    yPos = (96 - totalHeight);
-		} else {
-		    padding = (watchType == WatchType.DIGITAL) ? (float) (((showClock ? 64 : 96) - totalHeight) / (float) (2 * rows.size())) : 0;
-		    yPos = (watchType == WatchType.DIGITAL) ? (showClock ? 30 : 0) + padding : 0;
-		}
-		final float space = padding;
-
-		float widgetRowYPos = yPos;
-		for (WidgetRow row : rows) {
-		    row.draw(widgetData, canvas, (int) widgetRowYPos);
-		    widgetRowYPos += row.getHeight() + (space * 2);
-		}
-
-		float separatorYPos = yPos;
-		if (watchType == WatchType.DIGITAL && Preferences.displayWidgetRowSeparator) {
-		    separatorYPos -= space / 2; // Center the separators between
-						// rows.
-		    if (showClock) {
-			drawLine(canvas, (int) separatorYPos);
-		    }
-		    int i = 0;
-		    for (WidgetRow row : rows) {
-			if (++i == rows.size())
-			    continue;
-			separatorYPos += row.getHeight() + (space * 2);
-			drawLine(canvas, (int) separatorYPos);
-		    }
-		}
 	    }
+	}
 
-	    return bitmap;
+	private void paintOverlay(Canvas canvas) {
+	    for (int i = 0; i < separatorCount; i++)
+		drawLine(canvas, separators[i]);
 	}
 
 	public int screenMode(int watchType) {
@@ -329,6 +456,10 @@ public class Idle {
 
     public void reset(Context context) {
 	toPage(context, 0);
+	compositor.invalidate();
+	synchronized (this) {
+	    prefetched.clear();
+	}
 	if (idlePages != null)
 	    idlePages.clear();
 	idlePages = null;
@@ -395,6 +526,9 @@ public class Idle {
 	    }
 
 	    idlePages = screens;
+	    synchronized (this) {
+		prefetched.clear();
+	    }
 
 	} finally {
 	}
@@ -413,13 +547,15 @@ public class Idle {
     synchronized Bitmap createIdle(Context context, boolean preview, int page) {
 	final int width = (MetaWatchService.watchType == WatchType.DIGITAL) ? 96 : 80;
 	final int height = (MetaWatchService.watchType == WatchType.DIGITAL) ? 96 : 32;
-	Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
 
 	if (idlePages != null && idlePages.size() > page) {
-	    return idlePages.get(page).draw(context, preview, bitmap, MetaWatchService.watchType);
+	    IdlePage idlePage = idlePages.get(page);
+	    if (!preview && idlePage instanceof WidgetPage)
+		return ((WidgetPage) idlePage).compose(context, compositor, width, height, MetaWatchService.watchType);
+	    return idlePage.draw(context, preview, Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565), MetaWatchService.watchType);
 	}
 
-	return bitmap;
+	return Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
     }
 
     public Canvas drawLine(Canvas canvas, int y) {
@@ -465,8 +601,24 @@ public class Idle {
 	    }
 	}
 
-	//Send the Idle screen
-	Protocol.getInstance(context).sendLcdBitmap(createIdle(context), mode);
+	//Send the Idle screen, widget pages only need the rows that were redrawn
+	synchronized (this) {
+	    byte[] frame = takePrefetched();
+	    if (frame != null) {
+		// The compositor's framebuffer still holds whatever it drew
+		// last, the next compose has to start over
+		compositor.invalidate();
+		Protocol.getInstance(context).sendLcdBuffer(frame, mode);
+	    } else {
+		Bitmap bitmap = createIdle(context);
+		if (compositor.isFramebuffer(bitmap)) {
+		    compositor.takeDirty(dirty);
+		    Protocol.getInstance(context).sendLcdBitmap(bitmap, mode, dirty.top, dirty.bottom);
+		} else {
+		    Protocol.getInstance(context).sendLcdBitmap(bitmap, mode);
+		}
+	    }
+	}
 
 	//Update the buffers for the sent Idle screen
 	Protocol.getInstance(context).configureIdleBufferSize(showClock);
@@ -476,10 +628,84 @@ public class Idle {
 	    Log.d(MetaWatchStatus.TAG, "sendLcdIdle: Drawing idle screen on buffer " + mode);
 	Protocol.getInstance(context).updateLcdDisplay(mode);
 
+	schedulePrefetch(context);
+
 	if (Preferences.logging)
 	    Log.d(MetaWatchStatus.TAG, "sendLcdIdle end");	
     }
 
+    /*
+     * The prefetched frame for the current page, if it's still what the page
+     * would draw now.
+     */
+    private synchronized byte[] takePrefetched() {
+	Prefetched entry = prefetched.get(currentPage);
+	if (entry == null || idlePages == null || idlePages.size() <= currentPage || !(idlePages.get(currentPage) instanceof WidgetPage))
+	    return null;
+	if (!entry.key.equals(((WidgetPage) idlePages.get(currentPage)).frameKey(MetaWatchService.watchType)))
+	    return null;
+
+	if (Preferences.logging)
+	    Log.d(MetaWatchStatus.TAG, "sendLcdIdle: using prefetched page " + currentPage);
+	return entry.frame;
+    }
+
+    /*
+     * Once the screen is sent, draws the pages either side of it on the
+     * render lane and keeps them encoded, so flipping to one of them only
+     * has to send the frame.
+     */
+    private void schedulePrefetch(Context context) {
+	if (MetaWatchService.watchType != WatchType.DIGITAL || numPages() < 2)
+	    return;
+	synchronized (this) {
+	    prefetchContext = context.getApplicationContext();
+	}
+	TaskScheduler.post(TaskScheduler.RENDER, PREFETCH_TASK, prefetcher);
+    }
+
+    private final Runnable prefetcher = new Runnable() {
+	public void run() {
+	    prefetch();
+	}
+    };
+
+    // Runs on the render lane
+    private synchronized void prefetch() {
+	if (prefetchContext == null || idlePages == null || MetaWatchService.watchType != WatchType.DIGITAL)
+	    return;
+
+	final int pages = idlePages.size();
+	final int next = (currentPage + 1) % pages;
+	final int previous = (currentPage + pages - 1) % pages;
+
+	// Nothing else is worth keeping
+	prefetched.keySet().retainAll(Arrays.asList(next, previous));
+
+	prefetch(next);
+	if (previous != next)
+	    prefetch(previous);
+    }
+
+    private void prefetch(int page) {
+	if (page == currentPage || !(idlePages.get(page) instanceof WidgetPage))
+	    return;
+
+	WidgetPage widgetPage = (WidgetPage) idlePages.get(page);
+	final String key = widgetPage.frameKey(WatchType.DIGITAL);
+	Prefetched entry = prefetched.get(page);
+	if (entry != null && entry.key.equals(key))
+	    return;
+
+	if (prefetchBitmap == null)
+	    prefetchBitmap = Bitmap.createBitmap(LcdEncoder.WIDTH, LcdEncoder.HEIGHT, Bitmap.Config.RGB_565);
+	widgetPage.draw(prefetchContext, false, prefetchBitmap, WatchType.DIGITAL);
+	prefetched.put(page, new Prefetched(key, LcdEncoder.encode(LcdEncoder.pixels(prefetchBitmap), new byte[LcdEncoder.FRAME_BYTES])));
+
+	if (Preferences.logging)
+	    Log.d(MetaWatchStatus.TAG, "Idle.prefetch(): page " + page);
+    }
+
     public void toIdle(Context context) {
 	if (Preferences.logging)
 	    Log.d(MetaWatchStatus.TAG, "Idle.toIdle()");
@@ -526,7 +752,66 @@ public class Idle {
 	Protocol.getInstance(context).enableButton(1, 2, TOGGLE_SILENT, MetaWatchService.WatchBuffers.IDLE);
     }
 
+    /*
+     * Asks for the idle screen to be redrawn and sent. Requests are merged
+     * and sent from the render lane once none have come in for
+     * Preferences.idleUpdateWindow ms, so a burst of widget updates only
+     * reaches the watch once. A request never waits more than
+     * UPDATE_MAX_LATENCY.
+     */
     public void updateIdle(final Context context, final boolean refresh) {
+	synchronized (updateLock) {
+	    final long now = SystemClock.uptimeMillis();
+	    if (!updatePending) {
+		updatePending = true;
+		updateRefresh = refresh;
+		updateFirstRequest = now;
+	    } else {
+		updateRefresh |= refresh;
+	    }
+	    updateContext = context.getApplicationContext();
+
+	    final long window = Math.max(0, Preferences.idleUpdateWindow);
+	    final long due = Math.min(now + window, updateFirstRequest + Math.max(window, UPDATE_MAX_LATENCY));
+	    TaskScheduler.cancel(TaskScheduler.RENDER, UPDATE_TASK);
+	    TaskScheduler.postDelayed(TaskScheduler.RENDER, UPDATE_TASK, updateRunner, due - now);
+	}
+    }
+
+    /*
+     * Redraws and sends the idle screen straight away, taking any waiting
+     * update with it. For changes the user is looking at, like pressing a
+     * button or leaving a notification.
+     */
+    public void updateIdleNow(final Context context, boolean refresh) {
+	synchronized (updateLock) {
+	    if (updatePending) {
+		TaskScheduler.cancel(TaskScheduler.RENDER, UPDATE_TASK);
+		refresh |= updateRefresh;
+		updatePending = false;
+		updateContext = null;
+	    }
+	}
+	sendIdle(context, refresh);
+    }
+
+    private final Runnable updateRunner = new Runnable() {
+	public void run() {
+	    final Context context;
+	    final boolean refresh;
+	    synchronized (updateLock) {
+		if (!updatePending)
+		    return;
+		context = updateContext;
+		refresh = updateRefresh;
+		updatePending = false;
+		updateContext = null;
+	    }
+	    sendIdle(context, refresh);
+	}
+    };
+
+    private void sendIdle(final Context context, final boolean refresh) {
 	if (!MetaWatchService.mIsRunning || MetaWatchService.watchType == MetaWatchService.WatchType.UNKNOWN || MetaWatchService.getWatchMode() != MetaWatchService.WatchModes.IDLE) {
 	    if (Preferences.logging)
 		Log.d(MetaWatchStatus.TAG, "Idle.updateIdle() skipped - yet unknown watch type");
@@ -565,12 +850,8 @@ public class Idle {
 	final int mode = getScreenMode(MetaWatchService.WatchType.ANALOG);
 
 	// Split into top/bottom, and send
-	for (int i = 0; i < 2; ++i) {
-	    Bitmap bitmap = Bitmap.createBitmap(80, 16, Bitmap.Config.RGB_565);
-	    Canvas canvas = new Canvas(bitmap);
-	    canvas.drawBitmap(oledIdle, 0, -(i * 16), null);
-	    Protocol.getInstance(context).sendOledBitmap(bitmap, mode, i);
-	}
+	for (int i = 0; i < 2; ++i)
+	    Protocol.getInstance(context).sendOledBitmap(oledIdle, i * OledEncoder.HEIGHT, mode, i);
 	Protocol.getInstance(context).oledChangeMode(mode);		
     }
 
@@ -0,0 +1,143 @@
+package org.metawatch.manager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.metawatch.manager.MetaWatchService.Preferences;
+import org.metawatch.manager.widgets.InternalWidget.WidgetData;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Rect;
+
+/*
+ * Retained idle screen. Keeps the last frame drawn for the widget pages and
+ * where every widget landed on it. As long as nothing moved, the next frame
+ * only repaints the area covered by widgets whose version changed, and that
+ * area is remembered so the LCD encoder and diff only look at those rows.
+ */
+public class IdleCompositor {
+
+    public static class Placement {
+	public final String id;
+	public final Bitmap bitmap;
+	public final int x;
+	public final int y;
+	public final int version;
+	public final boolean visible;
+
+	public Placement(WidgetData widget, int x, int y, boolean visible) {
+	    this.id = widget.id;
+	    this.bitmap = widget.bitmap;
+	    this.x = x;
+	    this.y = y;
+	    this.version = widget.version;
+	    this.visible = visible;
+	}
+
+	int right() {
+	    return x + bitmap.getWidth();
+	}
+
+	int bottom() {
+	    return y + bitmap.getHeight();
+	}
+
+	boolean samePlace(Placement other) {
+	    return id.equals(other.id) && x == other.x && y == other.y && visible == other.visible && bitmap.getWidth() == other.bitmap.getWidth() && bitmap.getHeight() == other.bitmap.getHeight();
+	}
+    }
+
+    public interface Painter {
+	// Drawn under the widgets
+	public void paintBackground(Canvas canvas);
+
+	// Drawn over the widgets
+	public void paintOverlay(Canvas canvas);
+    }
+
+    private Bitmap framebuffer = null;
+    private Canvas canvas = null;
+    private String drawnKey = null;
+    private List<Placement> drawn = new ArrayList<Placement>();
+    private final Rect dirty = new Rect();
+    private final Rect region = new Rect();
+
+    /*
+     * Brings the framebuffer up to date and returns it. key describes
+     * everything on the page that isn't a widget; when it or the layout
+     * changes the whole frame is redrawn.
+     */
+    public synchronized Bitmap compose(int width, int height, String key, List<Placement> placements, Painter painter) {
+	if (framebuffer == null || framebuffer.getWidth() != width || framebuffer.getHeight() != height) {
+	    framebuffer = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+	    canvas = new Canvas(framebuffer);
+	    drawnKey = null;
+	}
+
+	if (!key.equals(drawnKey) || !sameLayout(placements)) {
+	    region.set(0, 0, width, height);
+	} else {
+	    region.setEmpty();
+	    for (int i = 0; i < placements.size(); i++) {
+		Placement placement = placements.get(i);
+		if (placement.version != drawn.get(i).version && placement.visible)
+		    region.union(placement.x, placement.y, placement.right(), placement.bottom());
+	    }
+	}
+
+	if (!region.isEmpty()) {
+	    // Same as a full redraw, clipped to what changed, so overlapping
+	    // widgets and separators come out exactly as they would otherwise
+	    canvas.save();
+	    canvas.clipRect(region);
+	    canvas.drawColor(Color.WHITE);
+	    painter.paintBackground(canvas);
+	    for (Placement placement : placements) {
+		if (placement.visible)
+		    canvas.drawBitmap(placement.bitmap, placement.x, placement.y, null);
+	    }
+	    painter.paintOverlay(canvas);
+	    canvas.restore();
+
+	    dirty.union(region);
+	    if (Preferences.logging)
+		Log.d(MetaWatchStatus.TAG, "IdleCompositor.compose(): redrew " + region.toShortString());
+	}
+
+	drawnKey = key;
+	drawn = new ArrayList<Placement>(placements);
+
+	return framebuffer;
+    }
+
+    public synchronized boolean isFramebuffer(Bitmap bitmap) {
+	return bitmap != null && bitmap == framebuffer;
+    }
+
+    /*
+     * Copies the area redrawn since the last call into out and clears it.
+     */
+    public synchronized boolean takeDirty(Rect out) {
+	out.set(dirty);
+	if (framebuffer != null && !out.intersect(0, 0, framebuffer.getWidth(), framebuffer.getHeight()))
+	    out.setEmpty();
+	dirty.setEmpty();
+	return !out.isEmpty();
+    }
+
+    public synchronized void invalidate() {
+	drawnKey = null;
+    }
+
+    private boolean sameLayout(List<Placement> placements) {
+	if (placements.size() != drawn.size())
+	    return false;
+	for (int i = 0; i < placements.size(); i++) {
+	    if (!placements.get(i).samePlace(drawn.get(i)))
+		return false;
+	}
+	return true;
+    }
+}
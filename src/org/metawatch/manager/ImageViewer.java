@@ -70,10 +70,11 @@ public class ImageViewer extends Activity {
 	    BitmapFactory.Options options = new BitmapFactory.Options();
 	    options.inSampleSize = 2;
 	    Bitmap scaled = ThumbnailUtils.extractThumbnail(BitmapFactory.decodeStream(getContentResolver().openInputStream(u), null, options), 96, 96, ThumbnailUtils.OPTIONS_RECYCLE_INPUT);
-	    Bitmap dithered = Utils.ditherTo1bit(scaled, Preferences.invertLCD);
+	    // Straight to an LCD frame, there's no need for the intermediate bitmap
+	    byte[] dithered = Ditherer.ditherToLcd(scaled, Ditherer.FLOYD_STEINBERG, Preferences.invertLCD);
 	    scaled.recycle();
 	    
-	    Notification.getInstance().addBitmapNotification(this, dithered, NotificationBuilder.createVibratePatternFromBuzzes(1), Notification.getInstance().getDefaultNotificationTimeout(this), "Image viewer");
+	    Notification.getInstance().addBufferNotification(this, dithered, NotificationBuilder.createVibratePatternFromBuzzes(1), "Image viewer");
 	} catch (FileNotFoundException e) {
 	    e.printStackTrace();
 	}
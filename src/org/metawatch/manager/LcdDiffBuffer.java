@@ -0,0 +1,95 @@
+package org.metawatch.manager;
+
+import java.util.Arrays;
+
+/*
+ * Remembers the last framebuffer sent to each LCD buffer (idle, application,
+ * notification) and works out which rows need to be written again.
+ */
+public class LcdDiffBuffer {
+
+    private static final int BUFFERS = 3;
+
+    private final byte[][] lastSent = new byte[BUFFERS][LcdEncoder.FRAME_BYTES];
+    private final boolean[] valid = new boolean[BUFFERS];
+    // What the baseline was last updated from, see isSource()
+    private final Object[] sources = new Object[BUFFERS];
+    private final int[] dirtyRows = new int[LcdEncoder.HEIGHT];
+    private int dirtyCount = 0;
+    private int skippedRows = 0;
+
+    public synchronized void reset() {
+	Arrays.fill(valid, false);
+    }
+
+    public synchronized void reset(int bufferType) {
+	valid[bufferType & 3] = false;
+    }
+
+    /*
+     * Compares frame against what was last sent to bufferType, records the
+     * changed rows (see getDirtyRows) and stores frame as the new baseline.
+     * Returns the number of rows that changed.
+     */
+    public synchronized int update(byte[] frame, int bufferType) {
+	return update(frame, bufferType, 0, LcdEncoder.HEIGHT, null);
+    }
+
+    /*
+     * As above, but only rows [top, bottom) of frame are looked at, the
+     * others are known to match the baseline. That only holds while the
+     * baseline is valid, so callers check isSource() first.
+     */
+    public synchronized int update(byte[] frame, int bufferType, int top, int bottom, Object source) {
+	final int index = bufferType & 3;
+	final byte[] previous = lastSent[index];
+	final boolean force = !valid[index];
+
+	sources[index] = source;
+	dirtyCount = 0;
+	for (int row = top; row < bottom; row++) {
+	    final int start = row * LcdEncoder.ROW_BYTES;
+	    if (force || !rowEquals(previous, frame, start)) {
+		System.arraycopy(frame, start, previous, start, LcdEncoder.ROW_BYTES);
+		dirtyRows[dirtyCount++] = row;
+	    }
+	}
+	valid[index] = true;
+	skippedRows = LcdEncoder.HEIGHT - dirtyCount;
+
+	return dirtyCount;
+    }
+
+    /*
+     * True if the baseline for bufferType is valid and was last updated
+     * from source.
+     */
+    public synchronized boolean isSource(int bufferType, Object source) {
+	final int index = bufferType & 3;
+	return source != null && valid[index] && sources[index] == source;
+    }
+
+    /*
+     * Row indices found dirty by the last update(), in ascending order. Only
+     * the first getDirtyCount() entries are meaningful.
+     */
+    public int[] getDirtyRows() {
+	return dirtyRows;
+    }
+
+    public int getDirtyCount() {
+	return dirtyCount;
+    }
+
+    public int getSkippedRows() {
+	return skippedRows;
+    }
+
+    private static boolean rowEquals(byte[] a, byte[] b, int start) {
+	for (int i = start; i < start + LcdEncoder.ROW_BYTES; i++) {
+	    if (a[i] != b[i])
+		return false;
+	}
+	return true;
+    }
+}
@@ -0,0 +1,90 @@
+package org.metawatch.manager;
+
+import android.graphics.Bitmap;
+
+/*
+ * Packs 96x96 ARGB pixels into the 1-bpp layout expected by WriteBuffer:
+ * 12 bytes per row, least significant bit is the leftmost pixel.
+ *
+ * The scratch buffers are thread confined, so callers must consume (or copy)
+ * the returned arrays before encoding again on the same thread.
+ */
+public class LcdEncoder {
+
+    public static final int WIDTH = 96;
+    public static final int HEIGHT = 96;
+    public static final int ROW_BYTES = WIDTH / 8;
+    public static final int FRAME_BYTES = ROW_BYTES * HEIGHT;
+
+    // Anything darker than this is drawn on the LCD. Sits just below white so
+    // 565 rounding and scaled bitmaps don't leave stray dots.
+    public static final int WHITE_LUMINANCE = 0xE0;
+
+    private static final ThreadLocal<int[]> sPixels = new ThreadLocal<int[]>() {
+	@Override
+	protected int[] initialValue() {
+	    return new int[WIDTH * HEIGHT];
+	}
+    };
+
+    private static final ThreadLocal<byte[]> sFrame = new ThreadLocal<byte[]>() {
+	@Override
+	protected byte[] initialValue() {
+	    return new byte[FRAME_BYTES];
+	}
+    };
+
+    private LcdEncoder() {
+    }
+
+    public static int[] pixels(Bitmap bitmap) {
+	int[] pixels = sPixels.get();
+	bitmap.getPixels(pixels, 0, WIDTH, 0, 0, WIDTH, HEIGHT);
+	return pixels;
+    }
+
+    public static byte[] encode(Bitmap bitmap) {
+	return encode(pixels(bitmap), sFrame.get());
+    }
+
+    public static byte[] encode(int[] pixels) {
+	return encode(pixels, sFrame.get());
+    }
+
+    /*
+     * Encodes only rows [top, bottom) of bitmap. The rest of the returned
+     * frame is left over from earlier calls and must not be used.
+     */
+    public static byte[] encodeRows(Bitmap bitmap, int top, int bottom) {
+	int[] pixels = sPixels.get();
+	byte[] out = sFrame.get();
+	if (bottom > top)
+	    bitmap.getPixels(pixels, top * WIDTH, WIDTH, 0, top, WIDTH, bottom - top);
+	return encodeRows(pixels, out, top, bottom);
+    }
+
+    public static byte[] encode(int[] pixels, byte[] out) {
+	return encodeRows(pixels, out, 0, HEIGHT);
+    }
+
+    public static byte[] encodeRows(int[] pixels, byte[] out, int top, int bottom) {
+	int p = top * WIDTH;
+	for (int i = top * ROW_BYTES; i < bottom * ROW_BYTES; i++) {
+	    int packed = 0;
+	    for (int bit = 0; bit < 8; bit++) {
+		if (isInk(pixels[p++]))
+		    packed |= 1 << bit;
+	    }
+	    out[i] = (byte) packed;
+	}
+	return out;
+    }
+
+    public static boolean isInk(int color) {
+	return luminance(color) < WHITE_LUMINANCE;
+    }
+
+    public static int luminance(int color) {
+	return (((color >> 16) & 0xFF) * 77 + ((color >> 8) & 0xFF) * 150 + (color & 0xFF) * 29) >> 8;
+    }
+}
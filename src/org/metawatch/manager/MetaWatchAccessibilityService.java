@@ -162,7 +162,7 @@ public class MetaWatchAccessibilityService extends AccessibilityService {
 		    packageInfo = pm.getPackageInfo(packageName.toString(), 0);
 		    appName = packageInfo.applicationInfo.loadLabel(pm).toString();
 		    int iconId = notification.icon;
-		    icon = NotificationIconShrinker.shrink(pm.getResourcesForApplication(packageInfo.applicationInfo), iconId, packageName.toString(), NotificationIconShrinker.NOTIFICATION_ICON_SIZE);
+		    icon = NotificationIconShrinker.shrinkCached(this, pm.getResourcesForApplication(packageInfo.applicationInfo), iconId, packageName.toString(), packageInfo.versionCode, NotificationIconShrinker.NOTIFICATION_ICON_SIZE);
 		} catch (NameNotFoundException e) {
 		    /* OK, appName is null */
 		}
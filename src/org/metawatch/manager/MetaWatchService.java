@@ -36,19 +36,18 @@ import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.Stack;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 
 import org.metawatch.manager.Notification.VibratePattern;
 import org.metawatch.manager.actions.ActionManager;
 import org.metawatch.manager.apps.AppManager;
 import org.metawatch.manager.apps.ApplicationBase;
+import org.metawatch.manager.weather.WeatherTransport;
 import org.metawatch.manager.widgets.WidgetManager;
 
 import android.annotation.TargetApi;
@@ -70,6 +69,7 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.v4.app.NotificationCompat;
 
@@ -81,14 +81,13 @@ public class MetaWatchService extends Service {
     private OutputStream outputStream;
 
     private WatchReceiverThread watchReceiverThread;
-    private Handler weatherBatteryPollHandler = new Handler(Looper.getMainLooper());
-    private ScheduledExecutorService watchSenderThread = Executors.newSingleThreadScheduledExecutor();
+    private ExecutorService watchSenderThread = Executors.newSingleThreadExecutor();
     private Future<?> mPendingSend;
 
     // These static fields are not modified outside of this class
     // The only reason sendQueue is static is for the Statistic dialog
     // mPauseQueue is static to block the Notification queue
-    public static volatile LinkedBlockingQueue<byte[]> sendQueue = new LinkedBlockingQueue<byte[]>();
+    public static volatile SendQueue sendQueue = new SendQueue();
     public static ConditionVariable mPauseQueue = new ConditionVariable(true);
 
     private PowerManager powerManager;
@@ -140,6 +139,8 @@ public class MetaWatchService extends Service {
 	if (Preferences.logging)
 	    Log.d(MetaWatchStatus.TAG, "MetaWatchService.onCreate()");
 
+	TaskScheduler.start();
+
 	if (!Preferences.loaded)
 	    loadPreferences(this);
 
@@ -168,8 +169,8 @@ public class MetaWatchService extends Service {
 	watchReceiverThread.setPriority(7);
 	watchReceiverThread.start();
 	
-	watchSenderThread.execute(protocolSender);
-	weatherBatteryPollHandler.post(pollWeatherBattery);
+	mPendingSend = watchSenderThread.submit(protocolSender);
+	TaskScheduler.post(TaskScheduler.IO, POLL_WEATHER_BATTERY, pollWeatherBattery);
 
 	mIsRunning = true;
     }
@@ -190,38 +191,94 @@ public class MetaWatchService extends Service {
 		setSilentMode(!silentMode);
 		break;
 	    case SEND_BYTE_ARRAY:
-		sendQueue.add(intent.getByteArrayExtra(BYTE_ARRAY));
+		byte[] bytes = intent.getByteArrayExtra(BYTE_ARRAY);
+		if (bytes != null)
+		    sendQueue.add(Packet.wrap(bytes));
 		break;
 	    }
 	}
 	return Service.START_STICKY;
     }
 
+    // Keep bursts small so the watch's serial receive buffer isn't overrun
+    private static final int MAX_BURST_BYTES = 128;
+
+    private final PacketPacer packetPacer = new PacketPacer(Preferences.packetWait);
+    private byte[] burstBuffer = new byte[MAX_BURST_BYTES];
+    private int burstLength = 0;
+
+    /*
+     * Sleeps on the queue while there is nothing to send, then writes bursts
+     * paced by packetPacer. A burst that fails to write is kept and retried
+     * once the connection is back.
+     */
     private Runnable protocolSender = new Runnable() {
 	public void run() {
-	    byte[] message = null;
-	    message = sendQueue.peek();
-	    if (message != null) {
-		try {
-		    outputStream.write(message);
-		    outputStream.flush();
-		    sendQueue.remove(message);
-		} catch (Exception e) {
-		    e.printStackTrace();
-		    resetConnection();
-		} finally {
-		}
-	    }
 	    try {
-		mPendingSend = watchSenderThread.schedule(this, Preferences.packetWait, TimeUnit.MILLISECONDS);
-	    } catch(RejectedExecutionException e) {
-		e.printStackTrace();
-		//Shutting down
+		while (true) {
+		    // Blocks while disconnected
+		    mPauseQueue.block();
+
+		    if (burstLength == 0)
+			fillBurst();
+
+		    // Fake watches have no socket, just drop what was queued
+		    if (outputStream == null) {
+			burstLength = 0;
+			continue;
+		    }
+
+		    try {
+			long start = SystemClock.uptimeMillis();
+			outputStream.write(burstBuffer, 0, burstLength);
+			outputStream.flush();
+			burstLength = 0;
+			packetPacer.onWrite(SystemClock.uptimeMillis() - start);
+		    } catch (Exception e) {
+			e.printStackTrace();
+			resetConnection();
+			continue;
+		    }
+
+		    Thread.sleep(packetPacer.getDelay());
+		}
+	    } catch (InterruptedException e) {
+		// Shutting down
 	    }
-	    mPauseQueue.block();
 	}
     };
 
+    /*
+     * Waits for the next packet, then tops the burst up with whatever else is
+     * already queued.
+     */
+    private void fillBurst() throws InterruptedException {
+	Packet packet = sendQueue.take();
+	if (packet.length > burstBuffer.length)
+	    burstBuffer = new byte[packet.length];
+	System.arraycopy(packet.data, 0, burstBuffer, 0, packet.length);
+	burstLength = packet.length;
+	if (Preferences.logPacketDetails)
+	    PacketTrace.record(PacketTrace.TX, packet.data, packet.length);
+	packet.recycle();
+
+	if (!Preferences.burstPackets)
+	    return;
+
+	final int burstSize = packetPacer.getBurstSize();
+	for (int count = 1; count < burstSize; count++) {
+	    packet = sendQueue.peek();
+	    if (packet == null || burstLength + packet.length > MAX_BURST_BYTES)
+		break;
+	    packet = sendQueue.poll();
+	    System.arraycopy(packet.data, 0, burstBuffer, burstLength, packet.length);
+	    burstLength += packet.length;
+	    if (Preferences.logPacketDetails)
+		PacketTrace.record(PacketTrace.TX, packet.data, packet.length);
+	    packet.recycle();
+	}
+    }
+
     @Override
     public void onDestroy() {
 	super.onDestroy();
@@ -247,8 +304,7 @@ public class MetaWatchService extends Service {
 	if (mPauseQueue != null)
 	    mPauseQueue.open();
 
-	if (weatherBatteryPollHandler != null)
-	    weatherBatteryPollHandler.removeCallbacks(pollWeatherBattery);
+	TaskScheduler.cancel(TaskScheduler.IO, POLL_WEATHER_BATTERY);
 
 	cleanup();
 	Idle.getInstance().destroy();
@@ -265,6 +321,10 @@ public class MetaWatchService extends Service {
 	
 	Protocol.getInstance(this).destroy();
 	MediaControl.getInstance().destroy();
+	ContactCache.destroy();
+	CalendarCache.destroy();
+	TaskScheduler.destroy();
+	WeatherTransport.destroy();
 	
 	watchMode.clear();
 	
@@ -390,6 +450,8 @@ public class MetaWatchService extends Service {
 	// The block is released when the connection is reestablished, it blocks the message and notification queues.
 	// If the connection is not reestablished it's also unblocked in the Service onDestroy, along with the queue being cleared and shutdown, etc...
 	mPauseQueue.close();
+	packetPacer.onReconnect();
+	packetDecoder.reset();
 	//The receiving thread handles the connection process and by simply setting the connection state to connect, and cleaning up the streams, the connection process will occur
 	connectionState = ConnectionState.CONNECTING;
 	cleanup();
@@ -478,6 +540,8 @@ public class MetaWatchService extends Service {
 	return result;
     }
 
+    private static final String POLL_WEATHER_BATTERY = "MetaWatchService.pollWeatherBattery";
+
     private Runnable pollWeatherBattery = new Runnable() {
 	@Override
 	public void run() {
@@ -495,10 +559,19 @@ public class MetaWatchService extends Service {
 		if (Preferences.logging)
 		    Log.e(MetaWatchStatus.TAG, "MetaWatchService.start(): bad voltage frequency string '" + voltageFrequencyString + "'");
 	    }
-	    weatherBatteryPollHandler.postDelayed(this, 360000/*Five Minutes*/);
+	    TaskScheduler.postDelayed(TaskScheduler.IO, POLL_WEATHER_BATTERY, this, 360000/*Five Minutes*/);
 	}
     };
 
+    private interface MessageHandler {
+	public void handle(byte[] bytes) throws IOException;
+    }
+
+    private final PacketDecoder packetDecoder = new PacketDecoder();
+    private final byte[] readBuffer = new byte[256];
+    private final byte[] frame = new byte[PacketDecoder.MAX_FRAME];
+    private final EnumMap<eMessageType, MessageHandler> messageHandlers = createMessageHandlers();
+
     private void readFromDevice() {
 
 	if (MetaWatchService.fakeWatch) {
@@ -510,44 +583,56 @@ public class MetaWatchService extends Service {
 	}
 
 	try {
-	    byte[] bytes = new byte[256];
 	    if (Preferences.logging)
 		Log.d(MetaWatchStatus.TAG, "before blocking read");
-	    // Do a proper read loop
-	    int haveread = 0;
-	    int lengthtoread = 4;
-	    while ((lengthtoread - haveread) != 0) {
-		haveread += inputStream.read(bytes, haveread, lengthtoread - haveread);
-		if (haveread > 1) {
-		    lengthtoread = bytes[1];
+	    // Take whatever the socket has, it may hold part of a packet or
+	    // several of them
+	    int read = inputStream.read(readBuffer);
+	    if (read < 0)
+		throw new IOException("end of stream");
+	    packetDecoder.feed(readBuffer, 0, read);
+
+	    int length;
+	    while ((length = packetDecoder.next(frame)) > 0) {
+		if (Preferences.logPacketDetails)
+		    PacketTrace.record(PacketTrace.RX, frame, length);
+		if (Preferences.logging)
+		    Log.d(MetaWatchStatus.TAG, "received: " + PacketDecoder.toHexString(frame, length));
+
+		eMessageType type = eMessageType.fromByte(frame[2]);
+		MessageHandler handler = (type == null) ? null : messageHandlers.get(type);
+		if (handler != null) {
+		    handler.handle(frame);
+		} else {
+		    if (Preferences.logging)
+			Log.d(MetaWatchStatus.TAG, "MetaWatchService.readFromDevice(): Unknown message : 0x" + Integer.toString((frame[2] & 0xff) + 0x100, 16).substring(1) + ", ");
 		}
 	    }
 
-	    // print received
-	    String str = "received: ";
-	    int len = (bytes[1] & 0xFF);
+	} catch (IOException e) {
 	    if (Preferences.logging)
-		Log.d(MetaWatchStatus.TAG, "packet length: " + len);
-
-	    for (int i = 0; i < len; i++) {
-		// str+= Byte.toString(bytes[i]) + ", ";
-		str += "0x" + Integer.toString((bytes[i] & 0xff) + 0x100, 16).substring(1) + ", ";
-	    }
+		Log.d(MetaWatchStatus.TAG, e.toString());
+	    resetConnection();
+	} catch (Exception e) {
 	    if (Preferences.logging)
-		Log.d(MetaWatchStatus.TAG, str);
-	    /*
-	     * switch (bytes[2]) { case eMessageType.GetDeviceTypeResponse.msg: if (Preferences.logging) Log.d(MetaWatchStatus.TAG, "received: device type response"); break; case eMessageType.NvalOperationResponseMsg.msg: if (Preferences.logging) Log.d(MetaWatchStatus.TAG, "received: nval response"); break; case eMessageType.StatusChangeEvent.msg: if (Preferences.logging) Log.d(MetaWatchStatus.TAG, "received: status change event"); break; }
-	     */
-	    /*
-	     * if (bytes[2] == 0x31) { // nval response if (bytes[3] == 0x00) // success if (bytes[4] == 0x00) // set to 12 hour format Protocol.setNvalTime(true); }
-	     */
-	    if (bytes[2] == eMessageType.NvalOperationResponseMsg.msg) {
+		Log.d(MetaWatchStatus.TAG, e.toString());
+	    resetConnection();
+	}
+    }
+
+    private EnumMap<eMessageType, MessageHandler> createMessageHandlers() {
+	EnumMap<eMessageType, MessageHandler> handlers = new EnumMap<eMessageType, MessageHandler>(eMessageType.class);
+
+	handlers.put(eMessageType.NvalOperationResponseMsg, new MessageHandler() {
+	    public void handle(byte[] bytes) {
 		if (Preferences.logging)
 		    Log.d(MetaWatchStatus.TAG, "MetaWatchService.readFromDevice(): NvalOperationResponseMsg");
 		// Do something here?
-	    } else if (bytes[2] == eMessageType.StatusChangeEvent.msg) { // status
-	    // change
-	    // event
+	    }
+	});
+
+	handlers.put(eMessageType.StatusChangeEvent, new MessageHandler() {
+	    public void handle(byte[] bytes) {
 		if (Preferences.logging)
 		    Log.d(MetaWatchStatus.TAG, "MetaWatchService.readFromDevice(): status change");
 		if (bytes[4] == 0x01) {
@@ -578,116 +663,39 @@ public class MetaWatchService extends Service {
 
 		}
 	    }
+	});
 
-	    else if (bytes[2] == eMessageType.ButtonEventMsg.msg) { // button
-		// press
+	handlers.put(eMessageType.ButtonEventMsg, new MessageHandler() {
+	    public void handle(byte[] bytes) {
 		if (Preferences.logging)
 		    Log.d(MetaWatchStatus.TAG, "MetaWatchService.readFromDevice(): button event");
 		pressedButton(bytes[3] & 0xFF); //
 	    }
+	});
 
-	    else if (bytes[2] == eMessageType.GetDeviceTypeResponse.msg) { // device
-		// type
-		if (bytes[4] == 1 || bytes[4] == 4) {
-		    watchType = WatchType.ANALOG;
-		    watchGen = WatchGen.GEN1;
-		    if (Preferences.logging)
-			Log.d(MetaWatchStatus.TAG, "MetaWatchService.readFromDevice(): device type response; analog watch (gen1)");
-
-		    NavigationManagement.processWatchConnection(this);
-		    
-		    SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
-		    boolean displaySplash = sharedPreferences.getBoolean("DisplaySplashScreen", false);
-		    if (displaySplash) {
-			Protocol.getInstance(MetaWatchService.this).sendOledBitmap(Utils.getBitmap(this, "splash_16_0.bmp"), WatchBuffers.NOTIFICATION, 0);
-			Protocol.getInstance(MetaWatchService.this).sendOledBitmap(Utils.getBitmap(this, "splash_16_1.bmp"), WatchBuffers.NOTIFICATION, 1);
-		    }
-
-		} else {
-		    watchType = WatchType.DIGITAL;
-
-		    if (bytes[4] == 5 || bytes[4] == 6) {
-			watchGen = WatchGen.GEN2;
-			if (Preferences.logging)
-			    Log.d(MetaWatchStatus.TAG, "MetaWatchService.readFromDevice(): device type response; Strata/Frame (gen2)");
-		    } else {
-			watchGen = WatchGen.GEN1;
-			if (Preferences.logging)
-			    Log.d(MetaWatchStatus.TAG, "MetaWatchService.readFromDevice(): device type response; digital watch (gen1)");
-		    }
-
-		    Protocol.getInstance(MetaWatchService.this).configureMode();
-		    Protocol.getInstance(MetaWatchService.this).setNvalLcdInvert(Preferences.invertLCD);
-
-		    Protocol.getInstance(MetaWatchService.this).configureIdleBufferSize(true);
-
-		    // Disable built in action for Right top immediate
-		    Protocol.getInstance(MetaWatchService.this).disableButton(0, 0, WatchBuffers.IDLE);
-		    Protocol.getInstance(MetaWatchService.this).disableButton(0, 0, WatchBuffers.APPLICATION);
-		    Protocol.getInstance(MetaWatchService.this).disableButton(0, 0, WatchBuffers.NOTIFICATION);
-
-		    NavigationManagement.processWatchConnection(this);
-		    
-		    SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
-		    boolean displaySplash = sharedPreferences.getBoolean("DisplaySplashScreen", false);
-		    if (displaySplash) {
-			Notification.getInstance().addBitmapNotification(this, Utils.getBitmap(this, "splash.png"), new VibratePattern(false, 0, 0, 0), 10000, "Splash");
-		    }
-
-		    // In 10 seconds update the date and time format
-		    // Well after the entire connection process, and Idle update on the watch
-		    new Handler(Looper.getMainLooper()).postDelayed(new Runnable() {
-			@Override
-			public void run() {
-			    Protocol.getInstance(MetaWatchService.this).setTimeDateFormat(MetaWatchService.this);
-			}
-		    }, 10000);
-		    
-		}
-
-		/* DRM Changed from getRealTimeClock(); */
-		Protocol.getInstance(MetaWatchService.this).setRealTimeClock(MetaWatchService.this);
-
-		SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(MetaWatchService.this);
-
-		/* Notify watch on connection if requested. */
-		boolean notifyOnConnect = sharedPreferences.getBoolean("NotifyWatchOnConnect", false);
-		if (Preferences.logging)
-		    Log.d(MetaWatchStatus.TAG, "MetaWatchService.connect(): notifyOnConnect=" + notifyOnConnect);
-		if (notifyOnConnect) {
-		    NotificationBuilder.createOtherNotification(MetaWatchService.this, null, "MetaWatch", getResources().getString(R.string.connection_connected), 1);
-		}
+	handlers.put(eMessageType.GetDeviceTypeResponse, new MessageHandler() {
+	    public void handle(byte[] bytes) {
+		onDeviceType(bytes);
+	    }
+	});
 
-		Idle.getInstance().activateButtons(this);
+	handlers.put(eMessageType.ReadBatteryVoltageResponse, new MessageHandler() {
+	    public void handle(byte[] bytes) throws IOException {
+		onBatteryVoltage(bytes);
+	    }
+	});
 
-	    } else if (bytes[2] == eMessageType.ReadBatteryVoltageResponse.msg) {
-		boolean powerGood = bytes[4] > 0;
-		boolean batteryCharging = bytes[5] > 0;
-		float batterySense = (((int) bytes[7] << 8) + (int) bytes[6]) / 1000.0f;
-		float batteryAverage = (((int) bytes[9] << 8) + (int) bytes[8]) / 1000.0f;
-		if (Preferences.logging)
-		    Log.d(MetaWatchStatus.TAG, "MetaWatchService.readFromDevice(): received battery voltage response." + " power_good=" + powerGood + " battery_charging=" + batteryCharging + " battery_sense=" + batterySense + " battery_average=" + batteryAverage);
-		String voltageFrequencyString = PreferenceManager.getDefaultSharedPreferences(this).getString("collectWatchVoltage", "0");
-		final int voltageFrequency = Integer.parseInt(voltageFrequencyString);
-		if (voltageFrequency > 0) {
-		    File sdcard = Environment.getExternalStorageDirectory();
-		    File csv = new File(sdcard, "metawatch_voltage.csv");
-		    boolean fileExists = csv.exists();
-		    FileWriter fw = new FileWriter(csv, true);
-		    if (fileExists == false) {
-			fw.write("Date,Sense,Average\n");
-		    }
-		    Date date = new Date();
-		    fw.write("\"" + date.toString() + "\"," + batterySense + "," + batteryAverage + "\n");
-		    fw.flush();
-		    fw.close();
-		}
-	    } else if (bytes[2] == eMessageType.ReadLightSensorResponse.msg) {
+	handlers.put(eMessageType.ReadLightSensorResponse, new MessageHandler() {
+	    public void handle(byte[] bytes) {
 		float lightSense = (((int) bytes[1] << 8) + (int) bytes[0]) / 1000.0f;
 		float lightAverage = (((int) bytes[3] << 8) + (int) bytes[2]) / 1000.0f;
 		if (Preferences.logging)
 		    Log.d(MetaWatchStatus.TAG, "MetaWatchService.readFromDevice(): received light sensor response." + " light_sense=" + lightSense + " light_average=" + lightAverage);
-	    } else if (bytes[2] == eMessageType.GetRealTimeClockResponse.msg) {
+	    }
+	});
+
+	handlers.put(eMessageType.GetRealTimeClockResponse, new MessageHandler() {
+	    public void handle(byte[] bytes) {
 		long timeNow = System.currentTimeMillis();
 		long roundTrip = timeNow - Monitors.getInstance().getRTCTimestamp;
 
@@ -697,20 +705,107 @@ public class MetaWatchService extends Service {
 		Monitors.getInstance().rtcOffset = (int) (roundTrip / 2000);
 
 		Protocol.getInstance(MetaWatchService.this).setRealTimeClock(MetaWatchService.this);
+	    }
+	});
+
+	return handlers;
+    }
+
+    private void onDeviceType(byte[] bytes) {
+	if (bytes[4] == 1 || bytes[4] == 4) {
+	    watchType = WatchType.ANALOG;
+	    watchGen = WatchGen.GEN1;
+	    if (Preferences.logging)
+		Log.d(MetaWatchStatus.TAG, "MetaWatchService.readFromDevice(): device type response; analog watch (gen1)");
+
+	    NavigationManagement.processWatchConnection(this);
+	    
+	    SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
+	    boolean displaySplash = sharedPreferences.getBoolean("DisplaySplashScreen", false);
+	    if (displaySplash) {
+		Protocol.getInstance(MetaWatchService.this).sendOledBitmap(Utils.getBitmap(this, "splash_16_0.bmp"), WatchBuffers.NOTIFICATION, 0);
+		Protocol.getInstance(MetaWatchService.this).sendOledBitmap(Utils.getBitmap(this, "splash_16_1.bmp"), WatchBuffers.NOTIFICATION, 1);
+	    }
+
+	} else {
+	    watchType = WatchType.DIGITAL;
 
+	    if (bytes[4] == 5 || bytes[4] == 6) {
+		watchGen = WatchGen.GEN2;
+		if (Preferences.logging)
+		    Log.d(MetaWatchStatus.TAG, "MetaWatchService.readFromDevice(): device type response; Strata/Frame (gen2)");
 	    } else {
+		watchGen = WatchGen.GEN1;
 		if (Preferences.logging)
-		    Log.d(MetaWatchStatus.TAG, "MetaWatchService.readFromDevice(): Unknown message : 0x" + Integer.toString((bytes[2] & 0xff) + 0x100, 16).substring(1) + ", ");
+		    Log.d(MetaWatchStatus.TAG, "MetaWatchService.readFromDevice(): device type response; digital watch (gen1)");
 	    }
 
-	} catch (IOException e) {
-	    if (Preferences.logging)
-		Log.d(MetaWatchStatus.TAG, e.toString());
-	    resetConnection();
-	} catch (Exception e) {
-	    if (Preferences.logging)
-		Log.d(MetaWatchStatus.TAG, e.toString());
-	    resetConnection();
+	    Protocol.getInstance(MetaWatchService.this).configureMode();
+	    Protocol.getInstance(MetaWatchService.this).setNvalLcdInvert(Preferences.invertLCD);
+
+	    Protocol.getInstance(MetaWatchService.this).configureIdleBufferSize(true);
+
+	    // Disable built in action for Right top immediate
+	    Protocol.getInstance(MetaWatchService.this).disableButton(0, 0, WatchBuffers.IDLE);
+	    Protocol.getInstance(MetaWatchService.this).disableButton(0, 0, WatchBuffers.APPLICATION);
+	    Protocol.getInstance(MetaWatchService.this).disableButton(0, 0, WatchBuffers.NOTIFICATION);
+
+	    NavigationManagement.processWatchConnection(this);
+	    
+	    SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
+	    boolean displaySplash = sharedPreferences.getBoolean("DisplaySplashScreen", false);
+	    if (displaySplash) {
+		Notification.getInstance().addBitmapNotification(this, Utils.getBitmap(this, "splash.png"), new VibratePattern(false, 0, 0, 0), 10000, "Splash");
+	    }
+
+	    // In 10 seconds update the date and time format
+	    // Well after the entire connection process, and Idle update on the watch
+	    TaskScheduler.postDelayed(TaskScheduler.IO, "MetaWatchService.setTimeDateFormat", new Runnable() {
+		@Override
+		public void run() {
+		    Protocol.getInstance(MetaWatchService.this).setTimeDateFormat(MetaWatchService.this);
+		}
+	    }, 10000);
+	    
+	}
+
+	/* DRM Changed from getRealTimeClock(); */
+	Protocol.getInstance(MetaWatchService.this).setRealTimeClock(MetaWatchService.this);
+
+	SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(MetaWatchService.this);
+
+	/* Notify watch on connection if requested. */
+	boolean notifyOnConnect = sharedPreferences.getBoolean("NotifyWatchOnConnect", false);
+	if (Preferences.logging)
+	    Log.d(MetaWatchStatus.TAG, "MetaWatchService.connect(): notifyOnConnect=" + notifyOnConnect);
+	if (notifyOnConnect) {
+	    NotificationBuilder.createOtherNotification(MetaWatchService.this, null, "MetaWatch", getResources().getString(R.string.connection_connected), 1);
+	}
+
+	Idle.getInstance().activateButtons(this);
+    }
+
+    private void onBatteryVoltage(byte[] bytes) throws IOException {
+	boolean powerGood = bytes[4] > 0;
+	boolean batteryCharging = bytes[5] > 0;
+	float batterySense = (((int) bytes[7] << 8) + (int) bytes[6]) / 1000.0f;
+	float batteryAverage = (((int) bytes[9] << 8) + (int) bytes[8]) / 1000.0f;
+	if (Preferences.logging)
+	    Log.d(MetaWatchStatus.TAG, "MetaWatchService.readFromDevice(): received battery voltage response." + " power_good=" + powerGood + " battery_charging=" + batteryCharging + " battery_sense=" + batterySense + " battery_average=" + batteryAverage);
+	String voltageFrequencyString = PreferenceManager.getDefaultSharedPreferences(this).getString("collectWatchVoltage", "0");
+	final int voltageFrequency = Integer.parseInt(voltageFrequencyString);
+	if (voltageFrequency > 0) {
+	    File sdcard = Environment.getExternalStorageDirectory();
+	    File csv = new File(sdcard, "metawatch_voltage.csv");
+	    boolean fileExists = csv.exists();
+	    FileWriter fw = new FileWriter(csv, true);
+	    if (fileExists == false) {
+		fw.write("Date,Sense,Average\n");
+	    }
+	    Date date = new Date();
+	    fw.write("\"" + date.toString() + "\"," + batterySense + "," + batteryAverage + "\n");
+	    fw.flush();
+	    fw.close();
 	}
     }
 
@@ -754,7 +849,7 @@ public class MetaWatchService extends Service {
 			break;
 		    case Idle.IDLE_NEXT_PAGE:
 			Idle.getInstance().nextPage(this);
-			Idle.getInstance().updateIdle(this, false);
+			Idle.getInstance().updateIdleNow(this, false);
 			break;
 		    case Idle.TOGGLE_SILENT:
 			setSilentMode(!silentMode);
@@ -765,7 +860,7 @@ public class MetaWatchService extends Service {
 
 			if (time - lastOledCrownPress < 1000 * 5) {
 			    Idle.getInstance().nextPage(this);
-			    Idle.getInstance().updateIdle(this, true);
+			    Idle.getInstance().updateIdleNow(this, true);
 			}
 			lastOledCrownPress = time;
 			Idle.getInstance().sendOledIdle(this);
@@ -775,7 +870,7 @@ public class MetaWatchService extends Service {
 		    if (MetaWatchService.watchType == WatchType.ANALOG)
 			Idle.getInstance().sendOledIdle(this);
 		    else {
-			Idle.getInstance().updateIdle(this, false);
+			Idle.getInstance().updateIdleNow(this, false);
 		    }
 		}
 		break;
@@ -821,13 +916,16 @@ public class MetaWatchService extends Service {
 	editor.commit();
     }
 
-    public static void sentBytes(Context context, byte[] bytes) {
-	if (!MetaWatchStatus.mShutdownRequested && mIsRunning) {
-	    Intent intent = new Intent(context, MetaWatchService.class);
-	    intent.putExtra(MetaWatchService.COMMAND_KEY, MetaWatchService.SEND_BYTE_ARRAY);
-	    intent.putExtra(MetaWatchService.BYTE_ARRAY, bytes);
-	    context.startService(intent);
-	}
+    /*
+     * Queues a finished packet for the sender thread. The queue is shared, so
+     * there's no need to bounce each frame through startService() and copy it
+     * into an Intent on the way.
+     */
+    public static void sentBytes(Context context, Packet packet) {
+	if (!MetaWatchStatus.mShutdownRequested && mIsRunning)
+	    sendQueue.add(packet);
+	else
+	    packet.recycle();
     }
 
     @Override
@@ -866,7 +964,6 @@ public class MetaWatchService extends Service {
 	    }
 
 	    if (key.contains("Calendar")) {
-		Monitors.getInstance().calendarChangedTimestamp = System.currentTimeMillis();
 		Idle.getInstance().updateIdle(MetaWatchService.this, true);
 	    }
 	}
@@ -876,6 +973,7 @@ public class MetaWatchService extends Service {
 	SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
 
 	Preferences.logging = sharedPreferences.getBoolean("logging", Preferences.logging);
+	Preferences.logPacketDetails = sharedPreferences.getBoolean("logPacketDetails", Preferences.logPacketDetails);
 	Preferences.notifyCall = sharedPreferences.getBoolean("NotifyCall", Preferences.notifyCall);
 	Preferences.notifySMS = sharedPreferences.getBoolean("NotifySMS", Preferences.notifySMS);
 	Preferences.notifyGmail = sharedPreferences.getBoolean("NotifyGmail", Preferences.notifyGmail);
@@ -889,6 +987,7 @@ public class MetaWatchService extends Service {
 	Preferences.watchMacAddress = sharedPreferences.getString("MAC", Preferences.watchMacAddress).trim();
 	Preferences.skipSDP = sharedPreferences.getBoolean("SkipSDP", Preferences.skipSDP);
 	Preferences.insecureBtSocket = sharedPreferences.getBoolean("InsecureBtSocket", Preferences.insecureBtSocket);
+	Preferences.burstPackets = sharedPreferences.getBoolean("BurstPackets", Preferences.burstPackets);
 	Preferences.invertLCD = sharedPreferences.getBoolean("InvertLCD", Preferences.invertLCD);
 	Preferences.notificationCenter = sharedPreferences.getBoolean("notificationCenter", Preferences.notificationCenter);
 	Preferences.notifyLight = sharedPreferences.getBoolean("notifyLight", Preferences.notifyLight);
@@ -938,6 +1037,7 @@ public class MetaWatchService extends Service {
 	    // Preferences.packetWait = Integer.valueOf(sharedPreferences.getString("PacketWait", Integer.toString(Preferences.packetWait)));
 	    Preferences.smsLoopInterval = Integer.valueOf(sharedPreferences.getString("SmsLoopInterval", Integer.toString(Preferences.smsLoopInterval)));
 	    Preferences.calendarLookahead = Integer.valueOf(sharedPreferences.getString("CalendarLookahead", Integer.toString(Preferences.calendarLookahead)));
+	    Preferences.idleUpdateWindow = Integer.valueOf(sharedPreferences.getString("UpdateWindowMs", Integer.toString(Preferences.idleUpdateWindow)));
 
 	} catch (NumberFormatException e) {
 	}
@@ -1110,6 +1210,7 @@ public class MetaWatchService extends Service {
     public static class Preferences {
 	public static boolean loaded = false;
 	public static boolean logging = true;
+	public static boolean logPacketDetails = false;
 
 	public static boolean notifyCall = true;
 	public static boolean notifySMS = true;
@@ -1124,6 +1225,8 @@ public class MetaWatchService extends Service {
 	public static boolean notifyNewVoicemail = true;
 	public static String watchMacAddress = "";
 	public static int packetWait = 30;
+	public static boolean burstPackets = true;
+	public static int idleUpdateWindow = 250;
 	public static boolean skipSDP = false;
 	public static boolean insecureBtSocket = false;
 	public static boolean invertLCD = false;
@@ -281,6 +281,7 @@ public class MetaWatchStatus extends SherlockFragment implements OnClickListener
 	}
 
 	mStatisticsText.append("\n" + res.getString(R.string.status_message_queue) + " " + MetaWatchService.sendQueue.size());
+	mStatisticsText.append("\n" + res.getString(R.string.status_lcd_rows_skipped) + " " + Protocol.getInstance(mContext).getSkippedLcdRows());
 	mStatisticsText.append("\n" + res.getString(R.string.status_notification_queue) + " " + Notification.getInstance().getQueueLength() + "\n");
 
 	if (Preferences.showNotificationQueue) {
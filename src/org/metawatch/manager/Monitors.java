@@ -29,13 +29,13 @@
 package org.metawatch.manager;
 
 import java.util.Hashtable;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
 
 import org.metawatch.manager.MetaWatchService.GeolocationMode;
 import org.metawatch.manager.MetaWatchService.Preferences;
 import org.metawatch.manager.weather.WeatherData;
 import org.metawatch.manager.weather.WeatherEngineFactory;
+import org.metawatch.manager.weather.WeatherSnapshot;
+import org.metawatch.manager.weather.WeatherTransport;
 
 import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
@@ -51,8 +51,6 @@ import android.telephony.TelephonyManager;
 
 public class Monitors {
 
-    private Executor mExecutor = Executors.newSingleThreadExecutor();
-    
     GmailMonitor gmailMonitor;
 
     private ContentObserverMessages contentObserverMessages;
@@ -71,7 +69,6 @@ public class Monitors {
 
     private BroadcastReceiver batteryLevelReceiver;
 
-    public long calendarChangedTimestamp = 0;
     public long getRTCTimestamp = 0;
     public int rtcOffset = 0; // Offset in seconds to add to the RTC to
 				     // allow for latency
@@ -202,6 +199,9 @@ public class Monitors {
 	} catch (Exception x) {
 	}
 
+	// Show the last weather we had until the first update comes in
+	restoreWeatherData(context);
+
 	// temporary one time update
 	updateWeatherData(context);
     }
@@ -258,16 +258,37 @@ public class Monitors {
 	// as often it seems to know, without actually notifying us!
 	RefreshLocation();
 
-	mExecutor.execute(new Runnable() {
+	// Requests made while an update is still waiting are folded into it
+	TaskScheduler.post(TaskScheduler.IO, "Monitors.updateWeatherData", new Runnable() {
+	    @Override
+	    public void run() {
+		final long timeStamp = weatherData.timeStamp;
+		WeatherData data = WeatherEngineFactory.getEngine().update(context, weatherData);
+		weatherData = data;
+		if (data.received && !data.error && data.timeStamp != timeStamp)
+		    WeatherSnapshot.save(context, data);
+	    }
+	});
+    }
+
+    private void restoreWeatherData(final Context context) {
+	TaskScheduler.post(TaskScheduler.IO, "Monitors.restoreWeatherData", new Runnable() {
 	    @Override
 	    public void run() {
-		weatherData = WeatherEngineFactory.getEngine().update(context, weatherData);
+		if (weatherData.received)
+		    return;
+		WeatherData data = WeatherSnapshot.load(context);
+		if (data != null) {
+		    weatherData = data;
+		    Idle.getInstance().updateIdle(context, true);
+		}
 	    }
 	});
     }
 
     // Force the update, by clearing the timestamps
     public void updateWeatherDataForced(final Context context) {
+	WeatherTransport.getInstance(context).expire();
 	weatherData.received = false;
 	weatherData.timeStamp = 0;
 	weatherData.forecastTimeStamp = 0;
@@ -325,8 +346,8 @@ public class Monitors {
 	    // change in calendar database
 	    if (Preferences.logging)
 		Log.d(MetaWatchStatus.TAG, "calendar change");
-	    calendarChangedTimestamp = System.currentTimeMillis();
-	    Idle.getInstance().updateIdle(context, true);
+	    // The idle screen is updated once the calendar has been reread
+	    CalendarCache.invalidate();
 	}
     }
 
@@ -353,12 +374,18 @@ public class Monitors {
 			if (Preferences.logging)
 			    Log.d(MetaWatchStatus.TAG, "location changed " + location.toString());
 
+			final boolean firstLocation = !mLocationData.received;
 			mLocationData.received = true;
 
-			if (!weatherData.received /* && !WeatherData.updating */) {
+			if (firstLocation || !weatherData.received /* && !WeatherData.updating */) {
 			    if (Preferences.logging)
 				Log.d(MetaWatchStatus.TAG, "First location - getting weather");
 
+			    // Until now the engine waited for a location, so any
+			    // weather we have was restored at startup and may be
+			    // for somewhere else, however recent
+			    if (firstLocation)
+				weatherData.timeStamp = 0;
 			    updateWeatherData(context);
 			}
 		    }
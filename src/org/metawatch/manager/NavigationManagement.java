@@ -9,14 +9,14 @@ public class NavigationManagement {
 	switch(MetaWatchService.getWatchMode()) {
 	case APPLICATION:
 	    Application.stopAppMode(context);
-	    Idle.getInstance().updateIdle(context, true);
+	    Idle.getInstance().updateIdleNow(context, true);
 	    break;
 	case CALL:
 	case NOTIFICATION:
 	case IDLE:
 	default:
 	    Idle.getInstance().toIdle(context);
-	    Idle.getInstance().updateIdle(context, true);
+	    Idle.getInstance().updateIdleNow(context, true);
 	    break;
 	}
     }
@@ -41,7 +41,7 @@ public class NavigationManagement {
 	case IDLE:
 	default:
 	    Idle.getInstance().toIdle(context);
-	    Idle.getInstance().updateIdle(context, false);
+	    Idle.getInstance().updateIdleNow(context, false);
 	    break;
 	}
     }
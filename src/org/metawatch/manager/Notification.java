@@ -30,11 +30,7 @@ package org.metawatch.manager;
 
 import java.util.ArrayList;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.ThreadPoolExecutor;
 
 import org.metawatch.manager.MetaWatchService.Preferences;
 import org.metawatch.manager.MetaWatchService.WatchBuffers;
@@ -59,8 +55,7 @@ public class Notification {
     private BlockingQueue<NotificationType> notificationQueue = new LinkedBlockingQueue<NotificationType>();
     private ArrayList<NotificationType> notificationHistory = new ArrayList<NotificationType>();
     private NotificationSender notificationSender;
-    private ThreadPoolExecutor mExecutor = (ThreadPoolExecutor) Executors.newFixedThreadPool(1);
-    private Future<?> mFuture;
+    private static final String SENDER_TASK = "NotificationSender";
     final static byte NOTIFICATION_HISTORY_SIZE = 15;
 
     private static Notification mInstance;
@@ -82,22 +77,30 @@ public class Notification {
     public synchronized void startNotificationSender(Context context) {
 	if (notificationSender == null) {
 	    notificationSender = new NotificationSender(context);
-	    mExecutor.execute(notificationSender);
+	    scheduleNotificationSender();
 	}
     }
 
     public synchronized void stopNotificationSender() {
-	if (mFuture != null)
-	    mFuture.cancel(true);
+	notificationSender = null;
+	TaskScheduler.cancel(TaskScheduler.TRANSPORT, SENDER_TASK);
+	TaskScheduler.interrupt(TaskScheduler.TRANSPORT);
 	if (notificationQueue != null)
 	    notificationQueue.clear();
 	if (notificationHistory != null)
 	    notificationHistory.clear();
-	if (mExecutor != null)
-	    mExecutor.shutdownNow();
 	mInstance = null;
     }
 
+    /*
+     * Notifications are shown one at a time on the transport lane, the
+     * sender takes one per run and queues itself again while there's more.
+     */
+    private synchronized void scheduleNotificationSender() {
+	if (notificationSender != null && (currentNotification != null || !notificationQueue.isEmpty()))
+	    TaskScheduler.post(TaskScheduler.TRANSPORT, SENDER_TASK, notificationSender);
+    }
+
 
     private void addToNotificationQueue(Context context, NotificationType notification, boolean force) {
 	if (MetaWatchService.mIsRunning && MetaWatchService.connectionState != MetaWatchService.ConnectionState.DISCONNECTED && MetaWatchService.connectionState != MetaWatchService.ConnectionState.DISCONNECTING) {
@@ -105,6 +108,7 @@ public class Notification {
 		addToHistory(notification);
 	    } else {
 		notificationQueue.add(notification);
+		scheduleNotificationSender();
 	    }
 	}
     }
@@ -134,7 +138,9 @@ public class Notification {
 		    // notification, show it again.
 		    notification = currentNotification;
 		} else {
-		    notification = notificationQueue.take();
+		    notification = notificationQueue.poll();
+		    if (notification == null)
+			return;
 		    currentNotification = notification;
 		}
 		// If the service has disconnected this will block until a connection is reestablished or the service is shutdown.
@@ -198,9 +204,11 @@ public class Notification {
 			Protocol.getInstance(context).vibrate(notification.vibratePattern.on, notification.vibratePattern.off, notification.vibratePattern.cycles);
 
 		    if (notification.oledScroll != null) {
+			final OledScroller scroll = notification.oledScroll;
+			final int scrollLength = scroll.length();
 
 			if (Preferences.logging)
-			    Log.d(MetaWatchStatus.TAG, "notification.scrollLength = " + notification.scrollLength);
+			    Log.d(MetaWatchStatus.TAG, "notification.scrollLength = " + scrollLength);
 
 			/*
 			 * If requested, let the notification stay on the screen for a few seconds before starting to scroll.
@@ -212,12 +220,15 @@ public class Notification {
 			    Thread.sleep(3000);
 			}
 
-			if (notification.scrollLength >= 240) {
+			if (scrollLength >= 240) {
 
-			    Protocol.getInstance(context).sendOledBufferPart(notification.oledScroll, 0, 240, true, false);
+			    Protocol.getInstance(context).sendOledBufferPart(scroll.chunk(0, 240), 0, 240, true, false);
 			    // wait continue with scroll
 
-			    for (int i = 240; i < notification.scrollLength; i += 80) {
+			    for (int i = 240; i < scrollLength; i += 80) {
+				// Have the next part drawn by the time the watch
+				// asks for it
+				scroll.prepare(i, 80);
 				try {
 				    synchronized (scrollRequest) {
 					scrollRequest.wait(60000);
@@ -226,16 +237,16 @@ public class Notification {
 				    e.printStackTrace();
 				}
 
-				if (i + 80 >= notification.scrollLength)
-				    Protocol.getInstance(context).sendOledBufferPart(notification.oledScroll, i, 80, false, true);
+				if (i + 80 >= scrollLength)
+				    Protocol.getInstance(context).sendOledBufferPart(scroll.chunk(i, 80), 0, 80, false, true);
 				else
-				    Protocol.getInstance(context).sendOledBufferPart(notification.oledScroll, i, 80, false, false);
+				    Protocol.getInstance(context).sendOledBufferPart(scroll.chunk(i, 80), 0, 80, false, false);
 			    }
 
-			} else if (notification.scrollLength > 0) {
+			} else if (scrollLength > 0) {
 
-			    int len = notification.scrollLength / 20 + 1;
-			    Protocol.getInstance(context).sendOledBufferPart(notification.oledScroll, 0, len * 20, true, true);
+			    int len = scrollLength / 20 + 1;
+			    Protocol.getInstance(context).sendOledBufferPart(scroll.chunk(0, len * 20), 0, len * 20, true, true);
 
 			}
 		    }
@@ -265,17 +276,12 @@ public class Notification {
 	    } catch (InterruptedException ie) {
 		/* If we've been interrupted, exit gracefully. */
 		if (Preferences.logging)
-		    Log.d(MetaWatchStatus.TAG, "NotificationSender was interrupted waiting for next notification, exiting.");
+		    Log.d(MetaWatchStatus.TAG, "NotificationSender was interrupted, exiting.");
 	    } catch (Exception e) {
 		if (Preferences.logging)
 		    Log.e(MetaWatchStatus.TAG, "Exception in NotificationSender: " + e.toString());
 	    }
-	    try {
-		mFuture = mExecutor.submit(notificationSender);
-	    } catch(RejectedExecutionException e) {
-		e.printStackTrace();
-		//Shutting down
-	    }
+	    scheduleNotificationSender();
 	}
 
     };
@@ -315,9 +321,8 @@ public class Notification {
 
 	byte[] oledTop;
 	byte[] oledBottom;
-	byte[] oledScroll;
+	OledScroller oledScroll;
 
-	int scrollLength;
 	int timeout;
 
 	VibratePattern vibratePattern;
@@ -408,12 +413,11 @@ public class Notification {
 
     }
 
-    public void addOledNotification(Context context, byte[] top, byte[] bottom, byte[] scroll, int scrollLength, VibratePattern vibratePattern, String description) {
+    public void addOledNotification(Context context, byte[] top, byte[] bottom, OledScroller scroll, VibratePattern vibratePattern, String description) {
 	NotificationType notification = new NotificationType();
 	notification.oledTop = top;
 	notification.oledBottom = bottom;
 	notification.oledScroll = scroll;
-	notification.scrollLength = scrollLength;
 	int notificationTimeout = getDefaultNotificationTimeout(context);
 	notification.timeout = notificationTimeout;
 	if (vibratePattern == null)
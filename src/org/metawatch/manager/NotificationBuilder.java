@@ -82,9 +82,8 @@ public class NotificationBuilder {
 		Notification.getInstance().addTextNotification(context, name + ": " + text, vibratePattern, Notification.getInstance().getDefaultNotificationTimeout(context));
 	    }
 	} else {
-	    byte[] scroll = new byte[800];
-	    int len = Protocol.getInstance(context).createOled2linesLong(context, text, scroll);
-	    Notification.getInstance().addOledNotification(context, Protocol.getInstance(context).createOled1line(context, icon, "SMS from"), Protocol.getInstance(context).createOled2lines(context, name, text), scroll, len, vibratePattern, description);
+	    OledScroller scroll = Protocol.getInstance(context).createOled2linesLong(context, text);
+	    Notification.getInstance().addOledNotification(context, Protocol.getInstance(context).createOled1line(context, icon, "SMS from"), Protocol.getInstance(context).createOled2lines(context, name, text), scroll, vibratePattern, description);
 	}
     }
 
@@ -97,9 +96,8 @@ public class NotificationBuilder {
 	    Bitmap bitmap = smartLines(context, icon, "MMS from", new String[] { name });
 	    Notification.getInstance().addBitmapNotification(context, bitmap, vibratePattern, Notification.getInstance().getDefaultNotificationTimeout(context), description);
 	} else {
-	    byte[] scroll = new byte[800];
-	    int len = Protocol.getInstance(context).createOled2linesLong(context, name, scroll);
-	    Notification.getInstance().addOledNotification(context, Protocol.getInstance(context).createOled1line(context, icon, "MMS from"), Protocol.getInstance(context).createOled2lines(context, name, ""), scroll, len, vibratePattern, description);
+	    OledScroller scroll = Protocol.getInstance(context).createOled2linesLong(context, name);
+	    Notification.getInstance().addOledNotification(context, Protocol.getInstance(context).createOled1line(context, icon, "MMS from"), Protocol.getInstance(context).createOled2lines(context, name, ""), scroll, vibratePattern, description);
 	}
     }
 
@@ -122,9 +120,8 @@ public class NotificationBuilder {
 	    }
 	    Notification.getInstance().addBitmapNotification(context, bitmaps, vibratePattern, Notification.getInstance().getDefaultNotificationTimeout(context), description);
 	} else {
-	    byte[] scroll = new byte[800];
-	    int len = Protocol.getInstance(context).createOled2linesLong(context, text, scroll);
-	    Notification.getInstance().addOledNotification(context, Protocol.getInstance(context).createOled1line(context, icon, title), Protocol.getInstance(context).createOled2lines(context, title, text), scroll, len, vibratePattern, description);
+	    OledScroller scroll = Protocol.getInstance(context).createOled2linesLong(context, text);
+	    Notification.getInstance().addOledNotification(context, Protocol.getInstance(context).createOled1line(context, icon, title), Protocol.getInstance(context).createOled2lines(context, title, text), scroll, vibratePattern, description);
 	}
     }
 
@@ -136,9 +133,8 @@ public class NotificationBuilder {
 	    Bitmap bitmap = smartLines(context, icon, "K9 mail", new String[] { sender, subject, folder });
 	    Notification.getInstance().addBitmapNotification(context, bitmap, vibratePattern, Notification.getInstance().getDefaultNotificationTimeout(context), description);
 	} else {
-	    byte[] scroll = new byte[800];
-	    int len = Protocol.getInstance(context).createOled2linesLong(context, subject, scroll);
-	    Notification.getInstance().addOledNotification(context, Protocol.getInstance(context).createOled1line(context, icon, "K9 mail"), Protocol.getInstance(context).createOled2lines(context, sender, subject), scroll, len, vibratePattern, description);
+	    OledScroller scroll = Protocol.getInstance(context).createOled2linesLong(context, subject);
+	    Notification.getInstance().addOledNotification(context, Protocol.getInstance(context).createOled1line(context, icon, "K9 mail"), Protocol.getInstance(context).createOled2lines(context, sender, subject), scroll, vibratePattern, description);
 	}
     }
 
@@ -151,9 +147,8 @@ public class NotificationBuilder {
 	    Notification.getInstance().addBitmapNotification(context, bitmap, vibratePattern, Notification.getInstance().getDefaultNotificationTimeout(context), description);
 	    Notification.getInstance().addTextNotification(context, snippet, Notification.VibratePattern.NO_VIBRATE, Notification.getInstance().getDefaultNotificationTimeout(context));
 	} else {
-	    byte[] scroll = new byte[800];
-	    int len = Protocol.getInstance(context).createOled2linesLong(context, snippet, scroll);
-	    Notification.getInstance().addOledNotification(context, Protocol.getInstance(context).createOled2lines(context, "Gmail from " + sender, email), Protocol.getInstance(context).createOled2lines(context, subject, snippet), scroll, len, vibratePattern, description);
+	    OledScroller scroll = Protocol.getInstance(context).createOled2linesLong(context, snippet);
+	    Notification.getInstance().addOledNotification(context, Protocol.getInstance(context).createOled2lines(context, "Gmail from " + sender, email), Protocol.getInstance(context).createOled2lines(context, subject, snippet), scroll, vibratePattern, description);
 	}
     }
 
@@ -166,9 +161,8 @@ public class NotificationBuilder {
 	    Bitmap bitmap = smartLines(context, icon, "Gmail", new String[] { messages, recipient });
 	    Notification.getInstance().addBitmapNotification(context, bitmap, vibratePattern, Notification.getInstance().getDefaultNotificationTimeout(context), description);
 	} else {
-	    byte[] scroll = new byte[800];
-	    int len = Protocol.getInstance(context).createOled2linesLong(context, recipient, scroll);
-	    Notification.getInstance().addOledNotification(context, Protocol.getInstance(context).createOled1line(context, icon, " Gmail"), Protocol.getInstance(context).createOled2lines(context, messages, recipient), scroll, len, vibratePattern, description);
+	    OledScroller scroll = Protocol.getInstance(context).createOled2linesLong(context, recipient);
+	    Notification.getInstance().addOledNotification(context, Protocol.getInstance(context).createOled1line(context, icon, " Gmail"), Protocol.getInstance(context).createOled2lines(context, messages, recipient), scroll, vibratePattern, description);
 	}
     }
 
@@ -180,9 +174,8 @@ public class NotificationBuilder {
 	    Bitmap bitmap = smartLines(context, icon, "TouchDown", new String[] { title, ticker });
 	    Notification.getInstance().addBitmapNotification(context, bitmap, vibratePattern, Notification.getInstance().getDefaultNotificationTimeout(context), description);
 	} else {
-	    byte[] scroll = new byte[800];
-	    int len = Protocol.getInstance(context).createOled2linesLong(context, ticker, scroll);
-	    Notification.getInstance().addOledNotification(context, Protocol.getInstance(context).createOled1line(context, icon, "TouchDown"), Protocol.getInstance(context).createOled2lines(context, title, ticker), scroll, len, vibratePattern, description);
+	    OledScroller scroll = Protocol.getInstance(context).createOled2linesLong(context, ticker);
+	    Notification.getInstance().addOledNotification(context, Protocol.getInstance(context).createOled1line(context, icon, "TouchDown"), Protocol.getInstance(context).createOled2lines(context, title, ticker), scroll, vibratePattern, description);
 	}
     }
 
@@ -194,9 +187,8 @@ public class NotificationBuilder {
 	    Bitmap bitmap = smartLines(context, icon, "Calendar", new String[] { text });
 	    Notification.getInstance().addBitmapNotification(context, bitmap, vibratePattern, Notification.getInstance().getDefaultNotificationTimeout(context), description);
 	} else {
-	    byte[] scroll = new byte[800];
-	    int len = Protocol.getInstance(context).createOled2linesLong(context, text, scroll);
-	    Notification.getInstance().addOledNotification(context, Protocol.getInstance(context).createOled1line(context, icon, "  Calendar"), Protocol.getInstance(context).createOled2lines(context, "Event Reminder:", text), scroll, len, vibratePattern, description);
+	    OledScroller scroll = Protocol.getInstance(context).createOled2linesLong(context, text);
+	    Notification.getInstance().addOledNotification(context, Protocol.getInstance(context).createOled1line(context, icon, "  Calendar"), Protocol.getInstance(context).createOled2lines(context, "Event Reminder:", text), scroll, vibratePattern, description);
 	}
     }
 
@@ -222,9 +214,8 @@ public class NotificationBuilder {
 	    Bitmap bitmap = smartLines(context, icon, "Music", new String[] { track, album, artist });
 	    Notification.getInstance().addBitmapNotification(context, bitmap, vibratePattern, Notification.getInstance().getDefaultNotificationTimeout(context), description);
 	} else {
-	    byte[] scroll = new byte[800];
-	    int len = Protocol.getInstance(context).createOled2linesLong(context, track, scroll);
-	    Notification.getInstance().addOledNotification(context, Protocol.getInstance(context).createOled1line(context, icon, artist), Protocol.getInstance(context).createOled2lines(context, album, track), scroll, len, vibratePattern, description);
+	    OledScroller scroll = Protocol.getInstance(context).createOled2linesLong(context, track);
+	    Notification.getInstance().addOledNotification(context, Protocol.getInstance(context).createOled1line(context, icon, artist), Protocol.getInstance(context).createOled2lines(context, album, track), scroll, vibratePattern, description);
 	}
     }
 
@@ -256,9 +247,8 @@ public class NotificationBuilder {
 	    Bitmap bitmap = smartLines(context, icon, appName, new String[] { notificationText });
 	    Notification.getInstance().addBitmapNotification(context, bitmap, vibratePattern, Notification.getInstance().getDefaultNotificationTimeout(context), description);
 	} else {
-	    byte[] scroll = new byte[800];
-	    int len = Protocol.getInstance(context).createOled2linesLong(context, notificationText, scroll);
-	    Notification.getInstance().addOledNotification(context, Protocol.getInstance(context).createOled1line(context, icon, appName), Protocol.getInstance(context).createOled2lines(context, "Notification", notificationText), scroll, len, vibratePattern, description);
+	    OledScroller scroll = Protocol.getInstance(context).createOled2linesLong(context, notificationText);
+	    Notification.getInstance().addOledNotification(context, Protocol.getInstance(context).createOled1line(context, icon, appName), Protocol.getInstance(context).createOled2lines(context, "Notification", notificationText), scroll, vibratePattern, description);
 	}
     }
 
@@ -270,9 +260,8 @@ public class NotificationBuilder {
 	    Bitmap bitmap = smartLines(context, icon, "Winamp", new String[] { track, album, artist });
 	    Notification.getInstance().addBitmapNotification(context, bitmap, vibratePattern, Notification.getInstance().getDefaultNotificationTimeout(context), description);
 	} else {
-	    byte[] scroll = new byte[800];
-	    int len = Protocol.getInstance(context).createOled2linesLong(context, track, scroll);
-	    Notification.getInstance().addOledNotification(context, Protocol.getInstance(context).createOled1line(context, icon, artist), Protocol.getInstance(context).createOled2lines(context, album, track), scroll, len, vibratePattern, description);
+	    OledScroller scroll = Protocol.getInstance(context).createOled2linesLong(context, track);
+	    Notification.getInstance().addOledNotification(context, Protocol.getInstance(context).createOled1line(context, icon, artist), Protocol.getInstance(context).createOled2lines(context, album, track), scroll, vibratePattern, description);
 	}
     }
 
@@ -298,9 +287,8 @@ public class NotificationBuilder {
 	    Bitmap bitmap = smartLines(context, icon, appName, new String[] { event, desc });
 	    Notification.getInstance().addBitmapNotification(context, bitmap, vibratePattern, Notification.getInstance().getDefaultNotificationTimeout(context), appName + ": " + event);
 	} else {
-	    byte[] scroll = new byte[800];
-	    int len = Protocol.getInstance(context).createOled2linesLong(context, desc, scroll);
-	    Notification.getInstance().addOledNotification(context, Protocol.getInstance(context).createOled1line(context, icon, appName), Protocol.getInstance(context).createOled2lines(context, event, desc), scroll, len, vibratePattern, appName + ": " + event);
+	    OledScroller scroll = Protocol.getInstance(context).createOled2linesLong(context, desc);
+	    Notification.getInstance().addOledNotification(context, Protocol.getInstance(context).createOled1line(context, icon, appName), Protocol.getInstance(context).createOled2lines(context, event, desc), scroll, vibratePattern, appName + ": " + event);
 	}
     }
 
@@ -1,7 +1,19 @@
 package org.metawatch.manager;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.metawatch.manager.MetaWatchService.Preferences;
+
+import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.drawable.Drawable;
@@ -10,9 +22,17 @@ public class NotificationIconShrinker {
     static final int ICON_SIZE = 11;
     static final int NOTIFICATION_ICON_SIZE = 16;
 
-    static double luminance(int color) {
-	return Color.alpha(color) * (0.299 * Color.red(color) + 0.587 * Color.green(color) + 0.114 * Color.blue(color));
-    }
+    private static final int MEMORY_CACHE_SIZE = 32;
+    private static final int DISK_CACHE_SIZE = 128;
+
+    private static final Map<String, Bitmap> sCache = new LinkedHashMap<String, Bitmap>(MEMORY_CACHE_SIZE, 0.75f, true) {
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	protected boolean removeEldestEntry(Map.Entry<String, Bitmap> eldest) {
+	    return size() > MEMORY_CACHE_SIZE;
+	}
+    };
 
     /** Used for the initial colour-to-monochrome threshold */
     public static double chooseThreshold(String packageName) {
@@ -39,6 +59,80 @@ public class NotificationIconShrinker {
 	return shrink(d, packageName, maxSize);
     }
 
+    /*
+     * As shrink(), but remembers the result. Icons are kept in memory and
+     * as PNGs in the cache directory, so the same app's icon is only worked
+     * out once rather than for every notification it posts. versionCode is
+     * part of the key so an app update picks up a new icon.
+     */
+    public static Bitmap shrinkCached(Context context, Resources r, int iconId, String packageName, int versionCode, int maxSize) {
+	final String key = packageName + "_" + versionCode + "_" + iconId + "_" + maxSize + (shouldInvert(packageName) ? "_i" : "");
+
+	synchronized (sCache) {
+	    Bitmap icon = sCache.get(key);
+	    if (icon != null)
+		return icon;
+	}
+
+	File file = new File(getCacheDir(context), key + ".png");
+	Bitmap icon = null;
+	if (file.exists()) {
+	    icon = BitmapFactory.decodeFile(file.getPath());
+	    if (icon != null)
+		file.setLastModified(System.currentTimeMillis());
+	}
+
+	if (icon == null) {
+	    icon = shrink(r, iconId, packageName, maxSize);
+	    if (icon == null)
+		return null;
+	    writeToDisk(context, file, icon);
+	}
+
+	synchronized (sCache) {
+	    sCache.put(key, icon);
+	}
+	return icon;
+    }
+
+    private static File getCacheDir(Context context) {
+	File dir = new File(context.getCacheDir(), "notification_icons");
+	if (!dir.exists())
+	    dir.mkdirs();
+	return dir;
+    }
+
+    private static void writeToDisk(Context context, File file, Bitmap icon) {
+	FileOutputStream fos = null;
+	try {
+	    fos = new FileOutputStream(file);
+	    icon.compress(Bitmap.CompressFormat.PNG, 100, fos);
+	} catch (IOException e) {
+	    if (Preferences.logging)
+		Log.d(MetaWatchStatus.TAG, "NotificationIconShrinker: couldn't cache " + file.getName() + ": " + e.getMessage());
+	} finally {
+	    if (fos != null) {
+		try {
+		    fos.close();
+		} catch (IOException e) {
+		}
+	    }
+	}
+
+	// Drop the least recently used icons once there are too many
+	File[] files = file.getParentFile().listFiles();
+	if (files != null && files.length > DISK_CACHE_SIZE) {
+	    Arrays.sort(files, new Comparator<File>() {
+		public int compare(File a, File b) {
+		    long diff = a.lastModified() - b.lastModified();
+		    return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+		}
+	    });
+	    for (int i = 0; i < files.length - DISK_CACHE_SIZE; i++)
+		files[i].delete();
+	}
+    }
+
     public static Bitmap shrink(Drawable d, String packageName, int maxSize) {
 	if (d == null)
 	    return null;
@@ -55,39 +149,51 @@ public class NotificationIconShrinker {
 	d.setBounds(0, 0, iw, ih);
 	d.draw(new Canvas(icon));
 
+	// Everything below works on the pixel array, (left, top) is the
+	// corner of the current crop within it
+	final int stride = iw;
+	int[] pixels = new int[iw * ih];
+	icon.getPixels(pixels, 0, stride, 0, 0, iw, ih);
+	icon.recycle();
+	int left = 0;
+	int top = 0;
+
 	// Find the brightest colour in use
-	double maxLum = 0;
-	iw = icon.getWidth();
-	ih = icon.getHeight();
-	for (int y = 0; y < ih; y++) {
-	    for (int x = 0; x < iw; x++) {
-		maxLum = Math.max(maxLum, luminance(icon.getPixel(x, y)));
-	    }
-	}
+	int maxLum = 0;
+	for (int i = 0; i < pixels.length; i++)
+	    maxLum = Math.max(maxLum, luminance1000(pixels[i]));
 
 	// Threshold to monochrome (for LCD), and create a bounding box
-	double thresholdLum = maxLum * chooseThreshold(packageName);
+	final double thresholdLum = maxLum * chooseThreshold(packageName);
+	final boolean inv = shouldInvert(packageName);
+	final int ink = inv ? Color.WHITE : Color.BLACK;
+	final int paper = inv ? Color.BLACK : Color.WHITE;
 	int minX = iw, maxX = 0, minY = ih, maxY = 0;
-	boolean inv = shouldInvert(packageName);
 	for (int y = 0; y < ih; y++) {
+	    final int row = y * stride;
 	    for (int x = 0; x < iw; x++) {
-		if (luminance(icon.getPixel(x, y)) >= thresholdLum) {
-		    minX = Math.min(minX, x);
-		    maxX = Math.max(maxX, x);
-		    minY = Math.min(minY, y);
-		    maxY = Math.max(maxY, y);
-		    icon.setPixel(x, y, inv ? Color.WHITE : Color.BLACK);
+		if (luminance1000(pixels[row + x]) >= thresholdLum) {
+		    if (x < minX)
+			minX = x;
+		    if (x > maxX)
+			maxX = x;
+		    if (y < minY)
+			minY = y;
+		    if (y > maxY)
+			maxY = y;
+		    pixels[row + x] = ink;
 		} else {
-		    icon.setPixel(x, y, inv ? Color.BLACK : Color.WHITE);
+		    pixels[row + x] = paper;
 		}
 	    }
 	}
 
 	// Crop to remove all blank space around the thresholded icon
 	if (maxX - minX >= 5 && maxY - minY >= 5) {
-	    icon = Bitmap.createBitmap(icon, minX, minY, (maxX - minX) + 1, (maxY - minY) + 1);
-	    iw = icon.getWidth();
-	    ih = icon.getHeight();
+	    left = minX;
+	    top = minY;
+	    iw = (maxX - minX) + 1;
+	    ih = (maxY - minY) + 1;
 	}
 
 	// Remove border: if we can see a smaller bounding box ignoring the
@@ -97,19 +203,25 @@ public class NotificationIconShrinker {
 	minY = ih;
 	maxY = 0;
 	for (int y = 1; y < ih - 1; y++) {
+	    final int row = (top + y) * stride + left;
 	    for (int x = 1; x < iw - 1; x++) {
-		if (icon.getPixel(x, y) == Color.BLACK) {
-		    minX = Math.min(minX, x);
-		    maxX = Math.max(maxX, x);
-		    minY = Math.min(minY, y);
-		    maxY = Math.max(maxY, y);
+		if (pixels[row + x] == Color.BLACK) {
+		    if (x < minX)
+			minX = x;
+		    if (x > maxX)
+			maxX = x;
+		    if (y < minY)
+			minY = y;
+		    if (y > maxY)
+			maxY = y;
 		}
 	    }
 	}
 	if (maxX - minX >= 5 && maxY - minY >= 5 && maxX - minX < ih - 3 && maxY - minY < ih - 3) {
-	    icon = Bitmap.createBitmap(icon, minX, minY, (maxX - minX) + 1, (maxY - minY) + 1);
-	    iw = icon.getWidth();
-	    ih = icon.getHeight();
+	    left += minX;
+	    top += minY;
+	    iw = (maxX - minX) + 1;
+	    ih = (maxY - minY) + 1;
 	}
 
 	// Scale it to maxSize pixels high
@@ -121,19 +233,28 @@ public class NotificationIconShrinker {
 	    h = maxSize;
 	    w = (int) Math.round((((double) iw) / ih) * h);
 	}
-	icon = Bitmap.createScaledBitmap(icon, w, h, true);
+	Bitmap cropped = Bitmap.createBitmap(pixels, top * stride + left, stride, iw, ih, Bitmap.Config.ARGB_8888);
+	icon = Bitmap.createScaledBitmap(cropped, w, h, true);
+	if (icon != cropped)
+	    cropped.recycle();
 
 	// There may now be grey pixels; threshold them (again)
-	int t = chooseThreshold2(packageName);
-	for (int y = 0; y < h; y++) {
-	    for (int x = 0; x < w; x++) {
-		if (Color.green(icon.getPixel(x, y)) > t) {
-		    icon.setPixel(x, y, Color.WHITE);
-		} else {
-		    icon.setPixel(x, y, Color.BLACK);
-		}
-	    }
-	}
+	final int t = chooseThreshold2(packageName);
+	int[] scaled = new int[w * h];
+	icon.getPixels(scaled, 0, w, 0, 0, w, h);
+	for (int i = 0; i < scaled.length; i++)
+	    scaled[i] = Color.green(scaled[i]) > t ? Color.WHITE : Color.BLACK;
+	if (!icon.isMutable())
+	    icon = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+	icon.setPixels(scaled, 0, w, 0, 0, w, h);
 	return icon;
     }
+
+    /*
+     * Alpha times the Rec. 601 luma of color, scaled by 1000 to stay in
+     * integers: 0 for transparent or black, 255 * 255000 for opaque white
+     */
+    private static int luminance1000(int color) {
+	return (color >>> 24) * (299 * ((color >> 16) & 0xFF) + 587 * ((color >> 8) & 0xFF) + 114 * (color & 0xFF));
+    }
 }
@@ -0,0 +1,106 @@
+package org.metawatch.manager;
+
+import java.util.Arrays;
+
+import android.graphics.Bitmap;
+
+/*
+ * Packs 80x16 ARGB pixels into the layout expected by OledWriteBuffer: one
+ * byte per column, least significant bit topmost, the top 8 rows in the
+ * first 80 bytes and the bottom 8 in the next 80.
+ *
+ * As with LcdEncoder the scratch buffers are thread confined, so callers
+ * must consume (or copy) the returned arrays before encoding again on the
+ * same thread.
+ */
+public class OledEncoder {
+
+    public static final int WIDTH = 80;
+    public static final int HEIGHT = 16;
+    public static final int FRAME_BYTES = WIDTH * HEIGHT / 8;
+
+    private static final int WHITE = 0xffffffff;
+
+    private static final ThreadLocal<int[]> sPixels = new ThreadLocal<int[]>() {
+	@Override
+	protected int[] initialValue() {
+	    return new int[WIDTH * HEIGHT];
+	}
+    };
+
+    private static final ThreadLocal<byte[]> sFrame = new ThreadLocal<byte[]>() {
+	@Override
+	protected byte[] initialValue() {
+	    return new byte[FRAME_BYTES];
+	}
+    };
+
+    private OledEncoder() {
+    }
+
+    /*
+     * Encodes the 80x16 area of bitmap starting at row top. Anything outside
+     * the bitmap is white.
+     */
+    public static byte[] encode(Bitmap bitmap, int top) {
+	int[] pixels = sPixels.get();
+	final int width = Math.min(WIDTH, bitmap.getWidth());
+	final int height = Math.max(0, Math.min(HEIGHT, bitmap.getHeight() - top));
+	if (width < WIDTH || height < HEIGHT)
+	    Arrays.fill(pixels, WHITE);
+	if (width > 0 && height > 0)
+	    bitmap.getPixels(pixels, 0, WIDTH, 0, top, width, height);
+	return encode(pixels, sFrame.get());
+    }
+
+    public static byte[] encode(int[] pixels, byte[] out) {
+	for (int band = 0; band < HEIGHT / 8; band++) {
+	    final int row = band * 8 * WIDTH;
+	    for (int x = 0; x < WIDTH; x++) {
+		int packed = 0;
+		for (int bit = 0, p = row + x; bit < 8; bit++, p += WIDTH) {
+		    if (isInk(pixels[p]))
+			packed |= 1 << bit;
+		}
+		out[band * WIDTH + x] = (byte) packed;
+	    }
+	}
+	return out;
+    }
+
+    /*
+     * Draws bitmap over frame with its top left corner at x, y, as
+     * Canvas.drawBitmap would on a white page. Transparent pixels leave the
+     * frame alone.
+     */
+    public static void blit(Bitmap bitmap, int x, int y, byte[] frame) {
+	final int left = Math.max(0, -x);
+	final int top = Math.max(0, -y);
+	final int width = Math.min(bitmap.getWidth(), WIDTH - x) - left;
+	final int height = Math.min(bitmap.getHeight(), HEIGHT - y) - top;
+	if (width <= 0 || height <= 0)
+	    return;
+
+	int[] pixels = sPixels.get();
+	bitmap.getPixels(pixels, 0, width, left, top, width, height);
+	for (int row = 0; row < height; row++) {
+	    final int fy = y + top + row;
+	    final int mask = 1 << (fy & 7);
+	    final int band = (fy >> 3) * WIDTH;
+	    for (int column = 0; column < width; column++) {
+		final int color = pixels[row * width + column];
+		if ((color >>> 24) == 0)
+		    continue;
+		final int i = band + x + left + column;
+		if (isInk(color))
+		    frame[i] |= mask;
+		else
+		    frame[i] &= ~mask;
+	    }
+	}
+    }
+
+    public static boolean isInk(int color) {
+	return color != WHITE;
+    }
+}
@@ -0,0 +1,206 @@
+package org.metawatch.manager;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+
+/*
+ * A MetaWatch font for the OLED display. Each character is drawn once, the
+ * first time it's used, and kept as packed columns in a single atlas; text
+ * is then laid out by OR-ing those columns into an OledEncoder frame (or any
+ * column-major strip), with no Bitmap or Canvas involved.
+ *
+ * Fonts are either 8 rows high, filling one half of the display, or 16
+ * rows, filling both. The halves of a 16 row glyph go stride bytes apart in
+ * the output, which is OledEncoder.WIDTH for a frame.
+ */
+public class OledFont {
+
+    private static class Glyph {
+	// Columns relative to the pen position, and where they are in the
+	// atlas
+	final int left;
+	final int width;
+	final int offset;
+	final float advance;
+
+	Glyph(int left, int width, int offset, float advance) {
+	    this.left = left;
+	    this.width = width;
+	    this.offset = offset;
+	    this.advance = advance;
+	}
+    }
+
+    private static OledFont sSmall = null;
+    private static OledFont sLarge = null;
+
+    private final Paint paint = new Paint();
+    private final int bands;
+    private final int baseline;
+
+    private final Glyph[] latin = new Glyph[256];
+    private final Map<Character, Glyph> others = new HashMap<Character, Glyph>();
+    private byte[] atlas = new byte[1024];
+    private int atlasSize = 0;
+
+    /*
+     * The small font, 8 rows with the baseline on the bottom one, as used for
+     * two lines of text.
+     */
+    public static synchronized OledFont small(Context context) {
+	if (sSmall == null)
+	    sSmall = new OledFont(FontCache.instance(context).Small, 8, 7);
+	return sSmall;
+    }
+
+    /*
+     * The large font, 16 rows with the baseline on row 14, as used for a
+     * single line of text.
+     */
+    public static synchronized OledFont large(Context context) {
+	if (sLarge == null)
+	    sLarge = new OledFont(FontCache.instance(context).Large, 16, 14);
+	return sLarge;
+    }
+
+    private OledFont(FontCache.FontInfo font, int rows, int baseline) {
+	paint.setColor(Color.BLACK);
+	paint.setTextSize(font.size);
+	paint.setTypeface(font.face);
+	this.bands = rows / 8;
+	this.baseline = baseline;
+    }
+
+    /*
+     * ORs text into out, starting with the pen at column x, and returns where
+     * the pen ended up. Only columns [0, width) are written; the top band of
+     * column c goes to out[offset + c], the bottom band of a 16 row font to
+     * out[offset + stride + c]. Newlines are drawn as spaces.
+     */
+    public float draw(CharSequence text, float x, byte[] out, int offset, int stride, int width) {
+	return draw(text, 0, x, out, offset, stride, width);
+    }
+
+    /*
+     * As above, starting from text[index].
+     */
+    public synchronized float draw(CharSequence text, int index, float x, byte[] out, int offset, int stride, int width) {
+	float pen = x;
+	final int length = text.length();
+	for (int i = index; i < length && pen - reach() < width; i++) {
+	    Glyph glyph = glyph(text.charAt(i));
+
+	    final int start = Math.round(pen) + glyph.left;
+	    final int first = Math.max(0, -start);
+	    final int last = Math.min(glyph.width, width - start);
+	    for (int c = first; c < last; c++) {
+		final int source = glyph.offset + c * bands;
+		final int target = offset + start + c;
+		for (int band = 0; band < bands; band++)
+		    out[target + band * stride] |= atlas[source + band];
+	    }
+
+	    pen += glyph.advance;
+	}
+	return pen;
+    }
+
+    /*
+     * How far the pen moves drawing c.
+     */
+    public synchronized float advance(char c) {
+	return glyph(c).advance;
+    }
+
+    /*
+     * How many columns a glyph can reach past either end of its advance.
+     */
+    public int reach() {
+	return 8 * bands;
+    }
+
+    /*
+     * How far the pen moves drawing text.
+     */
+    public synchronized float measure(CharSequence text) {
+	float width = 0;
+	final int length = text.length();
+	for (int i = 0; i < length; i++)
+	    width += glyph(text.charAt(i)).advance;
+	return width;
+    }
+
+    private Glyph glyph(char c) {
+	if (c == '\n')
+	    c = ' ';
+
+	Glyph glyph = c < latin.length ? latin[c] : others.get(c);
+	if (glyph == null) {
+	    glyph = rasterize(c);
+	    if (c < latin.length)
+		latin[c] = glyph;
+	    else
+		others.put(c, glyph);
+	}
+	return glyph;
+    }
+
+    private Glyph rasterize(char c) {
+	final String text = String.valueOf(c);
+	final float advance = paint.measureText(text);
+	final int rows = bands * 8;
+
+	// Room either side for glyphs that overhang their advance
+	final int margin = reach();
+	final int width = (int) Math.ceil(advance) + 2 * margin;
+
+	Bitmap bitmap = Bitmap.createBitmap(width, rows, Bitmap.Config.RGB_565);
+	Canvas canvas = new Canvas(bitmap);
+	canvas.drawColor(Color.WHITE);
+	canvas.drawText(text, margin, baseline, paint);
+
+	int[] pixels = new int[width * rows];
+	bitmap.getPixels(pixels, 0, width, 0, 0, width, rows);
+	bitmap.recycle();
+
+	byte[] columns = new byte[width * bands];
+	int first = -1;
+	int last = -1;
+	for (int x = 0; x < width; x++) {
+	    for (int band = 0; band < bands; band++) {
+		int packed = 0;
+		for (int bit = 0; bit < 8; bit++) {
+		    if (OledEncoder.isInk(pixels[(band * 8 + bit) * width + x]))
+			packed |= 1 << bit;
+		}
+		columns[x * bands + band] = (byte) packed;
+		if (packed != 0) {
+		    if (first < 0)
+			first = x;
+		    last = x;
+		}
+	    }
+	}
+
+	if (first < 0)
+	    return new Glyph(0, 0, atlasSize, advance);
+
+	final int count = (last - first + 1) * bands;
+	if (atlasSize + count > atlas.length) {
+	    byte[] grown = new byte[Math.max(atlas.length * 2, atlasSize + count)];
+	    System.arraycopy(atlas, 0, grown, 0, atlasSize);
+	    atlas = grown;
+	}
+	System.arraycopy(columns, first * bands, atlas, atlasSize, count);
+
+	Glyph glyph = new Glyph(first - margin, last - first + 1, atlasSize, advance);
+	atlasSize += count;
+	return glyph;
+    }
+}
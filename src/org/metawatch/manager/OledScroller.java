@@ -0,0 +1,98 @@
+package org.metawatch.manager;
+
+import java.util.Arrays;
+
+/*
+ * The part of a line of text that doesn't fit on the OLED, as scroll data
+ * for OledWriteScrollBuffer. Column 0 is the 80th column of the line, the
+ * first one createOled2lines() couldn't show.
+ *
+ * Nothing is drawn up front: each chunk is drawn from the glyph atlas when
+ * it's asked for, so text of any length scrolls in full while only ever
+ * holding two chunks. prepare() draws the next chunk ahead of time, while
+ * the watch is still scrolling through the last one.
+ *
+ * Chunks are meant to be asked for in order; going back, as a replayed
+ * notification does, starts over from the beginning of the text.
+ */
+public class OledScroller {
+
+    // The longest chunk the notification sender asks for at once
+    public static final int MAX_CHUNK = 240;
+
+    private static final int SKIPPED = OledEncoder.WIDTH - 1;
+
+    private final OledFont font;
+    private final String text;
+    private final int length;
+
+    // The first character that can still reach the next chunk, and where
+    // the pen is when it's drawn
+    private int cursor = 0;
+    private float cursorPen = -SKIPPED;
+
+    private final byte[][] buffers = new byte[2][MAX_CHUNK];
+    private final int[] bufferStart = { -1, -1 };
+    private final int[] bufferCount = { 0, 0 };
+    private int current = 0;
+
+    public OledScroller(OledFont font, String text) {
+	this.font = font;
+	this.text = text;
+	this.length = (int) font.measure(text) - SKIPPED;
+    }
+
+    /*
+     * Columns of scroll data, 0 or less if the text fits on the display.
+     */
+    public int length() {
+	return length;
+    }
+
+    /*
+     * count columns from start, at most MAX_CHUNK. The array is reused by
+     * later calls, send it before asking for more.
+     */
+    public synchronized byte[] chunk(int start, int count) {
+	final int next = 1 - current;
+	if (bufferStart[next] == start && bufferCount[next] == count) {
+	    current = next;
+	} else {
+	    draw(current, start, count);
+	}
+	return buffers[current];
+    }
+
+    /*
+     * Draws the chunk that chunk(start, count) will ask for next, without
+     * touching the one last returned.
+     */
+    public synchronized void prepare(int start, int count) {
+	draw(1 - current, start, count);
+    }
+
+    private void draw(int buffer, int start, int count) {
+	// Everything before the cursor ends, overhang included, at
+	// cursorPen + reach, so going back before that starts over
+	final int reach = font.reach();
+	if (cursor > 0 && cursorPen + reach > start) {
+	    cursor = 0;
+	    cursorPen = -SKIPPED;
+	}
+
+	while (cursor < text.length()) {
+	    final float advance = font.advance(text.charAt(cursor));
+	    if (cursorPen + advance + reach > start)
+		break;
+	    cursorPen += advance;
+	    cursor++;
+	}
+
+	byte[] out = buffers[buffer];
+	Arrays.fill(out, (byte) 0);
+	font.draw(text, cursor, cursorPen - start, out, 0, 0, count);
+
+	bufferStart[buffer] = start;
+	bufferCount[buffer] = count;
+    }
+}
@@ -0,0 +1,88 @@
+package org.metawatch.manager;
+
+import java.util.ArrayDeque;
+
+/*
+ * A watch packet encoded straight into a pooled frame. Commands append their
+ * payload with put(), finish() fills in the length byte and appends the CRC
+ * in place, and the sender recycles the frame once it has been written.
+ */
+public class Packet {
+
+    // The watch never takes more than 32 bytes in one packet
+    public static final int CAPACITY = 32;
+
+    private static final int POOL_SIZE = 64;
+    private static final ArrayDeque<Packet> sPool = new ArrayDeque<Packet>();
+
+    public final byte[] data;
+    public int length;
+    private final boolean pooled;
+
+    private Packet(byte[] data, int length, boolean pooled) {
+	this.data = data;
+	this.length = length;
+	this.pooled = pooled;
+    }
+
+    public static Packet obtain(eMessageType type, int options) {
+	Packet packet;
+	synchronized (sPool) {
+	    packet = sPool.pollFirst();
+	}
+	if (packet == null)
+	    packet = new Packet(new byte[CAPACITY], 0, true);
+
+	packet.data[0] = eMessageType.start;
+	packet.data[1] = 0; // filled in by finish()
+	packet.data[2] = type.msg;
+	packet.data[3] = (byte) options;
+	packet.length = 4;
+	return packet;
+    }
+
+    /*
+     * Wraps an already complete packet, CRC included. Wrapped packets are
+     * never returned to the pool.
+     */
+    public static Packet wrap(byte[] bytes) {
+	return new Packet(bytes, bytes.length, false);
+    }
+
+    public Packet put(int value) {
+	data[length++] = (byte) value;
+	return this;
+    }
+
+    public Packet put(byte[] source, int offset, int count) {
+	System.arraycopy(source, offset, data, length, count);
+	length += count;
+	return this;
+    }
+
+    // Little endian, as the watch expects
+    public Packet putShort(int value) {
+	data[length++] = (byte) (value & 0xFF);
+	data[length++] = (byte) ((value >> 8) & 0xFF);
+	return this;
+    }
+
+    public Packet finish() {
+	data[1] = (byte) (length + 2);
+	length = Crc16.append(data, length);
+	return this;
+    }
+
+    public byte type() {
+	return data[2];
+    }
+
+    public void recycle() {
+	if (!pooled)
+	    return;
+	synchronized (sPool) {
+	    if (sPool.size() < POOL_SIZE)
+		sPool.addFirst(this);
+	}
+    }
+}
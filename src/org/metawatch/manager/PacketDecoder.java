@@ -0,0 +1,106 @@
+package org.metawatch.manager;
+
+/*
+ * Reassembles watch packets from whatever chunks the socket hands us. Bytes
+ * are fed in as they arrive, complete frames with a valid length and CRC
+ * come out of next(); anything else is skipped a byte at a time until the
+ * stream lines up with a start byte again.
+ *
+ * Has no Android dependencies, so it can be driven from recorded streams.
+ */
+public class PacketDecoder {
+
+    // start, length, type, options + CRC
+    public static final int MIN_FRAME = 6;
+    public static final int MAX_FRAME = 32;
+
+    private static final int CAPACITY = 512;
+    private static final int MASK = CAPACITY - 1;
+
+    private final byte[] ring = new byte[CAPACITY];
+    private int head = 0;
+    private int count = 0;
+
+    private int droppedBytes = 0;
+    private int crcErrors = 0;
+
+    public synchronized void reset() {
+	head = 0;
+	count = 0;
+    }
+
+    public synchronized void feed(byte[] data, int offset, int length) {
+	for (int i = 0; i < length; i++) {
+	    if (count == CAPACITY)
+		drop(1);
+	    ring[(head + count) & MASK] = data[offset + i];
+	    count++;
+	}
+    }
+
+    /*
+     * Copies the next complete frame into out (at least MAX_FRAME long) and
+     * returns its length, or 0 if no complete frame is buffered yet.
+     */
+    public synchronized int next(byte[] out) {
+	while (count >= 2) {
+	    if (at(0) != eMessageType.start) {
+		drop(1);
+		continue;
+	    }
+
+	    final int length = at(1) & 0xFF;
+	    if (length < MIN_FRAME || length > MAX_FRAME) {
+		drop(1);
+		continue;
+	    }
+
+	    if (count < length)
+		return 0;
+
+	    for (int i = 0; i < length; i++)
+		out[i] = at(i);
+
+	    final int crc = Crc16.compute(out, 0, length - 2);
+	    if ((out[length - 2] & 0xFF) != (crc & 0xFF) || (out[length - 1] & 0xFF) != ((crc >> 8) & 0xFF)) {
+		crcErrors++;
+		drop(1);
+		continue;
+	    }
+
+	    head = (head + length) & MASK;
+	    count -= length;
+	    return length;
+	}
+	return 0;
+    }
+
+    public synchronized int getDroppedBytes() {
+	return droppedBytes;
+    }
+
+    public synchronized int getCrcErrors() {
+	return crcErrors;
+    }
+
+    private byte at(int index) {
+	return ring[(head + index) & MASK];
+    }
+
+    private void drop(int bytes) {
+	head = (head + bytes) & MASK;
+	count -= bytes;
+	droppedBytes += bytes;
+    }
+
+    public static String toHexString(byte[] bytes, int length) {
+	StringBuilder builder = new StringBuilder(length * 6);
+	for (int i = 0; i < length; i++) {
+	    builder.append("0x");
+	    builder.append(Character.forDigit((bytes[i] >> 4) & 0xF, 16));
+	    builder.append(Character.forDigit(bytes[i] & 0xF, 16));
+	    builder.append(", ");
+	}
+	return builder.toString();
+    }
+}
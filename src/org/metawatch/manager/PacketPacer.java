@@ -0,0 +1,62 @@
+package org.metawatch.manager;
+
+import org.metawatch.manager.MetaWatchService.Preferences;
+
+/*
+ * AIMD pacing for the watch link: every burst that goes out quickly shaves a
+ * little off the gap between bursts and lets the next burst grow by a packet,
+ * a stalled write or a reconnect backs both off sharply.
+ */
+public class PacketPacer {
+
+    private static final int MIN_DELAY = 10;
+    private static final int MAX_DELAY = 500;
+    private static final int DELAY_STEP = 2;
+    private static final int MAX_BURST_PACKETS = 8;
+    // A burst that takes longer than this to write means the link is backing up
+    private static final long SLOW_WRITE_MS = 100;
+
+    private final int initialDelay;
+    private int delay;
+    private int burstSize;
+
+    public PacketPacer(int initialDelay) {
+	this.initialDelay = Math.max(MIN_DELAY, Math.min(MAX_DELAY, initialDelay));
+	reset();
+    }
+
+    public synchronized void reset() {
+	delay = initialDelay;
+	burstSize = 1;
+    }
+
+    public synchronized void onWrite(long elapsed) {
+	if (elapsed > SLOW_WRITE_MS) {
+	    backOff();
+	    if (Preferences.logging)
+		Log.d(MetaWatchStatus.TAG, "PacketPacer: slow write (" + elapsed + "ms), delay now " + delay + "ms, burst " + burstSize);
+	} else {
+	    delay = Math.max(MIN_DELAY, delay - DELAY_STEP);
+	    if (burstSize < MAX_BURST_PACKETS)
+		burstSize++;
+	}
+    }
+
+    public synchronized void onReconnect() {
+	reset();
+	backOff();
+    }
+
+    private void backOff() {
+	delay = Math.min(MAX_DELAY, delay * 2);
+	burstSize = Math.max(1, burstSize / 2);
+    }
+
+    public synchronized int getDelay() {
+	return delay;
+    }
+
+    public synchronized int getBurstSize() {
+	return burstSize;
+    }
+}
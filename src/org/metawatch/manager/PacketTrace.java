@@ -0,0 +1,158 @@
+package org.metawatch.manager;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Keeps the last few hundred frames that went to or came from the watch.
+ * The sender and reader threads record into a fixed ring without taking a
+ * lock: each record claims a slot from a shared counter and stamps the slot
+ * with its sequence number once the frame has been copied in. Readers copy a
+ * slot out and only keep it if the stamp was the same before and after, so a
+ * frame that was overwritten mid-copy is skipped rather than shown torn.
+ *
+ * Recording is off unless the "Log packet details" setting is on, see
+ * Preferences.logPacketDetails.
+ */
+public class PacketTrace {
+
+    public static final int TX = 0;
+    public static final int RX = 1;
+
+    private static final int CAPACITY = 256;
+    private static final int MASK = CAPACITY - 1;
+    private static final int FRAME = PacketDecoder.MAX_FRAME;
+    private static final long WRITING = -1;
+
+    // pcap file header values, frames are written as LINKTYPE_USER0 with a
+    // leading direction byte
+    private static final int PCAP_MAGIC = 0xa1b2c3d4;
+    private static final int PCAP_LINKTYPE_USER0 = 147;
+
+    private static final AtomicLong sNext = new AtomicLong();
+    private static final AtomicLongArray sStamps = new AtomicLongArray(CAPACITY);
+    private static final long[] sTimes = new long[CAPACITY];
+    private static final byte[] sDirections = new byte[CAPACITY];
+    private static final int[] sLengths = new int[CAPACITY];
+    private static final byte[] sFrames = new byte[CAPACITY * FRAME];
+
+    static {
+	for (int i = 0; i < CAPACITY; i++)
+	    sStamps.set(i, WRITING);
+    }
+
+    public static class Entry {
+	public final long time;
+	public final int direction;
+	public final byte[] frame;
+
+	Entry(long time, int direction, byte[] frame) {
+	    this.time = time;
+	    this.direction = direction;
+	    this.frame = frame;
+	}
+    }
+
+    public static void record(int direction, byte[] frame, int length) {
+	if (length > FRAME)
+	    length = FRAME;
+
+	final long sequence = sNext.getAndIncrement();
+	final int slot = (int) (sequence & MASK);
+
+	sStamps.set(slot, WRITING);
+	sTimes[slot] = System.currentTimeMillis();
+	sDirections[slot] = (byte) direction;
+	sLengths[slot] = length;
+	System.arraycopy(frame, 0, sFrames, slot * FRAME, length);
+	sStamps.set(slot, sequence);
+    }
+
+    public static void clear() {
+	for (int i = 0; i < CAPACITY; i++)
+	    sStamps.set(i, WRITING);
+    }
+
+    /*
+     * Returns the frames still held by the ring, oldest first.
+     */
+    public static Entry[] snapshot() {
+	final long end = sNext.get();
+	final long start = Math.max(0, end - CAPACITY);
+
+	Entry[] entries = new Entry[(int) (end - start)];
+	int count = 0;
+	for (long sequence = start; sequence < end; sequence++) {
+	    final int slot = (int) (sequence & MASK);
+	    if (sStamps.get(slot) != sequence)
+		continue;
+
+	    final long time = sTimes[slot];
+	    final int direction = sDirections[slot];
+	    final int length = Math.min(sLengths[slot], FRAME);
+	    byte[] frame = new byte[length];
+	    System.arraycopy(sFrames, slot * FRAME, frame, 0, length);
+
+	    if (sStamps.get(slot) == sequence)
+		entries[count++] = new Entry(time, direction, frame);
+	}
+
+	if (count == entries.length)
+	    return entries;
+	Entry[] result = new Entry[count];
+	System.arraycopy(entries, 0, result, 0, count);
+	return result;
+    }
+
+    public static String format(Entry[] entries) {
+	SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+	StringBuilder builder = new StringBuilder(entries.length * 128);
+	for (Entry entry : entries) {
+	    builder.append(timeFormat.format(new Date(entry.time)));
+	    builder.append(entry.direction == TX ? " > " : " < ");
+	    eMessageType type = entry.frame.length > 2 ? eMessageType.fromByte(entry.frame[2]) : null;
+	    if (type != null)
+		builder.append(type.name()).append(' ');
+	    builder.append(PacketDecoder.toHexString(entry.frame, entry.frame.length));
+	    builder.append('\n');
+	}
+	return builder.toString();
+    }
+
+    /*
+     * Writes the trace in libpcap format so it can be opened in Wireshark.
+     * Each record is the direction byte (0 = to the watch, 1 = from it)
+     * followed by the raw frame.
+     */
+    public static void export(Entry[] entries, File file) throws IOException {
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+	try {
+	    out.writeInt(PCAP_MAGIC);
+	    out.writeShort(2); // version major
+	    out.writeShort(4); // version minor
+	    out.writeInt(0); // GMT offset
+	    out.writeInt(0); // timestamp accuracy
+	    out.writeInt(FRAME + 1); // snapshot length
+	    out.writeInt(PCAP_LINKTYPE_USER0);
+
+	    for (Entry entry : entries) {
+		out.writeInt((int) (entry.time / 1000));
+		out.writeInt((int) (entry.time % 1000) * 1000);
+		out.writeInt(entry.frame.length + 1);
+		out.writeInt(entry.frame.length + 1);
+		out.writeByte(entry.direction);
+		out.write(entry.frame);
+	    }
+	} finally {
+	    out.close();
+	}
+    }
+}
@@ -28,9 +28,6 @@
 
 package org.metawatch.manager;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 
@@ -38,21 +35,19 @@ import org.metawatch.manager.MetaWatchService.Preferences;
 import org.metawatch.manager.MetaWatchService.WatchBuffers;
 
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Paint.Align;
 import android.os.Environment;
-import android.preference.PreferenceManager;
 import android.text.StaticLayout;
 import android.text.TextPaint;
 import android.text.format.DateFormat;
 
 public class Protocol {
     
-    private byte[][][] LCDDiffBuffer = new byte[3][48][30];
+    private final LcdDiffBuffer mLcdDiff = new LcdDiffBuffer();
 
     private Context mContext;
 
@@ -73,7 +68,7 @@ public class Protocol {
     }
 
     public void resetLCDDiffBuffer() {
-	LCDDiffBuffer = new byte[3][48][30];
+	mLcdDiff.reset();
     }
 
     public boolean sendLcdBitmap(Bitmap bitmap, int bufferType) {
@@ -88,106 +83,102 @@ public class Protocol {
 
 	if (Preferences.logging)
 	    Log.d(MetaWatchStatus.TAG, "Protocol.sendLcdBitmap()");
-	int pixelArray[] = new int[96 * 96];
-	bitmap.getPixels(pixelArray, 0, 96, 0, 0, 96, 96);
 
-	return sendLcdArray(pixelArray, bufferType);
+	return sendLcdBuffer(LcdEncoder.encode(bitmap), bufferType);
     }
 
-    public boolean sendLcdArray(int[] pixelArray, int bufferType) {
-	byte send[] = new byte[1152];
+    /*
+     * For a bitmap that is redrawn in place between sends, such as the idle
+     * framebuffer: rows outside [top, bottom) haven't changed since the
+     * bitmap was last sent, so only the rows in between are encoded and
+     * compared. Falls back to the whole frame if anything else was sent to
+     * bufferType in the meantime.
+     */
+    public boolean sendLcdBitmap(Bitmap bitmap, int bufferType, int top, int bottom) {
+	if (bitmap == null || bitmap.getWidth() != 96 || bitmap.getHeight() != 96) {
+	    if (Preferences.logging)
+		Log.d(MetaWatchStatus.TAG, "Protocol.sendLcdBitmap - null or non 96px bitmap!");
+	    return false;
+	}
 
-	for (int i = 0; i < 1152; i++) {
-	    int p[] = new int[8];
+	if (Preferences.dumpWatchScreenshots)
+	    Utils.dumpBitmapToSdCard(bitmap, Environment.getExternalStorageDirectory().getPath() + "MWM_" + System.currentTimeMillis() + ".png");
 
-	    for (int j = 0; j < 8; j++) {
-		if (pixelArray[i * 8 + j] == Color.WHITE)
-		    /*
-		     * if (Preferences.invertLCD) p[j] = 1; else
-		     */
-		    p[j] = 0;
-		else
-		    /*
-		     * if (Preferences.invertLCD) p[j] = 0; else
-		     */
-		    p[j] = 1;
+	synchronized (mLcdDiff) {
+	    if (!mLcdDiff.isSource(bufferType, bitmap)) {
+		top = 0;
+		bottom = LcdEncoder.HEIGHT;
 	    }
-	    send[i] = (byte) (p[7] * 128 + p[6] * 64 + p[5] * 32 + p[4] * 16 + p[3] * 8 + p[2] * 4 + p[1] * 2 + p[0] * 1);
+
+	    if (Preferences.logging)
+		Log.d(MetaWatchStatus.TAG, "Protocol.sendLcdBitmap(): rows " + top + "-" + bottom);
+
+	    return sendLcdRows(LcdEncoder.encodeRows(bitmap, top, bottom), bufferType, top, bottom, bitmap);
 	}
-	return sendLcdBuffer(send, bufferType);
+    }
+
+    public boolean sendLcdArray(int[] pixelArray, int bufferType) {
+	return sendLcdBuffer(LcdEncoder.encode(pixelArray), bufferType);
     }
 
     public boolean sendLcdBuffer(byte[] buffer, int bufferType) {
+	return sendLcdRows(buffer, bufferType, 0, LcdEncoder.HEIGHT, null);
+    }
+
+    private boolean sendLcdRows(byte[] buffer, int bufferType, int top, int bottom, Object source) {
 	if (MetaWatchService.connectionState != MetaWatchService.ConnectionState.CONNECTED)
 	    return false;
 
-	int i = 0;
-	// if (bufferType == MetaWatchService.WatchBuffers.IDLE &&
-	// idleShowClock)
-	// i = 30;
-
 	int sentLines = 0;
-	for (; i < 96; i += 2) {
-	    byte[] bytes = new byte[30];
-
-	    bytes[0] = 0x01;
-	    bytes[1] = (byte) (bytes.length + 2); // packet length
-	    bytes[2] = eMessageType.WriteBuffer.msg;
-	    bytes[3] = (byte) (bufferType & 3);
-
-	    bytes[4] = (byte) i; // row A
-	    for (int j = 0; j < 12; j++)
-		bytes[j + 5] = buffer[i * 12 + j];
-
-	    bytes[4 + 13] = (byte) (i + 1); // row B
-	    for (int j = 0; j < 12; j++)
-		bytes[j + 5 + 13] = buffer[i * 12 + j + 12];
-
-	    // Only send the row packet if the data's changed since the
-	    // last time we sent it
-	    if (!Arrays.equals(LCDDiffBuffer[bufferType][i / 2], bytes)) {
-		enqueue(bytes);
-		LCDDiffBuffer[bufferType][i / 2] = bytes;
-		sentLines += 2;
+	synchronized (mLcdDiff) {
+	    // Only send the rows whose data has changed since the last time
+	    // we sent this buffer, packing any two dirty rows into one packet
+	    final int dirty = mLcdDiff.update(buffer, bufferType, top, bottom, source);
+	    final int[] rows = mLcdDiff.getDirtyRows();
+	    for (int i = 0; i < dirty; i += 2) {
+		int rowA = rows[i];
+		int rowB = rows[Math.min(i + 1, dirty - 1)];
+		enqueue(createWriteBuffer(buffer, bufferType, rowA, rowB));
 	    }
+	    sentLines = dirty;
+
+	    if (Preferences.logging)
+		Log.d(MetaWatchStatus.TAG, "Sent " + sentLines + "/96, skipped " + mLcdDiff.getSkippedRows());
 	}
-	if (Preferences.logging)
-	    Log.d(MetaWatchStatus.TAG, "Sent " + sentLines + "/96");
 
 	return (sentLines > 0);
     }
 
-    public void enqueue(final byte[] bytes) {
-	if (MetaWatchService.fakeWatch)
-	    return;
-	send(bytes);
+    private Packet createWriteBuffer(byte[] buffer, int bufferType, int rowA, int rowB) {
+	Packet packet = Packet.obtain(eMessageType.WriteBuffer, bufferType & 3);
+
+	packet.put(rowA);
+	packet.put(buffer, rowA * LcdEncoder.ROW_BYTES, LcdEncoder.ROW_BYTES);
+
+	// A lone dirty row is written twice rather than dragging in a clean one
+	packet.put(rowB);
+	packet.put(buffer, rowB * LcdEncoder.ROW_BYTES, LcdEncoder.ROW_BYTES);
+
+	return packet;
     }
 
-    public void send(final byte[] bytes) {
-	if (bytes == null)
-	    return;
-	ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-	try {
-	    byteArrayOutputStream.write(bytes);
-	    byteArrayOutputStream.write(crc(bytes));
-	} catch (IOException e) {
-	    // TODO Auto-generated catch block
-	    e.printStackTrace();
-	    return;
-	}
+    public int getSkippedLcdRows() {
+	return mLcdDiff.getSkippedRows();
+    }
 
-	SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(mContext);
-	if (sharedPreferences.getBoolean("logPacketDetails", false)) {
-	    String str = "sending: ";
-	    byte[] b = byteArrayOutputStream.toByteArray();
-	    for (int i = 0; i < b.length; i++) {
-		str += "0x" + Integer.toString((b[i] & 0xff) + 0x100, 16).substring(1) + ", ";
-	    }
-	    if (Preferences.logging)
-		Log.d(MetaWatchStatus.TAG, str);
+    public void enqueue(final Packet packet) {
+	if (MetaWatchService.fakeWatch) {
+	    packet.recycle();
+	    return;
 	}
+	send(packet);
+    }
 
-	MetaWatchService.sentBytes(mContext, byteArrayOutputStream.toByteArray());
+    public void send(final Packet packet) {
+	if (packet == null)
+	    return;
+	packet.finish();
+	MetaWatchService.sentBytes(mContext, packet);
     }
 
     public void sendAdvanceHands(int hour, int minute, int second) {
@@ -195,19 +186,12 @@ public class Protocol {
 	    if (Preferences.logging)
 		Log.d(MetaWatchStatus.TAG, "Protocol.sendAdvanceHands()");
 
-	    byte[] bytes = new byte[7];
-
-	    bytes[0] = eMessageType.start;
-	    bytes[1] = (byte) (bytes.length + 2); // length
-	    bytes[2] = eMessageType.AdvanceWatchHandsMsg.msg; // advance watch
-							      // hands
-	    bytes[3] = 0x00;
+	    Packet packet = Packet.obtain(eMessageType.AdvanceWatchHandsMsg, 0x00);
+	    packet.put(hour);
+	    packet.put(minute);
+	    packet.put(second);
 
-	    bytes[4] = (byte) hour;
-	    bytes[5] = (byte) minute;
-	    bytes[6] = (byte) second;
-
-	    enqueue(bytes);
+	    enqueue(packet);
 
 	} catch (Exception x) {
 	}
@@ -223,23 +207,18 @@ public class Protocol {
 	    calendar.setTime(date);
 	    int year = calendar.get(Calendar.YEAR);
 
-	    byte[] bytes = new byte[12];
-
-	    bytes[0] = eMessageType.start;
-	    bytes[1] = (byte) (bytes.length + 2); // length
-	    bytes[2] = eMessageType.SetRealTimeClock.msg; // set rtc
-	    bytes[3] = 0x00; // not used
+	    Packet packet = Packet.obtain(eMessageType.SetRealTimeClock, 0x00); // not used
 
-	    bytes[4] = (byte) (year / 256);
-	    bytes[5] = (byte) (year % 256);
-	    bytes[6] = (byte) (calendar.get(Calendar.MONTH) + 1);
-	    bytes[7] = (byte) calendar.get(Calendar.DAY_OF_MONTH);
-	    bytes[8] = (byte) (calendar.get(Calendar.DAY_OF_WEEK) - 1);
-	    bytes[9] = (byte) calendar.get(Calendar.HOUR_OF_DAY);
-	    bytes[10] = (byte) calendar.get(Calendar.MINUTE);
-	    bytes[11] = (byte) (calendar.get(Calendar.SECOND) + Monitors.getInstance().rtcOffset);
+	    packet.put(year / 256);
+	    packet.put(year % 256);
+	    packet.put(calendar.get(Calendar.MONTH) + 1);
+	    packet.put(calendar.get(Calendar.DAY_OF_MONTH));
+	    packet.put(calendar.get(Calendar.DAY_OF_WEEK) - 1);
+	    packet.put(calendar.get(Calendar.HOUR_OF_DAY));
+	    packet.put(calendar.get(Calendar.MINUTE));
+	    packet.put(calendar.get(Calendar.SECOND) + Monitors.getInstance().rtcOffset);
 
-	    send(bytes);
+	    send(packet);
 
 	} catch (Exception x) {
 	}
@@ -248,34 +227,9 @@ public class Protocol {
     public void getRealTimeClock() {
 	if (Preferences.logging)
 	    Log.d(MetaWatchStatus.TAG, "Protocol.getRealTimeClock()");
-	byte[] bytes = new byte[4];
-
-	bytes[0] = eMessageType.start;
-	bytes[1] = (byte) (bytes.length + 2); // length
-	bytes[2] = eMessageType.GetRealTimeClock.msg;
-	bytes[3] = 0;
 
 	Monitors.getInstance().getRTCTimestamp = System.currentTimeMillis();
-	send(bytes);
-    }
-
-    public byte[] crc(byte[] bytes) {
-	byte[] result = new byte[2];
-	short crc = (short) 0xFFFF;
-	for (int j = 0; j < bytes.length; j++) {
-	    byte c = bytes[j];
-	    for (int i = 7; i >= 0; i--) {
-		boolean c15 = ((crc >> 15 & 1) == 1);
-		boolean bit = ((c >> (7 - i) & 1) == 1);
-		crc <<= 1;
-		if (c15 ^ bit)
-		    crc ^= 0x1021; // 0001 0000 0010 0001 (0, 5, 12)
-	    }
-	}
-	int crc2 = crc - 0xffff0000;
-	result[0] = (byte) (crc2 % 256);
-	result[1] = (byte) (crc2 / 256);
-	return result;
+	send(Packet.obtain(eMessageType.GetRealTimeClock, 0));
     }
 
     public Bitmap createTextBitmap(Context context, String text) {
@@ -321,32 +275,19 @@ public class Protocol {
     public void loadTemplate(int mode) {
 	if (Preferences.logging)
 	    Log.d(MetaWatchStatus.TAG, "Protocol.loadTemplate(): mode=" + mode);
-	byte[] bytes = new byte[5];
 
-	bytes[0] = 0x01;
-	bytes[1] = (byte) (bytes.length + 2); // length
-	bytes[2] = eMessageType.LoadTemplate.msg; // load template
-	bytes[3] = (byte) mode;
+	Packet packet = Packet.obtain(eMessageType.LoadTemplate, mode);
+	packet.put(0); // write all "0"
 
-	bytes[4] = (byte) 0; // write all "0"
-
-	enqueue(bytes);
+	enqueue(packet);
     }
 
     public void updateLcdDisplay(int bufferType) {
 	if (Preferences.logging)
 	    Log.d(MetaWatchStatus.TAG, "Protocol.updateLcdDisplay(): bufferType=" + bufferType);
-	// byte[] bytes = new byte[MetaWatchService.watchGen ==
-	// MetaWatchService.WatchGen.GEN2 ? 5 : 4];
-	byte[] bytes = new byte[4];
-
-	bytes[0] = eMessageType.start;
-	bytes[1] = (byte) (bytes.length + 2); // length
-	bytes[2] = eMessageType.UpdateDisplay.msg; // update display
 
+	int options;
 	if (MetaWatchService.watchGen == MetaWatchService.WatchGen.GEN2) {
-	    // bytes[3] = (byte) (bufferType);
-
 	    final int mode = bufferType;
 	    final boolean showGrid = false;
 	    final int pageId = 0;
@@ -357,15 +298,14 @@ public class Protocol {
 		baseCode = 0x80;
 	    }
 	    int code = baseCode | ((showGrid ? 0 : 1) << 6) | ((changePage ? 1 : 0) << 5) | (pageId << 2) | mode;
-	    bytes[3] = (byte) (code & 0xFF);
-	    // bytes[4] = 0x00;
+	    options = code & 0xFF;
 
 	} else
-	    bytes[3] = (byte) (bufferType + 16); // Undocumented, but fw 3.1.0
-						 // and earlier seems to need
-						 // this!
+	    options = bufferType + 16; // Undocumented, but fw 3.1.0
+				       // and earlier seems to need
+				       // this!
 
-	enqueue(bytes);
+	enqueue(Packet.obtain(eMessageType.UpdateDisplay, options));
 
 	if (MetaWatchService.watchGen == MetaWatchService.WatchGen.GEN2) {
 	    changeMode(bufferType);
@@ -375,192 +315,114 @@ public class Protocol {
     public void oledChangeMode(int bufferType) {
 	if (Preferences.logging)
 	    Log.d(MetaWatchStatus.TAG, "Protocol.OledChangeMode(): bufferType=" + bufferType);
-	byte[] bytes = new byte[4];
-
-	bytes[0] = eMessageType.start;
-	bytes[1] = (byte) (bytes.length + 2); // length
-	bytes[2] = eMessageType.OledChangeModeMsg.msg; // update display
-	bytes[3] = (byte) (bufferType);
 
-	enqueue(bytes);
+	enqueue(Packet.obtain(eMessageType.OledChangeModeMsg, bufferType));
     }
 
     public void vibrate(int on, int off, int cycles) {
 	if (Preferences.logging)
 	    Log.d(MetaWatchStatus.TAG, "Protocol.vibrate(): on=" + on + " off=" + off + " cycles=" + cycles);
-	byte[] bytes = new byte[10];
-
-	bytes[0] = eMessageType.start;
-	bytes[1] = 12; // delka
-	bytes[2] = eMessageType.SetVibrateMode.msg; // set vibrate
-	bytes[3] = 0x00; // unused
 
-	bytes[4] = 0x01; // enabled
-	bytes[5] = (byte) (on % 256);
-	bytes[6] = (byte) (on / 256);
-	bytes[7] = (byte) (off % 256);
-	bytes[8] = (byte) (off / 256);
-	bytes[9] = (byte) cycles;
+	Packet packet = Packet.obtain(eMessageType.SetVibrateMode, 0x00); // unused
+	packet.put(0x01); // enabled
+	packet.putShort(on);
+	packet.putShort(off);
+	packet.put(cycles);
 
-	enqueue(bytes);
+	enqueue(packet);
     }
 
     public void writeBuffer() {
 
-	// for (int j = 0; j < 96; j = j+2) {
-	byte[] bytes = new byte[17];
-
-	bytes[0] = eMessageType.start;
-	bytes[1] = (byte) (bytes.length + 2); // length
-	bytes[2] = eMessageType.WriteBuffer.msg; // write lcd buffer
-	// bytes[3] = 0x02; // notif, two lines
-	// bytes[3] = 18;
-	bytes[3] = 0;
-	// bytes[3] = 16;
-
-	bytes[4] = 31;
-
-	bytes[5] = 15;
-	bytes[6] = 15;
-	bytes[7] = 15;
-	bytes[8] = 15;
-	bytes[9] = 15;
-	bytes[10] = 15;
-	bytes[11] = 15;
-	bytes[12] = 15;
-	bytes[13] = 15;
-	bytes[14] = 15;
-	bytes[15] = 15;
-	bytes[16] = 15;
-
-	enqueue(bytes);
-	// processSendQueue();
-	// }
+	Packet packet = Packet.obtain(eMessageType.WriteBuffer, 0);
+
+	packet.put(31);
+	for (int i = 0; i < 12; i++)
+	    packet.put(15);
+
+	enqueue(packet);
     }
 
     public void enableButton(int button, int type, int code, int mode) {
 	if (Preferences.logging)
 	    Log.d(MetaWatchStatus.TAG, "Protocol.enableButton(): button=" + button + " type=" + type + " code=" + code);
-	byte[] bytes = new byte[9];
-
-	bytes[0] = eMessageType.start;
-	bytes[1] = (byte) (bytes.length + 2); // length
-	bytes[2] = eMessageType.EnableButtonMsg.msg; // enable button
-	bytes[3] = 0; // not used
 
-	bytes[4] = (byte) mode; // (idle,etc)
-	bytes[5] = (byte) button;
-	bytes[6] = (byte) type; // immediate
-	bytes[7] = 0x34;
-	bytes[8] = (byte) code;
+	Packet packet = Packet.obtain(eMessageType.EnableButtonMsg, 0); // not used
+	packet.put(mode); // (idle,etc)
+	packet.put(button);
+	packet.put(type); // immediate
+	packet.put(0x34);
+	packet.put(code);
 
-	enqueue(bytes);
+	enqueue(packet);
     }
 
     public void disableButton(int button, int type, int mode) {
 	if (Preferences.logging)
 	    Log.d(MetaWatchStatus.TAG, "Protocol.disableButton(): button=" + button + " type=" + type);
-	byte[] bytes = new byte[7];
 
-	bytes[0] = eMessageType.start;
-	bytes[1] = (byte) (bytes.length + 2); // length
-	bytes[2] = eMessageType.DisableButtonMsg.msg; // disable button
-	bytes[3] = 0; // not used
+	Packet packet = Packet.obtain(eMessageType.DisableButtonMsg, 0); // not used
+	packet.put(mode); // (idle,etc)
+	packet.put(button);
+	packet.put(type); // immediate
 
-	bytes[4] = (byte) mode; // (idle,etc)
-	bytes[5] = (byte) button;
-	bytes[6] = (byte) type; // immediate
-
-	enqueue(bytes);
+	enqueue(packet);
     }
 
     public void readButtonConfiguration() {
 	if (Preferences.logging)
 	    Log.d(MetaWatchStatus.TAG, "Protocol.readButtonConfiguration()");
-	byte[] bytes = new byte[9];
-
-	bytes[0] = eMessageType.start;
-	bytes[1] = (byte) (bytes.length + 2); // length
-	bytes[2] = eMessageType.ReadButtonConfigMsg.msg; //
-	bytes[3] = 0; // not used
 
-	bytes[4] = 0;
-	bytes[5] = 1;
-	bytes[6] = 2; // press type
-	bytes[7] = 0x34;
-	bytes[8] = 0;
+	Packet packet = Packet.obtain(eMessageType.ReadButtonConfigMsg, 0); // not used
+	packet.put(0);
+	packet.put(1);
+	packet.put(2); // press type
+	packet.put(0x34);
+	packet.put(0);
 
-	enqueue(bytes);
+	enqueue(packet);
     }
 
     public void configureMode() {
 	if (Preferences.logging)
 	    Log.d(MetaWatchStatus.TAG, "Protocol.configureMode()");
-	byte[] bytes = new byte[6];
-
-	bytes[0] = eMessageType.start;
-	bytes[1] = (byte) (bytes.length + 2); // length
-	bytes[2] = eMessageType.ConfigureMode.msg; //
-	bytes[3] = 0;
 
-	bytes[4] = 10;
-	bytes[5] = (byte) (MetaWatchService.Preferences.invertLCD ? 1 : 0); // invert
+	Packet packet = Packet.obtain(eMessageType.ConfigureMode, 0);
+	packet.put(10);
+	packet.put(MetaWatchService.Preferences.invertLCD ? 1 : 0); // invert
 
-	enqueue(bytes);
+	enqueue(packet);
     }
 
     public void configureIdleBufferSize(boolean showClock) {
 	if (Preferences.logging)
 	    Log.d(MetaWatchStatus.TAG, "Protocol.configureIdleBufferSize(" + showClock + ")");
-	
-	byte[] bytes = new byte[5];
-	
-	bytes[0] = eMessageType.start;
-	bytes[1] = (byte) (bytes.length + 2); // length
-	bytes[2] = eMessageType.ConfigureIdleBufferSize.msg;
-	bytes[3] = 0;
-	bytes[4] = (byte) (showClock ? 0 : 1);
-	
-	enqueue(bytes);
+
+	Packet packet = Packet.obtain(eMessageType.ConfigureIdleBufferSize, 0);
+	packet.put(showClock ? 0 : 1);
+
+	enqueue(packet);
     }
 
     public void getDeviceType() {
 	if (Preferences.logging)
 	    Log.d(MetaWatchStatus.TAG, "Protocol.getDeviceType()");
-	byte[] bytes = new byte[4];
 
-	bytes[0] = eMessageType.start;
-	bytes[1] = (byte) (bytes.length + 2); // length
-	bytes[2] = eMessageType.GetDeviceType.msg;
-	bytes[3] = 0;
-
-	enqueue(bytes);
+	enqueue(Packet.obtain(eMessageType.GetDeviceType, 0));
     }
 
     public void readBatteryVoltage() {
 	if (Preferences.logging)
 	    Log.d(MetaWatchStatus.TAG, "Protocol.readBatteryVoltage()");
-	byte[] bytes = new byte[4];
-
-	bytes[0] = eMessageType.start;
-	bytes[1] = (byte) (bytes.length + 2); // length
-	bytes[2] = eMessageType.ReadBatteryVoltageMsg.msg;
-	bytes[3] = 0;
 
-	enqueue(bytes);
+	enqueue(Packet.obtain(eMessageType.ReadBatteryVoltageMsg, 0));
     }
 
     public void readLightSensor() {
 	if (Preferences.logging)
 	    Log.d(MetaWatchStatus.TAG, "Protocol.readLightSensor()");
-	byte[] bytes = new byte[4];
 
-	bytes[0] = eMessageType.start;
-	bytes[1] = (byte) (bytes.length + 2); // length
-	bytes[2] = eMessageType.ReadLightSensorMsg.msg;
-	bytes[3] = 0;
-
-	enqueue(bytes);
+	enqueue(Packet.obtain(eMessageType.ReadLightSensorMsg, 0));
     }
 
     public void setTimeDateFormat(Context context) {
@@ -590,248 +452,83 @@ public class Protocol {
     public void setNvalLcdInvert(boolean invert) {
 	if (Preferences.logging)
 	    Log.d(MetaWatchStatus.TAG, "Protocol.setNvalLcdInvert()");
-	byte[] bytes = new byte[8];
-
-	bytes[0] = eMessageType.start;
-	bytes[1] = (byte) (bytes.length + 2); // length
-	bytes[2] = eMessageType.NvalOperationMsg.msg; // nval operations
-	bytes[3] = 0x02; // write
-
-	bytes[4] = 0x03;
-	bytes[5] = 0x00;
-	bytes[6] = 0x01; // size
-	if (invert)
-	    bytes[7] = 0x01; // 24 hour mode
-	else
-	    bytes[7] = 0x00; // 12 hour mode
 
-	enqueue(bytes);
+	enqueue(createNvalWrite(0x0003, invert));
     }
 
     public void setNvalTime(boolean militaryTime) {
 	if (Preferences.logging)
 	    Log.d(MetaWatchStatus.TAG, "Protocol.setNvalTime()");
-	byte[] bytes = new byte[8];
-
-	bytes[0] = eMessageType.start;
-	bytes[1] = (byte) (bytes.length + 2); // length
-	bytes[2] = eMessageType.NvalOperationMsg.msg; // nval operations
-	bytes[3] = 0x02; // write
-
-	bytes[4] = 0x09;
-	bytes[5] = 0x20;
-	bytes[6] = 0x01; // size
-	if (militaryTime)
-	    bytes[7] = 0x01; // 24 hour mode
-	else
-	    bytes[7] = 0x00; // 12 hour mode
 
-	enqueue(bytes);
+	enqueue(createNvalWrite(0x2009, militaryTime)); // 24 hour mode
     }
 
     public void setNvalDate(boolean dayFirst) {
 	if (Preferences.logging)
 	    Log.d(MetaWatchStatus.TAG, "Protocol.setNvalDate()");
-	byte[] bytes = new byte[8];
-
-	bytes[0] = eMessageType.start;
-	bytes[1] = (byte) (bytes.length + 2); // length
-	bytes[2] = eMessageType.NvalOperationMsg.msg; // nval operations
-	bytes[3] = 0x02; // write
-
-	bytes[4] = 0x0a;
-	bytes[5] = 0x20;
-	bytes[6] = 0x01; // size
-	if (dayFirst)
-	    bytes[7] = 0x01; // 24 hour mode
-	else
-	    bytes[7] = 0x00; // 12 hour mode
 
-	enqueue(bytes);
+	enqueue(createNvalWrite(0x200a, dayFirst));
+    }
+
+    private Packet createNvalWrite(int identifier, boolean value) {
+	Packet packet = Packet.obtain(eMessageType.NvalOperationMsg, 0x02); // write
+	packet.putShort(identifier);
+	packet.put(0x01); // size
+	packet.put(value ? 0x01 : 0x00);
+	return packet;
     }
 
     public void ledChange(boolean ledOn) {
 	if (Preferences.logging)
 	    Log.d(MetaWatchStatus.TAG, "Protocol.ledChange()");
-	byte[] bytes = new byte[4];
 
-	bytes[0] = eMessageType.start;
-	bytes[1] = (byte) (bytes.length + 2); // length
-	bytes[2] = eMessageType.LedChange.msg;
-	bytes[3] = ledOn ? (byte) 0x01 : (byte) 0x00;
-
-	enqueue(bytes);
+	enqueue(Packet.obtain(eMessageType.LedChange, ledOn ? 0x01 : 0x00));
     }
 
     public byte[] createOled1line(Context context, Bitmap icon, String line) {
-	int offset = 0;
+	byte[] display = new byte[OledEncoder.FRAME_BYTES];
 
+	OledFont.large(context).draw(line, icon != null ? 17 : 0, display, 0, OledEncoder.WIDTH, OledEncoder.WIDTH);
 	if (icon != null)
-	    offset += 17;
-
-	Bitmap image = Bitmap.createBitmap(80, 16, Bitmap.Config.RGB_565);
-	Canvas canvas = new Canvas(image);
-	Paint paint = new Paint();
-	paint.setColor(Color.BLACK);
-	paint.setTextSize(FontCache.instance(context).Large.size);
-	paint.setTypeface(FontCache.instance(context).Large.face);
-	canvas.drawColor(Color.WHITE);
-	canvas.drawText(line, offset, 14, paint);
-
-	if (icon != null) {
-	    canvas.drawBitmap(icon, 0, 0, null);
-	}
-
-	int poleInt[] = new int[16 * 80];
-	image.getPixels(poleInt, 0, 80, 0, 0, 80, 16);
-
-	byte[] display = new byte[160];
-
-	for (int i = 0; i < 160; i++) {
-	    boolean[] column = new boolean[8];
-	    for (int j = 0; j < 8; j++) {
-		if (i < 80) {
-		    if (poleInt[80 * j + i] == Color.WHITE)
-			column[j] = false;
-		    else
-			column[j] = true;
-		} else {
-		    if (poleInt[80 * 8 + 80 * j + i - 80] == Color.WHITE)
-			column[j] = false;
-		    else
-			column[j] = true;
-		}
-	    }
-	    for (int j = 0; j < 8; j++) {
-		if (column[j])
-		    display[i] += Math.pow(2, j);
-	    }
-	}
+	    OledEncoder.blit(icon, 0, 0, display);
 
 	return display;
     }
 
     public byte[] createOled2lines(Context context, String line1, String line2) {
-	int offset = 0;
-
-	/* Convert newlines to spaces */
-	line1 = line1.replace('\n', ' ');
-	line2 = line2.replace('\n', ' ');
+	byte[] display = new byte[OledEncoder.FRAME_BYTES];
 
-	Bitmap image = Bitmap.createBitmap(80, 16, Bitmap.Config.RGB_565);
-	Canvas canvas = new Canvas(image);
-	Paint paint = new Paint();
-	paint.setColor(Color.BLACK);
-	paint.setTextSize(FontCache.instance(context).Small.size);
-	paint.setTypeface(FontCache.instance(context).Small.face);
-	canvas.drawColor(Color.WHITE);
-	canvas.drawText(line1, offset, 7, paint);
-	canvas.drawText(line2, offset, 15, paint);
-
-	int poleInt[] = new int[16 * 80];
-	image.getPixels(poleInt, 0, 80, 0, 0, 80, 16);
-
-	byte[] display = new byte[160];
-
-	for (int i = 0; i < 160; i++) {
-	    boolean[] column = new boolean[8];
-	    for (int j = 0; j < 8; j++) {
-		if (i < 80) {
-		    if (poleInt[80 * j + i] == Color.WHITE)
-			column[j] = false;
-		    else
-			column[j] = true;
-		} else {
-		    if (poleInt[80 * 8 + 80 * j + i - 80] == Color.WHITE)
-			column[j] = false;
-		    else
-			column[j] = true;
-		}
-	    }
-	    for (int j = 0; j < 8; j++) {
-		if (column[j])
-		    display[i] += Math.pow(2, j);
-	    }
-	}
+	OledFont font = OledFont.small(context);
+	font.draw(line1, 0, display, 0, 0, OledEncoder.WIDTH);
+	font.draw(line2, 0, display, OledEncoder.WIDTH, 0, OledEncoder.WIDTH);
 
 	return display;
     }
 
-    public int createOled2linesLong(Context context, String line, byte[] display) {
-	int offset = 0 - 79;
-
-	/* Replace newlines with spaces */
-	line = line.replace('\n', ' ');
-
-	final int width = 800;
-
-	Bitmap image = Bitmap.createBitmap(width, 8, Bitmap.Config.RGB_565);
-	Canvas canvas = new Canvas(image);
-	Paint paint = new Paint();
-	paint.setColor(Color.BLACK);
-	paint.setTextSize(FontCache.instance(context).Small.size);
-	paint.setTypeface(FontCache.instance(context).Small.face);
-	canvas.drawColor(Color.WHITE);
-	canvas.drawText(line, offset, 7, paint);
-
-	int poleInt[] = new int[8 * width];
-	image.getPixels(poleInt, 0, width, 0, 0, width, 8);
-
-	for (int i = 0; i < width; i++) {
-	    boolean[] column = new boolean[8];
-	    for (int j = 0; j < 8; j++) {
-		if (poleInt[width * j + i] == Color.WHITE)
-		    column[j] = false;
-		else
-		    column[j] = true;
-	    }
-	    for (int j = 0; j < 8; j++) {
-		if (column[j])
-		    display[i] += Math.pow(2, j);
-	    }
-	}
-
-	return (int) paint.measureText(line) - 79;
+    /*
+     * line as it continues past the first 80 columns, which
+     * createOled2lines() already shows, for the watch to scroll through.
+     */
+    public OledScroller createOled2linesLong(Context context, String line) {
+	return new OledScroller(OledFont.small(context), line);
     }
 
     public void sendOledBitmap(Bitmap bitmap, int bufferType, int page) {
+	sendOledBitmap(bitmap, 0, bufferType, page);
+    }
+
+    /*
+     * Sends the 80x16 area of bitmap starting at row top to one page of
+     * bufferType.
+     */
+    public void sendOledBitmap(Bitmap bitmap, int top, int bufferType, int page) {
 	if (bitmap == null)
 	    return;
 
 	if (Preferences.logging)
 	    Log.d(MetaWatchStatus.TAG, "Protocol.sendOledBitmap()");
 
-	int pixelArray[] = new int[16 * 80];
-	bitmap.getPixels(pixelArray, 0, 80, 0, 0, 80, 16);
-
-	sendOledArray(pixelArray, bufferType, page);
-    }
-
-    private void sendOledArray(int[] pixelArray, int bufferType, int page) {
-	byte[] send = new byte[160];
-
-	for (int i = 0; i < 160; i++) {
-	    boolean[] column = new boolean[8];
-	    for (int j = 0; j < 8; j++) {
-		if (i < 80) {
-		    if (pixelArray[80 * j + i] == Color.WHITE)
-			column[j] = false;
-		    else
-			column[j] = true;
-		} else {
-		    if (pixelArray[80 * 8 + 80 * j + i - 80] == Color.WHITE)
-			column[j] = false;
-		    else
-			column[j] = true;
-		}
-	    }
-	    for (int j = 0; j < 8; j++) {
-		if (column[j])
-		    send[i] += Math.pow(2, j);
-	    }
-	}
-
-	sendOledBuffer(send, bufferType, page, false);
+	sendOledBuffer(OledEncoder.encode(bitmap, top), bufferType, page, false);
     }
 
     public void sendOledBuffer(byte[] display, int bufferType, int page, boolean scroll) {
@@ -839,26 +536,19 @@ public class Protocol {
 	    Log.d(MetaWatchStatus.TAG, "Protocol.sendOledBuffer()");
 	try {
 
-	    byte[] bytes;
-
 	    for (int a = 0; a < 160; a += 20) {
-		bytes = new byte[27];
-		bytes[0] = eMessageType.start;
-		bytes[1] = (byte) (bytes.length + 2); // length
-		bytes[2] = eMessageType.OledWriteBufferMsg.msg; // oled write
+		Packet packet;
 		if (scroll && bufferType == WatchBuffers.NOTIFICATION)
-		    bytes[3] = (byte) 0x82; // notification + scroll
+		    packet = Packet.obtain(eMessageType.OledWriteBufferMsg, 0x82); // notification + scroll
 		else
-		    bytes[3] = (byte) bufferType; // notification
-
-		bytes[4] = (byte) page;
+		    packet = Packet.obtain(eMessageType.OledWriteBufferMsg, bufferType); // notification
 
-		bytes[5] = (byte) a; // row
-		bytes[6] = 0x14; // size
+		packet.put(page);
+		packet.put(a); // row
+		packet.put(0x14); // size
+		packet.put(display, a, 20);
 
-		System.arraycopy(display, a, bytes, 7, 20);
-
-		enqueue(bytes);
+		enqueue(packet);
 	    }
 
 	    updateOledDisplay(page == 0, bufferType, scroll);
@@ -872,24 +562,21 @@ public class Protocol {
     public void updateOledDisplay(boolean top, int bufferType, boolean scroll) {
 	if (Preferences.logging)
 	    Log.d(MetaWatchStatus.TAG, "Protocol.updateOledNotification(): top=" + top + " scroll=" + scroll);
-	byte[] bytes = new byte[7];
 
-	bytes[0] = eMessageType.start;
-	bytes[1] = (byte) (bytes.length + 2); // length
-	bytes[2] = eMessageType.OledWriteBufferMsg.msg; // oled write
+	Packet packet;
 	if (scroll && bufferType == WatchBuffers.NOTIFICATION)
-	    bytes[3] = (byte) 0xC2; // notification, activate, scroll
+	    packet = Packet.obtain(eMessageType.OledWriteBufferMsg, 0xC2); // notification, activate, scroll
 	else
-	    bytes[3] = (byte) (0x40 + bufferType); // activate
+	    packet = Packet.obtain(eMessageType.OledWriteBufferMsg, 0x40 + bufferType); // activate
 
 	if (top)
-	    bytes[4] = 0x00; // top page
+	    packet.put(0x00); // top page
 	else
-	    bytes[4] = 0x01; // bottom page
-	bytes[5] = 0x00; // row
-	bytes[6] = 0x00; // size
+	    packet.put(0x01); // bottom page
+	packet.put(0x00); // row
+	packet.put(0x00); // size
 
-	enqueue(bytes);
+	enqueue(packet);
     }
 
     public void updateOledsNotification() {
@@ -900,21 +587,18 @@ public class Protocol {
     public void sendOledBuffer(boolean startScroll) {
 	if (Preferences.logging)
 	    Log.d(MetaWatchStatus.TAG, "Protocol.sendOledBuffer(): startScroll=" + startScroll);
-	byte[] bytes = new byte[25];
-	bytes[0] = eMessageType.start;
-	bytes[1] = (byte) (bytes.length + 2); // length
-	bytes[2] = eMessageType.OledWriteScrollBufferMsg.msg; // write oled
-							      // buffer
+
+	Packet packet;
 	if (startScroll)
-	    bytes[3] = 0x02; // not last, start
+	    packet = Packet.obtain(eMessageType.OledWriteScrollBufferMsg, 0x02); // not last, start
 	else
-	    bytes[3] = 0x00; // not last
+	    packet = Packet.obtain(eMessageType.OledWriteScrollBufferMsg, 0x00); // not last
 
-	bytes[4] = 20; // size
+	packet.put(20); // size
 	for (int i = 0; i < 20; i++)
-	    bytes[5 + i] = (byte) 0xAA;
+	    packet.put(0xAA);
 
-	enqueue(bytes);
+	enqueue(packet);
     }
 
     public void sendOledBufferPart(byte[] display, int start, int length, boolean startScroll, boolean last) {
@@ -923,27 +607,22 @@ public class Protocol {
 	    Log.d(MetaWatchStatus.TAG, "Protocol.sendOledBufferPart(): sending oled buffer part, start: " + start + ", length: " + length);
 
 	for (int j = start; j < start + length; j += 20) {
-	    byte[] bytes = new byte[25];
-	    bytes[0] = eMessageType.start;
-	    bytes[1] = (byte) (bytes.length + 2); // length
-	    bytes[2] = eMessageType.OledWriteScrollBufferMsg.msg; // write oled
-								  // buffer
-	    bytes[3] = 0x00; // not last
+	    int options = 0x00; // not last
 
 	    if (j + 20 >= start + length) { // is last packet
 		if (startScroll)
-		    bytes[3] = 0x02; // not last, start
+		    options = 0x02; // not last, start
 		if (last)
-		    bytes[3] = 0x01; // last
+		    options = 0x01; // last
 		if (startScroll && last)
-		    bytes[3] = 0x03; // last, start
+		    options = 0x03; // last, start
 	    }
 
-	    bytes[4] = 20; // size
-	    for (int i = 0; i < 20; i++)
-		bytes[5 + i] = display[j + i];
+	    Packet packet = Packet.obtain(eMessageType.OledWriteScrollBufferMsg, options);
+	    packet.put(20); // size
+	    packet.put(display, j, 20);
 
-	    enqueue(bytes);
+	    enqueue(packet);
 	}
 
     }
@@ -951,13 +630,7 @@ public class Protocol {
     public void changeMode(int mode) {
 	if (Preferences.logging)
 	    Log.d(MetaWatchStatus.TAG, "Protocol.changeMode()");
-	byte[] bytes = new byte[4];
-
-	bytes[0] = eMessageType.start;
-	bytes[1] = (byte) (bytes.length + 2); // length
-	bytes[2] = eMessageType.ChangeModeMsg.msg;
-	bytes[3] = (byte) (mode + 0x10);
 
-	enqueue(bytes);
+	enqueue(Packet.obtain(eMessageType.ChangeModeMsg, mode + 0x10));
     }
 }
\ No newline at end of file
@@ -0,0 +1,153 @@
+package org.metawatch.manager;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import org.metawatch.manager.MetaWatchService.WatchBuffers;
+
+/*
+ * Outgoing packet queue for the watch. Packets are split into classes and
+ * always taken from the most urgent non-empty class, so a vibrate doesn't
+ * wait behind a full idle redraw. Within a class packets stay in order, which
+ * keeps each buffer's rows ahead of the UpdateDisplay that shows them.
+ *
+ * Switching the display to a notification drops any idle or application
+ * switch still waiting, which would otherwise go out after it and hide the
+ * notification before its timeout.
+ */
+public class SendQueue {
+
+    public static final int CONTROL = 0;
+    public static final int NOTIFICATION = 1;
+    public static final int IDLE = 2;
+    public static final int BACKGROUND = 3;
+
+    private static final int CLASSES = 4;
+
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<Packet>[] queues = new ArrayDeque[CLASSES];
+    private int size = 0;
+
+    public SendQueue() {
+	for (int i = 0; i < CLASSES; i++)
+	    queues[i] = new ArrayDeque<Packet>();
+    }
+
+    public synchronized void add(Packet packet) {
+	if (packet == null || packet.length < 3)
+	    return;
+
+	final int messageClass = classify(packet);
+	if (messageClass == IDLE && supersede(queues[IDLE], packet)) {
+	    packet.recycle();
+	    return;
+	}
+	if (messageClass == NOTIFICATION && isDisplaySwitch(packet))
+	    dropDisplaySwitches(queues[IDLE]);
+
+	queues[messageClass].addLast(packet);
+	size++;
+	notifyAll();
+    }
+
+    public synchronized Packet take() throws InterruptedException {
+	while (size == 0)
+	    wait();
+	return poll();
+    }
+
+    public synchronized Packet peek() {
+	for (int i = 0; i < CLASSES; i++) {
+	    if (!queues[i].isEmpty())
+		return queues[i].peekFirst();
+	}
+	return null;
+    }
+
+    public synchronized Packet poll() {
+	for (int i = 0; i < CLASSES; i++) {
+	    if (!queues[i].isEmpty()) {
+		size--;
+		return queues[i].pollFirst();
+	    }
+	}
+	return null;
+    }
+
+    public synchronized int size() {
+	return size;
+    }
+
+    public synchronized int size(int messageClass) {
+	return queues[messageClass].size();
+    }
+
+    public synchronized void clear() {
+	for (int i = 0; i < CLASSES; i++) {
+	    for (Packet packet : queues[i])
+		packet.recycle();
+	    queues[i].clear();
+	}
+	size = 0;
+    }
+
+    /*
+     * Row data still waiting to go out for the same buffer and rows is
+     * replaced in place rather than sent twice.
+     */
+    private static boolean supersede(ArrayDeque<Packet> queue, Packet packet) {
+	final byte[] data = packet.data;
+	if (data[2] != eMessageType.WriteBuffer.msg || packet.length < 18)
+	    return false;
+
+	for (Iterator<Packet> it = queue.iterator(); it.hasNext();) {
+	    Packet queued = it.next();
+	    final byte[] other = queued.data;
+	    if (other[2] == eMessageType.WriteBuffer.msg && queued.length == packet.length && other[3] == data[3] && other[4] == data[4] && other[17] == data[17]) {
+		System.arraycopy(data, 0, other, 0, packet.length);
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    private void dropDisplaySwitches(ArrayDeque<Packet> queue) {
+	for (Iterator<Packet> it = queue.iterator(); it.hasNext();) {
+	    Packet queued = it.next();
+	    if (isDisplaySwitch(queued)) {
+		it.remove();
+		queued.recycle();
+		size--;
+	    }
+	}
+    }
+
+    private static boolean isDisplaySwitch(Packet packet) {
+	final byte type = packet.data[2];
+	return type == eMessageType.UpdateDisplay.msg || type == eMessageType.ChangeModeMsg.msg || type == eMessageType.OledChangeModeMsg.msg;
+    }
+
+    static int classify(Packet packet) {
+	final byte[] data = packet.data;
+	final byte type = data[2];
+
+	if (type == eMessageType.WriteBuffer.msg || type == eMessageType.UpdateDisplay.msg || type == eMessageType.ChangeModeMsg.msg || type == eMessageType.LoadTemplate.msg || type == eMessageType.OledWriteBufferMsg.msg || type == eMessageType.OledChangeModeMsg.msg)
+	    return bufferClass(data[3] & 3);
+
+	if (type == eMessageType.OledWriteScrollBufferMsg.msg)
+	    return NOTIFICATION;
+
+	// Belongs with the idle rows and UpdateDisplay sent around it
+	if (type == eMessageType.ConfigureIdleBufferSize.msg)
+	    return IDLE;
+
+	if (type == eMessageType.ReadBatteryVoltageMsg.msg || type == eMessageType.ReadLightSensorMsg.msg)
+	    return BACKGROUND;
+
+	return CONTROL;
+    }
+
+    private static int bufferClass(int bufferType) {
+	return bufferType == WatchBuffers.NOTIFICATION ? NOTIFICATION : IDLE;
+    }
+}
@@ -0,0 +1,245 @@
+package org.metawatch.manager;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.metawatch.manager.MetaWatchService.Preferences;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+
+/*
+ * Background work that used to start its own threads and executors runs on a
+ * few shared lanes instead, each one thread working through a bounded queue:
+ *
+ * IO - content providers, network and files
+ * RENDER - drawing the idle screen and widgets
+ * TRANSPORT - sequences of commands to the watch, like showing notifications
+ *
+ * A task posted with a key is dropped if one with the same key is still
+ * waiting, so bursts of the same refresh request only run once. Keyed tasks
+ * are never dropped for a full lane: there's at most one of each waiting,
+ * and some of them, like the weather and battery poll, repost themselves.
+ * Each lane counts what it ran, coalesced and dropped, how deep its queue
+ * got and how long tasks waited and ran, see getStats().
+ *
+ * The socket reader and the packet writer keep their own threads, they block
+ * for as long as the connection lasts.
+ */
+public class TaskScheduler {
+
+    public static final int IO = 0;
+    public static final int RENDER = 1;
+    public static final int TRANSPORT = 2;
+
+    private static final String[] NAMES = { "io", "render", "transport" };
+    private static final int[] PRIORITIES = { Process.THREAD_PRIORITY_BACKGROUND, Process.THREAD_PRIORITY_DEFAULT, Process.THREAD_PRIORITY_DEFAULT };
+
+    // Past this, new tasks without a key are dropped rather than piling up
+    // behind a stuck one
+    private static final int MAX_QUEUED = 32;
+
+    private static class Lane {
+	final int id;
+	final HandlerThread thread;
+	final Handler handler;
+	final Map<String, Task> pending = new HashMap<String, Task>();
+
+	int queued = 0;
+	int maxQueued = 0;
+	long posted = 0;
+	long run = 0;
+	long coalesced = 0;
+	long dropped = 0;
+	long waitTotal = 0;
+	long waitMax = 0;
+	long runTotal = 0;
+	long runMax = 0;
+
+	Lane(int id) {
+	    this.id = id;
+	    thread = new HandlerThread("TaskScheduler." + NAMES[id], PRIORITIES[id]);
+	    thread.start();
+	    handler = new Handler(thread.getLooper());
+	}
+    }
+
+    private static class Task implements Runnable {
+	final Lane lane;
+	final String key;
+	final Runnable runnable;
+	final long due;
+
+	Task(Lane lane, String key, Runnable runnable, long due) {
+	    this.lane = lane;
+	    this.key = key;
+	    this.runnable = runnable;
+	    this.due = due;
+	}
+
+	public void run() {
+	    final long start = SystemClock.uptimeMillis();
+	    synchronized (TaskScheduler.class) {
+		lane.queued--;
+		if (key != null && lane.pending.get(key) == this)
+		    lane.pending.remove(key);
+		final long wait = start - due;
+		lane.waitTotal += wait;
+		lane.waitMax = Math.max(lane.waitMax, wait);
+	    }
+
+	    // An interrupt meant for the previous task mustn't cut this one short
+	    Thread.interrupted();
+	    try {
+		runnable.run();
+	    } catch (Throwable t) {
+		if (Preferences.logging)
+		    Log.e(MetaWatchStatus.TAG, "TaskScheduler: " + NAMES[lane.id] + " task failed", t);
+	    }
+
+	    final long time = SystemClock.uptimeMillis() - start;
+	    synchronized (TaskScheduler.class) {
+		lane.run++;
+		lane.runTotal += time;
+		lane.runMax = Math.max(lane.runMax, time);
+	    }
+	}
+    }
+
+    private static final Lane[] sLanes = new Lane[NAMES.length];
+    // Set by destroy(), so a receiver or observer firing after the service
+    // is gone doesn't start threads nobody will quit
+    private static boolean sDestroyed = false;
+
+    private TaskScheduler() {
+    }
+
+    public static boolean post(int lane, Runnable task) {
+	return postDelayed(lane, null, task, 0);
+    }
+
+    public static boolean post(int lane, String key, Runnable task) {
+	return postDelayed(lane, key, task, 0);
+    }
+
+    /*
+     * Queues task to run on lane after delay ms. If key isn't null and a task
+     * with that key is still waiting, this one is dropped in its favour.
+     * Returns false if the task was thrown away because the lane is full
+     * or the scheduler has been destroyed.
+     */
+    public static synchronized boolean postDelayed(int id, String key, Runnable runnable, long delay) {
+	if (sDestroyed) {
+	    if (Preferences.logging)
+		Log.w(MetaWatchStatus.TAG, "TaskScheduler: destroyed, dropping " + (key != null ? key : "task"));
+	    return false;
+	}
+
+	Lane lane = lane(id);
+	lane.posted++;
+
+	if (key != null && lane.pending.containsKey(key)) {
+	    lane.coalesced++;
+	    return true;
+	}
+	if (key == null && lane.queued >= MAX_QUEUED) {
+	    lane.dropped++;
+	    if (Preferences.logging)
+		Log.w(MetaWatchStatus.TAG, "TaskScheduler: " + NAMES[id] + " lane full, dropping " + (key != null ? key : "task"));
+	    return false;
+	}
+
+	final long due = SystemClock.uptimeMillis() + delay;
+	Task task = new Task(lane, key, runnable, due);
+	if (key != null)
+	    lane.pending.put(key, task);
+	lane.queued++;
+	lane.maxQueued = Math.max(lane.maxQueued, lane.queued);
+	lane.handler.postAtTime(task, due);
+	return true;
+    }
+
+    /*
+     * Removes the waiting task with key, if there is one. A task that's
+     * already running carries on.
+     */
+    public static synchronized void cancel(int id, String key) {
+	Lane lane = sLanes[id];
+	if (lane == null)
+	    return;
+	Task task = lane.pending.remove(key);
+	if (task != null) {
+	    lane.handler.removeCallbacks(task);
+	    lane.queued--;
+	}
+    }
+
+    public static synchronized boolean isPending(int id, String key) {
+	Lane lane = sLanes[id];
+	return lane != null && lane.pending.containsKey(key);
+    }
+
+    /*
+     * Interrupts whatever is running on lane, for tasks that sleep or wait.
+     */
+    public static synchronized void interrupt(int id) {
+	Lane lane = sLanes[id];
+	if (lane != null)
+	    lane.thread.interrupt();
+    }
+
+    public static synchronized String getStats() {
+	StringBuilder builder = new StringBuilder();
+	for (int id = 0; id < sLanes.length; id++) {
+	    Lane lane = sLanes[id];
+	    if (builder.length() > 0)
+		builder.append('\n');
+	    builder.append(NAMES[id]).append(": ");
+	    if (lane == null) {
+		builder.append("not started");
+		continue;
+	    }
+	    builder.append(lane.posted).append(" posted, ").append(lane.run).append(" run, ");
+	    builder.append(lane.queued).append(" queued (max ").append(lane.maxQueued).append("), ");
+	    builder.append(lane.coalesced).append(" coalesced, ");
+	    builder.append(lane.dropped).append(" dropped\n");
+	    builder.append("  wait avg ").append(lane.run > 0 ? lane.waitTotal / lane.run : 0).append(" ms, max ").append(lane.waitMax).append(" ms\n");
+	    builder.append("  run avg ").append(lane.run > 0 ? lane.runTotal / lane.run : 0).append(" ms, max ").append(lane.runMax).append(" ms");
+	}
+	return builder.toString();
+    }
+
+    /*
+     * Lets tasks be posted again after destroy(), for a service that's
+     * created again in the same process.
+     */
+    public static synchronized void start() {
+	sDestroyed = false;
+    }
+
+    /*
+     * Throws away everything queued and stops the lanes. Whatever is running
+     * is interrupted and left to finish, and nothing more is accepted until
+     * start().
+     */
+    public static synchronized void destroy() {
+	sDestroyed = true;
+	for (int id = 0; id < sLanes.length; id++) {
+	    Lane lane = sLanes[id];
+	    if (lane == null)
+		continue;
+	    lane.handler.removeCallbacksAndMessages(null);
+	    lane.thread.interrupt();
+	    lane.thread.quit();
+	    sLanes[id] = null;
+	}
+    }
+
+    private static Lane lane(int id) {
+	if (sLanes[id] == null)
+	    sLanes[id] = new Lane(id);
+	return sLanes[id];
+    }
+}
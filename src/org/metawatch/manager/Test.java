@@ -28,6 +28,8 @@
 
 package org.metawatch.manager;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Random;
@@ -38,11 +40,16 @@ import org.metawatch.manager.MetaWatchService.WatchType;
 import org.metawatch.manager.Notification.VibratePattern;
 import org.metawatch.manager.apps.AppManager;
 
+import android.app.AlertDialog;
 import android.content.Context;
+import android.graphics.Typeface;
 import android.os.Bundle;
 import android.preference.Preference;
 import android.preference.Preference.OnPreferenceClickListener;
 import android.preference.PreferenceScreen;
+import android.widget.ScrollView;
+import android.widget.TextView;
+import android.widget.Toast;
 
 import com.actionbarsherlock.app.ActionBar;
 import com.actionbarsherlock.app.SherlockPreferenceActivity;
@@ -93,7 +100,7 @@ public class Test extends SherlockPreferenceActivity {
 		    // "Notification", ipsum);
 		    Notification.getInstance().addTextNotification(context, "Notification", new VibratePattern(true, 500, 500, 3), Notification.getInstance().getDefaultNotificationTimeout(context));
 		} else {
-		    Notification.getInstance().addOledNotification(context, Protocol.getInstance(context).createOled2lines(context, "Display A, line 1", "Display A, line 2"), Protocol.getInstance(context).createOled2lines(context, "Display B, line 1", "Display B, line 2"), null, 0, null, "notification");
+		    Notification.getInstance().addOledNotification(context, Protocol.getInstance(context).createOled2lines(context, "Display A, line 1", "Display A, line 2"), Protocol.getInstance(context).createOled2lines(context, "Display B, line 1", "Display B, line 2"), null, null, "notification");
 		    if (Preferences.logging)
 			Log.d(MetaWatchStatus.TAG, "Notification timeout is: " + Notification.getInstance().getDefaultNotificationTimeout(context));
 
@@ -362,6 +369,74 @@ public class Test extends SherlockPreferenceActivity {
 	    }
 	});
 
+	preferenceScreen.findPreference("trace_view").setOnPreferenceClickListener(new OnPreferenceClickListener() {
+	    public boolean onPreferenceClick(Preference preference) {
+		PacketTrace.Entry[] entries = PacketTrace.snapshot();
+		if (entries.length == 0) {
+		    Toast.makeText(context, "No packets recorded", Toast.LENGTH_SHORT).show();
+		    return true;
+		}
+
+		TextView text = new TextView(context);
+		text.setTypeface(Typeface.MONOSPACE);
+		text.setTextSize(10);
+		text.setText(PacketTrace.format(entries));
+		ScrollView scroll = new ScrollView(context);
+		scroll.addView(text);
+
+		new AlertDialog.Builder(context).setTitle("Packet Trace").setView(scroll).setPositiveButton(android.R.string.ok, null).show();
+		return true;
+	    }
+	});
+
+	preferenceScreen.findPreference("trace_export").setOnPreferenceClickListener(new OnPreferenceClickListener() {
+	    public boolean onPreferenceClick(Preference preference) {
+		File file = new File(Utils.getExternalFilesDir(context, null), "metawatch_trace_" + System.currentTimeMillis() + ".pcap");
+		try {
+		    PacketTrace.export(PacketTrace.snapshot(), file);
+		    Toast.makeText(context, "Trace saved to " + file.getPath(), Toast.LENGTH_LONG).show();
+		} catch (IOException e) {
+		    if (Preferences.logging)
+			Log.e(MetaWatchStatus.TAG, "Test: failed to export packet trace", e);
+		    Toast.makeText(context, "Failed to save trace", Toast.LENGTH_SHORT).show();
+		}
+		return true;
+	    }
+	});
+
+	preferenceScreen.findPreference("trace_clear").setOnPreferenceClickListener(new OnPreferenceClickListener() {
+	    public boolean onPreferenceClick(Preference preference) {
+		PacketTrace.clear();
+		return true;
+	    }
+	});
+
+	preferenceScreen.findPreference("bench_crc").setOnPreferenceClickListener(new OnPreferenceClickListener() {
+	    public boolean onPreferenceClick(Preference preference) {
+		Toast.makeText(context, Benchmarks.crc(), Toast.LENGTH_LONG).show();
+		return true;
+	    }
+	});
+
+	preferenceScreen.findPreference("scheduler_stats").setOnPreferenceClickListener(new OnPreferenceClickListener() {
+	    public boolean onPreferenceClick(Preference preference) {
+		TextView text = new TextView(context);
+		text.setTypeface(Typeface.MONOSPACE);
+		text.setTextSize(10);
+		text.setText(TaskScheduler.getStats());
+
+		new AlertDialog.Builder(context).setTitle("Task Scheduler").setView(text).setPositiveButton(android.R.string.ok, null).show();
+		return true;
+	    }
+	});
+
+	preferenceScreen.findPreference("bench_dither").setOnPreferenceClickListener(new OnPreferenceClickListener() {
+	    public boolean onPreferenceClick(Preference preference) {
+		Toast.makeText(context, Benchmarks.dither(), Toast.LENGTH_LONG).show();
+		return true;
+	    }
+	});
+
 	super.onStart();
     }
 
@@ -0,0 +1,285 @@
+package org.metawatch.manager;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.metawatch.manager.MetaWatchService.Preferences;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/*
+ * Keeps a copy of a theme's pure black and white images already unpacked to
+ * 1 bit per pixel, in a file next to the theme zip, so loading one is a seek
+ * and a read instead of inflating and decoding a PNG. Images with any other
+ * colour or with transparency are left to the zip.
+ *
+ * The file is written once on the IO lane after a theme is first put in use,
+ * not for the picker's previews, and is ignored as soon as the zip it came
+ * from changes.
+ *
+ * Layout: magic, version, zip modified time and length, the number of
+ * images, the length of the index, the index (name, width, height and data
+ * offset of each image) and then the image rows, (width + 7) / 8 bytes
+ * each, least significant bit leftmost, set for black.
+ */
+public class ThemeConverter {
+
+    public static final String EXTENSION = ".1bpp";
+
+    private static final int MAGIC = 0x4d573142; // MW1B
+    private static final int VERSION = 1;
+
+    private static final int BLACK = 0xff000000;
+    private static final int WHITE = 0xffffffff;
+
+    private ThemeConverter() {
+    }
+
+    public static class Reader {
+	private static class Image {
+	    final int width;
+	    final int height;
+	    final int offset;
+
+	    Image(int width, int height, int offset) {
+		this.width = width;
+		this.height = height;
+		this.offset = offset;
+	    }
+	}
+
+	private final RandomAccessFile file;
+	private final long dataStart;
+	private final Map<String, Image> images = new HashMap<String, Image>();
+
+	private Reader(RandomAccessFile file, long dataStart) {
+	    this.file = file;
+	    this.dataStart = dataStart;
+	}
+
+	/*
+	 * The image called name, or null if it isn't in the cache.
+	 */
+	public synchronized Bitmap getBitmap(String name) {
+	    Image image = images.get(name);
+	    if (image == null)
+		return null;
+
+	    final int rowBytes = (image.width + 7) >> 3;
+	    byte[] packed = new byte[rowBytes * image.height];
+	    try {
+		file.seek(dataStart + image.offset);
+		file.readFully(packed);
+	    } catch (IOException e) {
+		return null;
+	    }
+
+	    int[] pixels = new int[image.width * image.height];
+	    for (int y = 0; y < image.height; y++) {
+		for (int x = 0; x < image.width; x++) {
+		    final boolean black = (packed[y * rowBytes + (x >> 3)] & (1 << (x & 7))) != 0;
+		    pixels[y * image.width + x] = black ? BLACK : WHITE;
+		}
+	    }
+	    return Bitmap.createBitmap(pixels, image.width, image.height, Bitmap.Config.RGB_565);
+	}
+
+	public synchronized void close() {
+	    try {
+		file.close();
+	    } catch (IOException e) {
+	    }
+	}
+    }
+
+    /*
+     * The cache for themeFile, or null if there isn't one or it's out of
+     * date.
+     */
+    public static Reader open(File themeFile) {
+	File cacheFile = getCacheFile(themeFile);
+	if (!cacheFile.exists())
+	    return null;
+
+	RandomAccessFile file = null;
+	try {
+	    file = new RandomAccessFile(cacheFile, "r");
+	    if (file.readInt() != MAGIC || file.readInt() != VERSION || file.readLong() != themeFile.lastModified() || file.readLong() != themeFile.length()) {
+		file.close();
+		return null;
+	    }
+
+	    final int count = file.readInt();
+	    byte[] index = new byte[file.readInt()];
+	    file.readFully(index);
+	    Reader reader = new Reader(file, file.getFilePointer());
+
+	    DataInputStream in = new DataInputStream(new ByteArrayInputStream(index));
+	    for (int i = 0; i < count; i++) {
+		String name = in.readUTF();
+		int width = in.readShort();
+		int height = in.readShort();
+		int offset = in.readInt();
+		reader.images.put(name, new Reader.Image(width, height, offset));
+	    }
+	    return reader;
+	} catch (IOException e) {
+	    if (file != null) {
+		try {
+		    file.close();
+		} catch (IOException x) {
+		}
+	    }
+	    return null;
+	}
+    }
+
+    /*
+     * Writes the cache for themeFile on the IO lane.
+     */
+    public static void schedule(final File themeFile) {
+	TaskScheduler.post(TaskScheduler.IO, "ThemeConverter." + themeFile.getName(), new Runnable() {
+	    public void run() {
+		convert(themeFile);
+	    }
+	});
+    }
+
+    private static void convert(File themeFile) {
+	final long modified = themeFile.lastModified();
+	final long length = themeFile.length();
+
+	ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+	ByteArrayOutputStream data = new ByteArrayOutputStream();
+	int count = 0;
+
+	ZipFile zip = null;
+	try {
+	    zip = new ZipFile(themeFile);
+
+	    DataOutputStream index = new DataOutputStream(indexBytes);
+	    Enumeration<? extends ZipEntry> entries = zip.entries();
+	    while (entries.hasMoreElements()) {
+		ZipEntry entry = entries.nextElement();
+		if (entry.isDirectory() || !BitmapCache.isBitmap(entry.getName()))
+		    continue;
+
+		InputStream in = zip.getInputStream(entry);
+		byte[] buffer;
+		try {
+		    buffer = BitmapCache.readFully(in, entry.getSize());
+		} finally {
+		    in.close();
+		}
+		Bitmap bitmap = BitmapFactory.decodeByteArray(buffer, 0, buffer.length);
+		if (bitmap == null)
+		    continue;
+
+		byte[] packed = pack(bitmap);
+		if (packed != null && bitmap.getWidth() <= Short.MAX_VALUE && bitmap.getHeight() <= Short.MAX_VALUE) {
+		    index.writeUTF(entry.getName());
+		    index.writeShort(bitmap.getWidth());
+		    index.writeShort(bitmap.getHeight());
+		    index.writeInt(data.size());
+		    data.write(packed);
+		    count++;
+		}
+		bitmap.recycle();
+	    }
+	    index.flush();
+	} catch (IOException e) {
+	    if (Preferences.logging)
+		Log.d(MetaWatchStatus.TAG, "ThemeConverter: failed to read " + themeFile);
+	    return;
+	} finally {
+	    if (zip != null) {
+		try {
+		    zip.close();
+		} catch (IOException e) {
+		}
+	    }
+	}
+
+	// Unless the theme changed under us. A cache with no images is still
+	// written, so the theme isn't scanned again
+	if (themeFile.lastModified() != modified || themeFile.length() != length)
+	    return;
+
+	byte[] index = indexBytes.toByteArray();
+
+	File cacheFile = getCacheFile(themeFile);
+	File tempFile = new File(cacheFile.getPath() + ".tmp");
+	DataOutputStream out = null;
+	try {
+	    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+	    out.writeInt(MAGIC);
+	    out.writeInt(VERSION);
+	    out.writeLong(modified);
+	    out.writeLong(length);
+	    out.writeInt(count);
+	    out.writeInt(index.length);
+	    out.write(index);
+	    data.writeTo(out);
+	    out.close();
+	    out = null;
+
+	    if (!tempFile.renameTo(cacheFile))
+		tempFile.delete();
+	    else if (Preferences.logging)
+		Log.d(MetaWatchStatus.TAG, "ThemeConverter: cached " + count + " images of " + themeFile.getName());
+	} catch (IOException e) {
+	    tempFile.delete();
+	} finally {
+	    if (out != null) {
+		try {
+		    out.close();
+		} catch (IOException e) {
+		}
+	    }
+	}
+    }
+
+    /*
+     * The bitmap packed to 1 bpp, or null if it has anything but opaque
+     * black and white in it.
+     */
+    private static byte[] pack(Bitmap bitmap) {
+	final int width = bitmap.getWidth();
+	final int height = bitmap.getHeight();
+	final int rowBytes = (width + 7) >> 3;
+
+	int[] row = new int[width];
+	byte[] packed = new byte[rowBytes * height];
+	for (int y = 0; y < height; y++) {
+	    bitmap.getPixels(row, 0, width, 0, y, width, 1);
+	    for (int x = 0; x < width; x++) {
+		if (row[x] == BLACK)
+		    packed[y * rowBytes + (x >> 3)] |= 1 << (x & 7);
+		else if (row[x] != WHITE)
+		    return null;
+	    }
+	}
+	return packed;
+    }
+
+    private static File getCacheFile(File themeFile) {
+	String name = themeFile.getName();
+	if (name.endsWith(".zip"))
+	    name = name.substring(0, name.length() - 4);
+	return new File(themeFile.getParentFile(), name + EXTENSION);
+    }
+}
@@ -155,6 +155,8 @@ public class ThemePicker extends SherlockFragment implements OnItemClickListener
 	if (searchDir != null) {
 	    File[] themeFiles = searchDir.listFiles();
 	    for (File file : themeFiles) {
+		if (!file.getName().endsWith(".zip"))
+		    continue;
 		String themeName = file.getName().replace(".zip", "");
 		if (Preferences.logging)
 		    Log.d(MetaWatchStatus.TAG, "Found theme " + themeName);
@@ -189,6 +191,7 @@ public class ThemePicker extends SherlockFragment implements OnItemClickListener
 	theme.url = getProperty(properties, "url", null);
 
 	theme.bitmap = themeData.getBanner();
+	themeData.close();
 
 	themeList.add(theme);
     }
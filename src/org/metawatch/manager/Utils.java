@@ -41,6 +41,7 @@ import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -52,6 +53,7 @@ import javax.xml.parsers.ParserConfigurationException;
 import org.metawatch.manager.FontCache.FontInfo;
 import org.metawatch.manager.FontCache.FontSize;
 import org.metawatch.manager.MetaWatchService.Preferences;
+import org.metawatch.manager.widgets.WidgetBitmapPool;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -73,7 +75,6 @@ import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
@@ -99,12 +100,29 @@ import android.widget.Toast;
 
 public class Utils {
 
+    /*
+     * One instance of a calendar event. Entries are shared between everyone
+     * reading the calendar, so they never change once read.
+     */
     public static class CalendarEntry {
-	public String title = "---";
-	public String location = "---";
-	public long endTimestamp = 0;
-	public long startTimestamp = 0;
-	public boolean isAllDay = false;
+	public final String title;
+	public final String location;
+	public final long endTimestamp;
+	public final long startTimestamp;
+	public final boolean isAllDay;
+
+	// No appointment
+	public CalendarEntry() {
+	    this("---", "---", 0, 0, false);
+	}
+
+	public CalendarEntry(String title, String location, long startTimestamp, long endTimestamp, boolean isAllDay) {
+	    this.title = title;
+	    this.location = location;
+	    this.startTimestamp = startTimestamp;
+	    this.endTimestamp = endTimestamp;
+	    this.isAllDay = isAllDay;
+	}
 
 	public boolean isOngoing(final long timestampNow) {
 	    return startTimestamp < timestampNow && timestampNow < (endTimestamp - Preferences.readCalendarMinDurationToMeetingEnd * 60 * 1000);
@@ -144,20 +162,27 @@ public class Utils {
     }
 
     public static String getContactNameFromNumber(Context context, String number) {
+	return ContactCache.getInstance(context).getName(number);
+    }
+
+    /*
+     * Looks number up in the contacts, returns null if there's no match.
+     * Throws if the provider couldn't be asked, so the caller doesn't take
+     * that for a stranger. Use getContactNameFromNumber(), which caches the
+     * answer.
+     */
+    static String queryContactName(Context context, String number) throws IOException {
 
 	CursorHandler ch = new CursorHandler();
 
 	try {
-	    if (number.equals(""))
-		return "Private number";
-
 	    String[] projection = new String[] { PhoneLookup.DISPLAY_NAME, PhoneLookup.NUMBER };
 
 	    Uri contactUri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(number));
 	    Cursor c = ch.add(context.getContentResolver().query(contactUri, projection, null, null, null));
 
 	    if (c == null)
-		return number;
+		throw new IOException("No cursor for contact lookup");
 
 	    if (c.moveToFirst()) {
 		String name = c.getString(c.getColumnIndex(PhoneLookup.DISPLAY_NAME));
@@ -165,15 +190,22 @@ public class Utils {
 		    return name;
 	    }
 
-	    return number;
+	    return null;
+	} catch (IOException e) {
+	    throw e;
 	} catch (Throwable e) {
-	    return number;
+	    throw new IOException("Contact lookup failed: " + e.getMessage());
 	} finally {
 	    ch.closeAll();
 	}
     }
 
-    public static Bitmap getContactPhotoFromNumber(Context context, String number) {
+    /*
+     * The contact's photo, or null if number isn't a contact or has none.
+     * Throws if the provider couldn't be asked, as queryContactName() does.
+     * Use ContactCache.getPhoto(), which caches the answer.
+     */
+    static Bitmap queryContactPhoto(Context context, String number) throws IOException {
 
 	CursorHandler ch = new CursorHandler();
 
@@ -188,7 +220,7 @@ public class Utils {
 	    Cursor c = ch.add(context.getContentResolver().query(contactUri, projection, null, null, null));
 
 	    if (c == null)
-		return null;
+		throw new IOException("No cursor for contact lookup");
 
 	    if (c.moveToFirst()) {
 		// Try openContactPhotoInputStream first.
@@ -207,20 +239,21 @@ public class Utils {
 		photoUri = ContactsContract.Data.CONTENT_URI;
 		c = ch.add(context.getContentResolver().query(photoUri, new String[] { ContactsContract.CommonDataKinds.Photo.PHOTO, ContactsContract.Data.PHOTO_ID }, Data.PHOTO_ID + " = " + photoID, null, null));
 
-		if (c != null && c.moveToFirst()) {
-		    try {
-			ByteArrayInputStream rawPhotoStream = new ByteArrayInputStream(c.getBlob(c.getColumnIndexOrThrow(ContactsContract.CommonDataKinds.Photo.PHOTO)));
-			Bitmap contactPhoto = BitmapFactory.decodeStream(rawPhotoStream);
-			return contactPhoto;
-		    } catch (NullPointerException ex) {
-			return null;
-		    }
+		if (c == null)
+		    throw new IOException("No cursor for contact photo");
+
+		if (c.moveToFirst()) {
+		    byte[] blob = c.getBlob(c.getColumnIndexOrThrow(ContactsContract.CommonDataKinds.Photo.PHOTO));
+		    if (blob != null)
+			return BitmapFactory.decodeStream(new ByteArrayInputStream(blob));
 		}
 	    }
 
 	    return null;
+	} catch (IOException e) {
+	    throw e;
 	} catch (Throwable e) {
-	    return null;
+	    throw new IOException("Contact photo lookup failed: " + e.getMessage());
 	} finally {
 	    ch.closeAll();
 	}
@@ -312,14 +345,21 @@ public class Utils {
 	}
     }
 
-    public static List<CalendarEntry> readCalendar(Context context, long startTime, long endTime, boolean singleEvent) {
+    /*
+     * Reads every instance between startTime and endTime from the selected
+     * calendars. The instances table already carries the event's title and
+     * location, so this is a single query. Use CalendarCache.peek() or
+     * get(), which cache.
+     */
+    static List<CalendarEntry> queryCalendar(Context context, long startTime, long endTime) {
 
 	List<CalendarEntry> entries = new ArrayList<CalendarEntry>();
 
 	CursorHandler ch = new CursorHandler();
 
+	final boolean allCalendars = Utils.stringIsEmpty(Preferences.displayCalendars) || Preferences.displayCalendars.contains("#ALL#");
 	if (Preferences.logging)
-	    Log.d(MetaWatchStatus.TAG, "Calendars to display: " + ((Utils.stringIsEmpty(Preferences.displayCalendars) || Preferences.displayCalendars.contains("#ALL#")) ? "All" : Preferences.displayCalendars));
+	    Log.d(MetaWatchStatus.TAG, "Calendars to display: " + (allCalendars ? "All" : Preferences.displayCalendars));
 
 	try {
 	    ContentResolver cr = context.getContentResolver();
@@ -327,42 +367,22 @@ public class Utils {
 
 	    ContentUris.appendId(builder, startTime);
 	    ContentUris.appendId(builder, endTime);
-	    Cursor eventCursor = ch.add(cr.query(builder.build(), new String[] { "event_id", "begin", "end", "allDay" }, null, null, "startDay ASC, startMinute ASC"));
-
-	    while (eventCursor.moveToNext()) {
-		boolean isAllDay = !eventCursor.getString(3).equals("0");
-		if (singleEvent && (isAllDay || eventCursor.getLong(1) < startTime))
-		    continue;
-
-		CalendarEntry entry = new CalendarEntry();
-		entry.isAllDay = isAllDay;
-		String uid2 = eventCursor.getString(0);
-		Uri CALENDAR_URI = Uri.parse("content://com.android.calendar/events/" + uid2);
-		final String selection = (Utils.stringIsEmpty(Preferences.displayCalendars) || Preferences.displayCalendars.contains("#ALL#")) ? null : "calendar_id IN (" + Preferences.displayCalendars + ")";
-		Cursor c = ch.add(cr.query(CALENDAR_URI, new String[] { "title", "eventLocation", "description", }, selection, null, null));
-		if (c.moveToFirst()) {
-		    entry.title = c.getString(c.getColumnIndex("title"));
-		    entry.location = c.getString(c.getColumnIndex("eventLocation"));
-
-		    entry.startTimestamp = eventCursor.getLong(1);
-		    entry.endTimestamp = eventCursor.getLong(2);
-
-		    entries.add(entry);
+	    final String selection = allCalendars ? null : "calendar_id IN (" + Preferences.displayCalendars + ")";
+	    Cursor c = ch.add(cr.query(builder.build(), new String[] { "begin", "end", "allDay", "title", "eventLocation" }, selection, null, "startDay ASC, startMinute ASC"));
 
-		    if (singleEvent)
-			return entries;
-		}
+	    while (c.moveToNext()) {
+		boolean isAllDay = !c.getString(2).equals("0");
+		entries.add(new CalendarEntry(c.getString(3), c.getString(4), c.getLong(0), c.getLong(1), isAllDay));
 	    }
 	} catch (Exception x) {
 	    if (Preferences.logging)
-		Log.d(MetaWatchStatus.TAG, "Utils.readCalendar(): caught exception: " + x.toString());
+		Log.d(MetaWatchStatus.TAG, "Utils.queryCalendar(): caught exception: " + x.toString());
 	    return null;
 	} finally {
 	    ch.closeAll();
 	}
 
-	return entries;
-
+	return Collections.unmodifiableList(entries);
     }
 
     static final Uri k9AccountsUri = Uri.parse("content://com.fsck.k9.messageprovider/accounts/");
@@ -457,56 +477,6 @@ public class Utils {
 	return BitmapCache.getInstance().getBitmap(context, path);
     }
 
-    public static Bitmap ditherTo1bit(Bitmap input, boolean inverted) {
-
-	Bitmap output = input.copy(Config.RGB_565, true);
-
-	double[][] pixels = new double[input.getWidth()][input.getHeight()];
-
-	final int w = input.getWidth();
-	final int h = input.getHeight();
-
-	for (int y = 0; y < h; ++y) {
-	    for (int x = 0; x < w; ++x) {
-		int col = input.getPixel(x, y);
-
-		double R = ((col >> 16) & 0xff) / 256.0;
-		double G = ((col >> 8) & 0xff) / 256.0;
-		double B = (col & 0xff) / 256.0;
-
-		pixels[x][y] = ((0.3 * R) + (0.59 * G) + (0.11 * B));
-	    }
-	}
-
-	for (int y = 0; y < h; ++y) {
-	    for (int x = 0; x < w; ++x) {
-		double oldpixel = pixels[x][y];
-		double newpixel = oldpixel < 0.5 ? 0 : 1;
-
-		pixels[x][y] = newpixel;
-		double quant_error = oldpixel - newpixel;
-		if (x < w - 1)
-		    pixels[x + 1][y] += 7.0 / 16.0 * quant_error;
-		if (x > 0 && y < h - 1)
-		    pixels[x - 1][y + 1] += 3.0 / 16.0 * quant_error;
-		if (y < h - 1)
-		    pixels[x][y + 1] += 5.0 / 16.0 * quant_error;
-		if (x < w - 1 && y < h - 1)
-		    pixels[x + 1][y + 1] += 1.0 / 16.0 * quant_error;
-
-		int col = 0;
-		if (inverted)
-		    col = newpixel > 0.5 ? 0xff000000 : 0xffffffff;
-		else
-		    col = newpixel > 0.5 ? 0xffffffff : 0xff000000;
-		output.setPixel(x, y, col);
-
-	    }
-	}
-
-	return output;
-    }
-
     public static Bitmap resize(Bitmap bm, int newHeight, int newWidth) {
 
 	int width = bm.getWidth();
@@ -702,7 +672,7 @@ public class Utils {
     }
 
     public static Bitmap DrawIconStringWidget(Context context, int width, int height, Bitmap icon, String text, TextPaint textPaint) {
-	Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+	Bitmap bitmap = WidgetBitmapPool.obtain(width, height);
 	Canvas canvas = new Canvas(bitmap);
 	canvas.drawColor(Color.WHITE);
 
@@ -6,6 +6,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.metawatch.manager.CalendarCache;
 import org.metawatch.manager.FontCache;
 import org.metawatch.manager.FontCache.FontSize;
 import org.metawatch.manager.Idle;
@@ -13,7 +14,6 @@ import org.metawatch.manager.MetaWatchService;
 import org.metawatch.manager.MetaWatchService.Preferences;
 import org.metawatch.manager.MetaWatchService.WatchType;
 import org.metawatch.manager.MetaWatchStatus;
-import org.metawatch.manager.Monitors;
 import org.metawatch.manager.Protocol;
 import org.metawatch.manager.Utils;
 
@@ -125,9 +125,10 @@ public class CalendarApp extends ApplicationBase {
 	return 0;
     }
 
-    long lastRefresh = 0;
     private Calendar displayDate = Calendar.getInstance();
-    private List<Utils.CalendarEntry> calendarEntries = null;
+    private volatile List<Utils.CalendarEntry> calendarEntries = null;
+    private volatile int calendarVersion = -1;
+    private volatile boolean calendarReading = false;
 
     final static class ViewMode {
 	static final int MonthOverview = 0;
@@ -139,43 +140,60 @@ public class CalendarApp extends ApplicationBase {
     private int currentView = ViewMode.MonthOverview;
 
     private void refresh(final Context context) {
-	Thread thread = new Thread("CalendarApp.refresh") {
-	    @Override
-	    public void run() {
-
-		boolean readCalendar = false;
-		long time = System.currentTimeMillis();
-		if ((time - lastRefresh > 5 * DateUtils.MINUTE_IN_MILLIS) || (Monitors.getInstance().calendarChangedTimestamp > lastRefresh)) {
-		    readCalendar = true;
-		    lastRefresh = System.currentTimeMillis();
-		}
+	Calendar cal = (Calendar) displayDate.clone();
+	cal.set(Calendar.DAY_OF_MONTH, 1);
+
+	final long startTime = cal.getTimeInMillis();
+	final long endTime = startTime + DateUtils.DAY_IN_MILLIS * (31 + 10);
+	final int version = CalendarCache.version();
+
+	// This month is in memory already, other months are read in the
+	// background
+	List<Utils.CalendarEntry> entries = CalendarCache.peek(context, startTime, endTime, false);
+	if (entries != null) {
+	    calendarEntries = entries;
+	    calendarVersion = version;
+	    return;
+	}
 
-		if (readCalendar) {
-		    if (Preferences.logging)
-			Log.d(MetaWatchStatus.TAG, "CalendarApp.refresh() start");
+	if (calendarReading)
+	    return;
+	calendarReading = true;
 
-		    Calendar cal = (Calendar) displayDate.clone();
-		    cal.set(Calendar.DAY_OF_MONTH, 1);
+	if (Preferences.logging)
+	    Log.d(MetaWatchStatus.TAG, "CalendarApp.refresh() reading " + DateFormat.format("MMMM yyyy", startTime));
 
-		    long startTime = cal.getTimeInMillis();
-		    long endTime = startTime + DateUtils.DAY_IN_MILLIS * (31 + 10);
+	CalendarCache.read(context, startTime, endTime, false, new CalendarCache.Listener() {
+	    public void onCalendarRead(List<Utils.CalendarEntry> entries) {
+		calendarReading = false;
 
-		    calendarEntries = Utils.readCalendar(context, startTime, endTime, false);
+		// Moved to another month in the meantime
+		if (Utils.isDifferentMonth(displayDate, cal(startTime)))
+		    return;
 
-		    Idle.getInstance().updateIdle(context, false);
+		calendarEntries = entries;
+		calendarVersion = version;
 
-		    if (Preferences.logging)
-			Log.d(MetaWatchStatus.TAG, "CalendarApp.refresh() stop - " + (calendarEntries == null ? "0" : calendarEntries.size()) + " entries found");
-		}
+		Idle.getInstance().updateIdle(context, false);
 
+		if (Preferences.logging)
+		    Log.d(MetaWatchStatus.TAG, "CalendarApp.refresh() stop - " + (calendarEntries == null ? "0" : calendarEntries.size()) + " entries found");
 	    }
-	};
-	thread.start();
+	});
+    }
+
+    private static Calendar cal(long time) {
+	Calendar cal = Calendar.getInstance();
+	cal.setTimeInMillis(time);
+	return cal;
     }
 
     @Override
     public Bitmap update(Context context, boolean preview, int watchType) {
 
+	if (calendarEntries == null || calendarVersion != CalendarCache.version())
+	    refresh(context);
+
 	Bitmap bitmap = Bitmap.createBitmap(96, 96, Bitmap.Config.RGB_565);
 	Canvas canvas = new Canvas(bitmap);
 	canvas.drawColor(Color.WHITE);
@@ -337,10 +355,8 @@ public class CalendarApp extends ApplicationBase {
     }
 
     private void setDate(Context context, Calendar cal) {
-	if (Utils.isDifferentMonth(cal, displayDate)) {
-	    lastRefresh = 0;
+	if (Utils.isDifferentMonth(cal, displayDate))
 	    calendarEntries = null;
-	}
 	displayDate = cal;
 	if (calendarEntries == null)
 	    refresh(context);
@@ -69,4 +69,14 @@ public enum eMessageType {
 	this.msg = (byte) msg;
     }
 
+    private static final eMessageType[] byMsg = new eMessageType[256];
+    static {
+	for (eMessageType type : values())
+	    byMsg[type.msg & 0xFF] = type;
+    }
+
+    public static eMessageType fromByte(byte msg) {
+	return byMsg[msg & 0xFF];
+    }
+
 };
\ No newline at end of file
@@ -16,7 +16,7 @@ import android.location.Geocoder;
 
 public abstract class AbstractWeatherEngine implements WeatherEngine {
 
-    private final static int TIME_FIVE_MINUTES = 5 * 60 * 1000;
+    protected final static int TIME_FIVE_MINUTES = 5 * 60 * 1000;
 
     /**
      * Weather update is done frequently. Update rate can be configured here.
@@ -37,9 +37,12 @@ public abstract class AbstractWeatherEngine implements WeatherEngine {
 
 		return false;
 	    }
-	} else if (Preferences.weatherGeolocationMode != GeolocationMode.MANUAL && Monitors.getInstance().mLocationData.received == false) {
+	}
+
+	if (Preferences.weatherGeolocationMode != GeolocationMode.MANUAL && Monitors.getInstance().mLocationData.received == false) {
 	    // Don't refresh the weather if the user has enabled geolocation,
-	    // but we don't have a location yet
+	    // but we don't have a location yet. Weather restored from a
+	    // snapshot waits for one too
 	    return false;
 	}
 
@@ -50,6 +53,15 @@ public abstract class AbstractWeatherEngine implements WeatherEngine {
 	return Preferences.weatherGeolocationMode != GeolocationMode.MANUAL && Monitors.getInstance().mLocationData.received;
     }
 
+    /*
+     * The current location as "latitude,longitude" to two decimal places,
+     * about a kilometre. Each fix differs in the last digits, rounding lets
+     * WeatherTransport answer from its cache while we haven't really moved.
+     */
+    static String roundedLocation() {
+	return String.format(Locale.US, "%.2f,%.2f", Monitors.getInstance().mLocationData.latitude, Monitors.getInstance().mLocationData.longitude);
+    }
+
     protected GoogleGeoCoderLocationData reverseLookupGeoLocation(Context context, double latitude, double longitude) throws IOException {
 	GoogleGeoCoderLocationData locationData = new GoogleGeoCoderLocationData();
 	Geocoder geocoder = new Geocoder(context, Locale.getDefault());
@@ -0,0 +1,217 @@
+package org.metawatch.manager.weather;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/*
+ * Walks a JSON document straight off a stream, SAX style, so a response can
+ * be picked apart without building a JSONObject (or even a String) of all
+ * of it. Values are reported with their path from the root, names joined
+ * with '/'; elements of an array share the array's path, so every object
+ * in "forecast": { "forecastday": [ ... ] } starts and ends at
+ * "forecast/forecastday".
+ */
+class JsonStreamParser {
+
+    static abstract class Handler {
+	void startObject(String path) {
+	}
+
+	void endObject(String path) {
+	}
+
+	// Strings, numbers and booleans as they appear in the document, null
+	// for null
+	void value(String path, String value) {
+	}
+    }
+
+    private final Reader reader;
+    private final Handler handler;
+    private final char[] buffer = new char[4096];
+    private int position = 0;
+    private int limit = 0;
+    private final StringBuilder path = new StringBuilder();
+    private final StringBuilder text = new StringBuilder();
+
+    private JsonStreamParser(Reader reader, Handler handler) {
+	this.reader = reader;
+	this.handler = handler;
+    }
+
+    static void parse(Reader reader, Handler handler) throws IOException {
+	JsonStreamParser parser = new JsonStreamParser(reader, handler);
+	parser.value();
+	if (parser.peekToken() != -1)
+	    throw parser.error("Trailing data");
+    }
+
+    private void value() throws IOException {
+	final int c = peekToken();
+	if (c == '{') {
+	    position++;
+	    object();
+	} else if (c == '[') {
+	    position++;
+	    array();
+	} else if (c == '"') {
+	    position++;
+	    handler.value(path.toString(), string());
+	} else if (c == -1) {
+	    throw error("Unexpected end of document");
+	} else {
+	    String literal = literal();
+	    handler.value(path.toString(), literal.equals("null") ? null : literal);
+	}
+    }
+
+    private void object() throws IOException {
+	final String objectPath = path.toString();
+	handler.startObject(objectPath);
+
+	if (peekToken() == '}') {
+	    position++;
+	} else {
+	    while (true) {
+		if (nextToken() != '"')
+		    throw error("Expected a name");
+		final String name = string();
+		if (nextToken() != ':')
+		    throw error("Expected ':'");
+
+		final int length = path.length();
+		if (length > 0)
+		    path.append('/');
+		path.append(name);
+		value();
+		path.setLength(length);
+
+		final int c = nextToken();
+		if (c == '}')
+		    break;
+		if (c != ',')
+		    throw error("Expected ',' or '}'");
+	    }
+	}
+
+	handler.endObject(objectPath);
+    }
+
+    private void array() throws IOException {
+	if (peekToken() == ']') {
+	    position++;
+	    return;
+	}
+	while (true) {
+	    value();
+	    final int c = nextToken();
+	    if (c == ']')
+		return;
+	    if (c != ',')
+		throw error("Expected ',' or ']'");
+	}
+    }
+
+    // After the opening quote
+    private String string() throws IOException {
+	text.setLength(0);
+	while (true) {
+	    int c = read();
+	    if (c == -1)
+		throw error("Unterminated string");
+	    if (c == '"')
+		return text.toString();
+	    if (c == '\\') {
+		c = read();
+		switch (c) {
+		case 'b':
+		    text.append('\b');
+		    break;
+		case 'f':
+		    text.append('\f');
+		    break;
+		case 'n':
+		    text.append('\n');
+		    break;
+		case 'r':
+		    text.append('\r');
+		    break;
+		case 't':
+		    text.append('\t');
+		    break;
+		case 'u':
+		    int code = 0;
+		    for (int i = 0; i < 4; i++) {
+			final int digit = Character.digit(read(), 16);
+			if (digit < 0)
+			    throw error("Bad \\u escape");
+			code = (code << 4) | digit;
+		    }
+		    text.append((char) code);
+		    break;
+		case -1:
+		    throw error("Unterminated string");
+		default:
+		    // \" \\ \/ and anything else stand for themselves
+		    text.append((char) c);
+		}
+	    } else {
+		text.append((char) c);
+	    }
+	}
+    }
+
+    // Numbers, true, false and null
+    private String literal() throws IOException {
+	text.setLength(0);
+	while (true) {
+	    final int c = peek();
+	    if (c == -1 || c == ',' || c == '}' || c == ']' || c == ':' || Character.isWhitespace(c))
+		break;
+	    text.append((char) c);
+	    position++;
+	}
+	if (text.length() == 0)
+	    throw error("Unexpected character");
+	return text.toString();
+    }
+
+    private int nextToken() throws IOException {
+	final int c = peekToken();
+	if (c != -1)
+	    position++;
+	return c;
+    }
+
+    private int peekToken() throws IOException {
+	while (true) {
+	    final int c = peek();
+	    if (c == -1 || !Character.isWhitespace(c))
+		return c;
+	    position++;
+	}
+    }
+
+    private int read() throws IOException {
+	final int c = peek();
+	if (c != -1)
+	    position++;
+	return c;
+    }
+
+    private int peek() throws IOException {
+	if (position == limit) {
+	    limit = reader.read(buffer, 0, buffer.length);
+	    position = 0;
+	    if (limit <= 0) {
+		limit = 0;
+		return -1;
+	    }
+	}
+	return buffer[position];
+    }
+
+    private IOException error(String message) {
+	return new IOException(message + " at " + (path.length() > 0 ? path : "top level"));
+    }
+}
@@ -0,0 +1,193 @@
+package org.metawatch.manager.weather;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.metawatch.manager.Log;
+import org.metawatch.manager.MetaWatchService.GeolocationMode;
+import org.metawatch.manager.MetaWatchService.Preferences;
+import org.metawatch.manager.MetaWatchStatus;
+
+import android.content.Context;
+import android.text.format.DateUtils;
+
+/*
+ * The last weather we received, kept in a file so the widgets have something
+ * to show as soon as the service starts instead of waiting for the network.
+ * The restored data keeps its original time stamp, so the engine still
+ * refreshes it as soon as it's old enough.
+ *
+ * A snapshot taken with a different provider, units or location setting, or
+ * more than a day old, is ignored. In geolocation mode there's no location
+ * to compare yet when it's loaded, Monitors fetches the weather again as
+ * soon as the first fix comes in.
+ *
+ * Layout: magic, version, the settings it was taken with, then the
+ * WeatherData fields and the forecast. Strings are written with a flag for
+ * null in front.
+ */
+public class WeatherSnapshot {
+
+    private static final String FILE_NAME = "weather.snapshot";
+
+    private static final int MAGIC = 0x4d575744; // MWWD
+    private static final int VERSION = 1;
+
+    private static final long MAX_AGE = DateUtils.DAY_IN_MILLIS;
+
+    private WeatherSnapshot() {
+    }
+
+    /*
+     * The saved weather, or null if there's none we can use.
+     */
+    public static WeatherData load(Context context) {
+	File file = getFile(context);
+	if (!file.exists())
+	    return null;
+
+	DataInputStream in = null;
+	try {
+	    in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+	    if (in.readInt() != MAGIC || in.readInt() != VERSION || !settings().equals(in.readUTF()))
+		return null;
+
+	    WeatherData data = new WeatherData();
+	    data.received = true;
+	    data.icon = readString(in);
+	    data.temp = readString(in);
+	    data.condition = readString(in);
+	    data.locationName = readString(in);
+	    data.celsius = in.readBoolean();
+	    data.sunriseH = in.readInt();
+	    data.sunriseM = in.readInt();
+	    data.sunsetH = in.readInt();
+	    data.sunsetM = in.readInt();
+	    data.moonPercentIlluminated = in.readInt();
+	    data.ageOfMoon = in.readInt();
+	    data.timeStamp = in.readLong();
+	    data.forecastTimeStamp = in.readLong();
+
+	    final int count = in.readInt();
+	    if (count >= 0) {
+		data.forecast = new Forecast[count];
+		for (int i = 0; i < count; i++) {
+		    Forecast forecast = new Forecast();
+		    forecast.setDay(readString(in));
+		    forecast.setIcon(readString(in));
+		    forecast.setTempHigh(readString(in));
+		    forecast.setTempLow(readString(in));
+		    data.forecast[i] = forecast;
+		}
+	    }
+
+	    final long age = System.currentTimeMillis() - data.timeStamp;
+	    if (age < 0 || age > MAX_AGE)
+		return null;
+
+	    if (Preferences.logging)
+		Log.d(MetaWatchStatus.TAG, "WeatherSnapshot: restored weather from " + (age / DateUtils.MINUTE_IN_MILLIS) + " minutes ago");
+	    return data;
+	} catch (IOException e) {
+	    if (Preferences.logging)
+		Log.d(MetaWatchStatus.TAG, "WeatherSnapshot: couldn't read " + file);
+	    return null;
+	} finally {
+	    if (in != null) {
+		try {
+		    in.close();
+		} catch (IOException e) {
+		}
+	    }
+	}
+    }
+
+    /*
+     * Writes data to the snapshot, replacing the old one only once the new
+     * one is complete. Call it off the main thread.
+     */
+    public static void save(Context context, WeatherData data) {
+	File file = getFile(context);
+	File tempFile = new File(file.getPath() + ".tmp");
+	DataOutputStream out = null;
+	try {
+	    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+	    out.writeInt(MAGIC);
+	    out.writeInt(VERSION);
+	    out.writeUTF(settings());
+	    writeString(out, data.icon);
+	    writeString(out, data.temp);
+	    writeString(out, data.condition);
+	    writeString(out, data.locationName);
+	    out.writeBoolean(data.celsius);
+	    out.writeInt(data.sunriseH);
+	    out.writeInt(data.sunriseM);
+	    out.writeInt(data.sunsetH);
+	    out.writeInt(data.sunsetM);
+	    out.writeInt(data.moonPercentIlluminated);
+	    out.writeInt(data.ageOfMoon);
+	    out.writeLong(data.timeStamp);
+	    out.writeLong(data.forecastTimeStamp);
+
+	    Forecast[] forecasts = data.forecast;
+	    if (forecasts == null) {
+		out.writeInt(-1);
+	    } else {
+		out.writeInt(forecasts.length);
+		for (Forecast forecast : forecasts) {
+		    writeString(out, forecast.getDay());
+		    writeString(out, forecast.getIcon());
+		    writeString(out, forecast.getTempHigh());
+		    writeString(out, forecast.getTempLow());
+		}
+	    }
+	    out.close();
+	    out = null;
+
+	    if (!tempFile.renameTo(file))
+		tempFile.delete();
+	} catch (IOException e) {
+	    tempFile.delete();
+	    if (Preferences.logging)
+		Log.d(MetaWatchStatus.TAG, "WeatherSnapshot: couldn't write " + file);
+	} finally {
+	    if (out != null) {
+		try {
+		    out.close();
+		} catch (IOException e) {
+		}
+	    }
+	}
+    }
+
+    // What the weather depends on besides the time
+    private static String settings() {
+	StringBuilder builder = new StringBuilder();
+	builder.append(Preferences.weatherProvider).append('/');
+	builder.append(Preferences.weatherCelsius).append('/');
+	builder.append(Preferences.weatherGeolocationMode);
+	if (Preferences.weatherGeolocationMode == GeolocationMode.MANUAL)
+	    builder.append('/').append(Preferences.weatherCity);
+	return builder.toString();
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+	return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+	out.writeBoolean(value != null);
+	if (value != null)
+	    out.writeUTF(value);
+    }
+
+    private static File getFile(Context context) {
+	return new File(context.getFilesDir(), FILE_NAME);
+    }
+}
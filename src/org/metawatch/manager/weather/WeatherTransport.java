@@ -0,0 +1,270 @@
+package org.metawatch.manager.weather;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.metawatch.manager.Log;
+import org.metawatch.manager.MetaWatchService.Preferences;
+import org.metawatch.manager.MetaWatchStatus;
+
+import android.content.Context;
+
+/*
+ * HTTP for the weather engines. One client is kept for as long as the
+ * service runs, so a refresh that makes several requests reuses the
+ * connection, and every response is kept on disk with its ETag and
+ * Last-Modified. A request made within maxAge of the last fetch is answered
+ * from disk without going near the network; after that it's sent
+ * conditionally, so if nothing changed the server only has to say so.
+ * Bodies are streamed (gzipped, if the server will) into the cache and
+ * parsed from there, never held in memory as a whole. Only the most recently
+ * used MAX_ENTRIES responses are kept.
+ *
+ * Nothing here knows about particular services, so it can be pointed at a
+ * stub server and a scratch directory with the package private
+ * constructor.
+ */
+public class WeatherTransport {
+
+    private static final int TIMEOUT = 20 * 1000;
+
+    private static final int MAX_ENTRIES = 16;
+
+    private static WeatherTransport mInstance = null;
+
+    private final HttpClient client;
+    private final File dir;
+    // Anything fetched before this is stale, whatever its maxAge
+    private long expiredBefore = 0;
+
+    public static synchronized WeatherTransport getInstance(Context context) {
+	if (mInstance == null)
+	    mInstance = new WeatherTransport(new File(context.getCacheDir(), "weather"));
+	return mInstance;
+    }
+
+    public static synchronized void destroy() {
+	if (mInstance != null) {
+	    mInstance.client.getConnectionManager().shutdown();
+	    mInstance = null;
+	}
+    }
+
+    WeatherTransport(File dir) {
+	this.dir = dir;
+	dir.mkdirs();
+
+	HttpParams params = new BasicHttpParams();
+	HttpConnectionParams.setConnectionTimeout(params, TIMEOUT);
+	HttpConnectionParams.setSoTimeout(params, TIMEOUT);
+	HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+
+	SchemeRegistry registry = new SchemeRegistry();
+	registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+	registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+	client = new DefaultHttpClient(new ThreadSafeClientConnManager(params, registry), params);
+    }
+
+    /*
+     * The body of url, from the cache if it was fetched less than maxAge ms
+     * ago or the server says it hasn't changed since. The caller closes it.
+     */
+    public synchronized InputStream get(String url, long maxAge) throws IOException {
+	final String key = key(url);
+	final File body = new File(dir, key);
+	final File metaFile = new File(dir, key + ".meta");
+	final long now = System.currentTimeMillis();
+
+	Properties meta = body.exists() ? readMeta(metaFile, url) : null;
+	if (meta != null) {
+	    final long fetched = parseLong(meta.getProperty("fetched"));
+	    if (fetched >= expiredBefore && fetched <= now && now - fetched < maxAge) {
+		if (Preferences.logging)
+		    Log.d(MetaWatchStatus.TAG, "WeatherTransport: cached " + url);
+		metaFile.setLastModified(now);
+		return open(body);
+	    }
+	}
+
+	HttpGet request = new HttpGet(url);
+	request.addHeader("Accept-Encoding", "gzip");
+	if (meta != null) {
+	    if (meta.getProperty("etag") != null)
+		request.addHeader("If-None-Match", meta.getProperty("etag"));
+	    if (meta.getProperty("lastModified") != null)
+		request.addHeader("If-Modified-Since", meta.getProperty("lastModified"));
+	}
+
+	HttpResponse response = client.execute(request);
+	HttpEntity entity = response.getEntity();
+	try {
+	    final int status = response.getStatusLine().getStatusCode();
+
+	    if (status == HttpStatus.SC_NOT_MODIFIED && meta != null) {
+		if (Preferences.logging)
+		    Log.d(MetaWatchStatus.TAG, "WeatherTransport: not modified " + url);
+		meta.setProperty("fetched", Long.toString(now));
+		writeMeta(metaFile, meta);
+		return open(body);
+	    }
+
+	    if (status != HttpStatus.SC_OK || entity == null)
+		throw new IOException("Request failed: " + response.getStatusLine());
+
+	    InputStream in = entity.getContent();
+	    Header encoding = entity.getContentEncoding();
+	    if (encoding != null && encoding.getValue().equalsIgnoreCase("gzip"))
+		in = new GZIPInputStream(in);
+
+	    File temp = new File(dir, key + ".tmp");
+	    OutputStream out = new FileOutputStream(temp);
+	    try {
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) != -1)
+		    out.write(buffer, 0, read);
+	    } finally {
+		out.close();
+		in.close();
+	    }
+	    body.delete();
+	    if (!temp.renameTo(body))
+		throw new IOException("Can't write " + body);
+
+	    Properties fresh = new Properties();
+	    fresh.setProperty("url", url);
+	    fresh.setProperty("fetched", Long.toString(now));
+	    Header etag = response.getFirstHeader("ETag");
+	    if (etag != null)
+		fresh.setProperty("etag", etag.getValue());
+	    Header lastModified = response.getFirstHeader("Last-Modified");
+	    if (lastModified != null)
+		fresh.setProperty("lastModified", lastModified.getValue());
+	    writeMeta(metaFile, fresh);
+	    trim();
+
+	    if (Preferences.logging)
+		Log.d(MetaWatchStatus.TAG, "WeatherTransport: fetched " + body.length() + " bytes from " + url);
+	    return open(body);
+	} finally {
+	    // Hands the connection back for the next request
+	    if (entity != null)
+		entity.consumeContent();
+	}
+    }
+
+    /*
+     * Makes the next request for anything go to the server, for a refresh
+     * the user asked for. Still conditional, so an unchanged response
+     * isn't downloaded again.
+     */
+    public synchronized void expire() {
+	expiredBefore = System.currentTimeMillis() + 1;
+    }
+
+    /*
+     * Drops the least recently used responses once there are too many, each
+     * location a geolocated refresh asks about leaves one behind.
+     */
+    private void trim() {
+	File[] metas = dir.listFiles(new FilenameFilter() {
+	    public boolean accept(File dir, String name) {
+		return name.endsWith(".meta");
+	    }
+	});
+	if (metas == null || metas.length <= MAX_ENTRIES)
+	    return;
+
+	Arrays.sort(metas, new Comparator<File>() {
+	    public int compare(File a, File b) {
+		long diff = a.lastModified() - b.lastModified();
+		return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+	    }
+	});
+	for (int i = 0; i < metas.length - MAX_ENTRIES; i++) {
+	    final String name = metas[i].getName();
+	    new File(dir, name.substring(0, name.length() - ".meta".length())).delete();
+	    metas[i].delete();
+	}
+    }
+
+    private static InputStream open(File file) throws IOException {
+	return new BufferedInputStream(new FileInputStream(file), 4096);
+    }
+
+    // The service keys are in the urls, so they only go in the meta files
+    private static String key(String url) {
+	return Integer.toHexString(url.hashCode()) + "-" + url.length();
+    }
+
+    private static Properties readMeta(File file, String url) {
+	InputStream in = null;
+	try {
+	    in = new FileInputStream(file);
+	    Properties meta = new Properties();
+	    meta.load(in);
+	    return url.equals(meta.getProperty("url")) ? meta : null;
+	} catch (IOException e) {
+	    return null;
+	} finally {
+	    if (in != null) {
+		try {
+		    in.close();
+		} catch (IOException e) {
+		}
+	    }
+	}
+    }
+
+    private static void writeMeta(File file, Properties meta) {
+	OutputStream out = null;
+	try {
+	    out = new FileOutputStream(file);
+	    meta.store(out, null);
+	} catch (IOException e) {
+	    file.delete();
+	} finally {
+	    if (out != null) {
+		try {
+		    out.close();
+		} catch (IOException e) {
+		}
+	    }
+	}
+    }
+
+    private static long parseLong(String value) {
+	try {
+	    return Long.parseLong(value);
+	} catch (Exception e) {
+	    return 0;
+	}
+    }
+}
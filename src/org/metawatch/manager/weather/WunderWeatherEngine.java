@@ -1,19 +1,12 @@
 package org.metawatch.manager.weather;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.List;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.metawatch.manager.Application;
 import org.metawatch.manager.Idle;
 import org.metawatch.manager.Log;
@@ -22,7 +15,6 @@ import org.metawatch.manager.MetaWatchService.GeolocationMode;
 import org.metawatch.manager.MetaWatchService.Preferences;
 import org.metawatch.manager.MetaWatchStatus;
 import org.metawatch.manager.Monitors;
-import org.metawatch.manager.Utils;
 
 import android.content.Context;
 
@@ -90,13 +82,13 @@ public class WunderWeatherEngine extends AbstractWeatherEngine {
 		case GeolocationMode.ALWAYSGOOGLE: {
 		    GoogleGeoCoderLocationData locationData = reverseLookupGeoLocation(context, Monitors.getInstance().mLocationData.latitude, Monitors.getInstance().mLocationData.longitude);
 		    weatherData.locationName = locationData.getLocationName();
-		    String weatherLocation = Double.toString(Monitors.getInstance().mLocationData.latitude) + "," + Double.toString(Monitors.getInstance().mLocationData.longitude);
+		    String weatherLocation = roundedLocation();
 		    requestUrl = "http://api.wunderground.com/api/" + Preferences.wundergroundKey + "/conditions/" + forecastQuery + "q/" + weatherLocation + ".json";
 		}
 		    break;
 
 		case GeolocationMode.USEPROVIDER: {
-		    String weatherLocation = Double.toString(Monitors.getInstance().mLocationData.latitude) + "," + Double.toString(Monitors.getInstance().mLocationData.longitude);
+		    String weatherLocation = roundedLocation();
 		    requestUrl = "http://api.wunderground.com/api/" + Preferences.wundergroundKey + "/geolookup/conditions/" + forecastQuery + "q/" + weatherLocation + ".json";
 		}
 		    break;
@@ -109,21 +101,40 @@ public class WunderWeatherEngine extends AbstractWeatherEngine {
 		if (Preferences.logging)
 		    Log.d(MetaWatchStatus.TAG, "Request: " + requestUrl);
 
-		JSONObject json = getJSONfromURL(requestUrl);
+		WunderHandler response = new WunderHandler();
+		InputStream in = WeatherTransport.getInstance(context).get(requestUrl, TIME_FIVE_MINUTES);
+		try {
+		    JsonStreamParser.parse(new InputStreamReader(in, "UTF-8"), response);
+		} finally {
+		    in.close();
+		}
 
-		JSONObject current = json.getJSONObject("current_observation");
+		// Anything missing fails the update and the previous weather
+		// stays, as it did when JSONObject threw
+		if (response.error != null)
+		    throw new IOException(response.error);
+		final String temp = Preferences.weatherCelsius ? response.tempC : response.tempF;
+		if (response.condition == null || response.iconName == null || temp == null)
+		    throw new IOException("No current conditions in response");
+		if (Preferences.weatherGeolocationMode == GeolocationMode.USEPROVIDER && response.city == null)
+		    throw new IOException("No location in response");
 
 		if (hasForecast) {
-		    JSONObject moon = json.getJSONObject("moon_phase");
-		    JSONObject sunrise = moon.getJSONObject("sunrise");
-		    weatherData.sunriseH = sunrise.getInt("hour");
-		    weatherData.sunriseM = sunrise.getInt("minute");
-		    JSONObject sunset = moon.getJSONObject("sunset");
-		    weatherData.sunsetH = sunset.getInt("hour");
-		    weatherData.sunsetM = sunset.getInt("minute");
-
-		    weatherData.moonPercentIlluminated = moon.getInt("percentIlluminated");
-		    weatherData.ageOfMoon = moon.getInt("ageOfMoon");
+		    final int sunriseH = requireInt(response.sunriseH, "sunrise hour");
+		    final int sunriseM = requireInt(response.sunriseM, "sunrise minute");
+		    final int sunsetH = requireInt(response.sunsetH, "sunset hour");
+		    final int sunsetM = requireInt(response.sunsetM, "sunset minute");
+		    final int moonPercentIlluminated = requireInt(response.moonPercentIlluminated, "moon illumination");
+		    final int ageOfMoon = requireInt(response.ageOfMoon, "moon age");
+		    if (response.forecast.isEmpty())
+			throw new IOException("No forecast in response");
+
+		    weatherData.sunriseH = sunriseH;
+		    weatherData.sunriseM = sunriseM;
+		    weatherData.sunsetH = sunsetH;
+		    weatherData.sunsetM = sunsetM;
+		    weatherData.moonPercentIlluminated = moonPercentIlluminated;
+		    weatherData.ageOfMoon = ageOfMoon;
 		}
 
 		boolean isDay = true;
@@ -137,42 +148,15 @@ public class WunderWeatherEngine extends AbstractWeatherEngine {
 		}
 
 		if (Preferences.weatherGeolocationMode == GeolocationMode.USEPROVIDER) {
-		    JSONObject location = json.getJSONObject("location");
-		    weatherData.locationName = location.getString("city");
+		    weatherData.locationName = response.city;
 		}
 
-		weatherData.condition = current.getString("weather");
-		weatherData.icon = getIcon(current.getString("icon"), isDay);
-
-		if (Preferences.weatherCelsius) {
-		    weatherData.temp = current.getString("temp_c");
-		} else {
-		    weatherData.temp = current.getString("temp_f");
-		}
+		weatherData.condition = response.condition;
+		weatherData.icon = getIcon(response.iconName, isDay);
+		weatherData.temp = temp;
 
 		if (hasForecast) {
-		    JSONObject forecast = json.getJSONObject("forecast");
-		    JSONArray forecastday = forecast.getJSONObject("simpleforecast").getJSONArray("forecastday");
-
-		    int days = forecastday.length();
-		    weatherData.forecast = new Forecast[days];
-
-		    for (int i = 0; i < days; ++i) {
-			weatherData.forecast[i] = new Forecast();
-			JSONObject day = forecastday.getJSONObject(i);
-			JSONObject date = day.getJSONObject("date");
-
-			weatherData.forecast[i].setIcon(getIcon(day.getString("icon"), true));
-			weatherData.forecast[i].setDay(date.getString("weekday_short"));
-			if (Preferences.weatherCelsius) {
-			    weatherData.forecast[i].setTempLow(day.getJSONObject("low").getString("celsius"));
-			    weatherData.forecast[i].setTempHigh(day.getJSONObject("high").getString("celsius"));
-			} else {
-			    weatherData.forecast[i].setTempLow(day.getJSONObject("low").getString("fahrenheit"));
-			    weatherData.forecast[i].setTempHigh(day.getJSONObject("high").getString("fahrenheit"));
-			}
-		    }
-
+		    weatherData.forecast = response.forecast.toArray(new Forecast[response.forecast.size()]);
 		    weatherData.forecastTimeStamp = System.currentTimeMillis();
 		}
 
@@ -217,71 +201,90 @@ public class WunderWeatherEngine extends AbstractWeatherEngine {
 	return weatherData;
     }
 
-    // http://p-xr.com/android-tutorial-how-to-parse-read-json-data-into-a-android-listview/
-    public static JSONObject getJSONfromURL(String url) throws IOException {
-
-	// initialize
-	InputStream is = null;
-	String result = "";
-	JSONObject jArray = null;
-
-	// http post
-	try {
-	    HttpClient httpclient = new DefaultHttpClient();
-	    HttpPost httppost = new HttpPost(url);
-	    HttpResponse response = httpclient.execute(httppost);
-	    HttpEntity entity = response.getEntity();
-	    is = entity.getContent();
-
-	} catch (Exception e) {
-	    if (Preferences.logging)
-		Log.e(MetaWatchStatus.TAG, "Error in http connection " + e.toString());
-	    throw Utils.createCompatibleIOException(e);
+    /*
+     * The parts of a Wunderground response we use, picked out as the
+     * response streams past.
+     */
+    private class WunderHandler extends JsonStreamParser.Handler {
+	String error;
+	String condition;
+	String iconName;
+	String tempC;
+	String tempF;
+	String city;
+	String sunriseH;
+	String sunriseM;
+	String sunsetH;
+	String sunsetM;
+	String moonPercentIlluminated;
+	String ageOfMoon;
+	final List<Forecast> forecast = new ArrayList<Forecast>();
+
+	private static final String DAY = "forecast/simpleforecast/forecastday";
+	private Forecast day = null;
+
+	@Override
+	void startObject(String path) {
+	    if (path.equals(DAY))
+		day = new Forecast();
 	}
 
-	// convert response to string
-	if (is != null) {
-	    try {
-		BufferedReader reader = new BufferedReader(new InputStreamReader(is, "iso-8859-1"), 8);
-		StringBuilder sb = new StringBuilder();
-		String line = null;
-		while ((line = reader.readLine()) != null) {
-		    sb.append(line + "\n");
-		}
-		is.close();
-		result = sb.toString();
-	    } catch (Exception e) {
-		if (Preferences.logging)
-		    Log.e(MetaWatchStatus.TAG, "Error converting result " + e.toString());
+	@Override
+	void endObject(String path) {
+	    if (path.equals(DAY) && day != null) {
+		// A day with anything missing is left out rather than drawn
+		// with gaps
+		if (day.getDay() != null && day.getIcon() != null && day.getTempHigh() != null && day.getTempLow() != null)
+		    forecast.add(day);
+		day = null;
 	    }
+	}
 
-	    // // dump to sdcard for debugging
-	    // File sdCard = Environment.getExternalStorageDirectory();
-	    // File file = new File(sdCard, "weather.json");
-	    //
-	    // try {
-	    // FileWriter writer = new FileWriter(file);
-	    // writer.append(result);
-	    // writer.flush();
-	    // writer.close();
-	    // } catch (FileNotFoundException e1) {
-	    // // TODO Auto-generated catch block
-	    // e1.printStackTrace();
-	    // } catch (IOException e) {
-	    // // TODO Auto-generated catch block
-	    // e.printStackTrace();
-	    // }
-
-	    // try parse the string to a JSON object
-	    try {
-		jArray = new JSONObject(result);
-	    } catch (JSONException e) {
-		if (Preferences.logging)
-		    Log.e(MetaWatchStatus.TAG, "Error parsing data " + e.toString());
-		throw Utils.createCompatibleIOException(e);
-	    }
+	@Override
+	void value(String path, String value) {
+	    if (day != null && path.startsWith(DAY)) {
+		final String field = path.substring(DAY.length());
+		if (field.equals("/icon"))
+		    day.setIcon(getIcon(value, true));
+		else if (field.equals("/date/weekday_short"))
+		    day.setDay(value);
+		else if (field.equals(Preferences.weatherCelsius ? "/low/celsius" : "/low/fahrenheit"))
+		    day.setTempLow(value);
+		else if (field.equals(Preferences.weatherCelsius ? "/high/celsius" : "/high/fahrenheit"))
+		    day.setTempHigh(value);
+	    } else if (path.equals("current_observation/weather"))
+		condition = value;
+	    else if (path.equals("current_observation/icon"))
+		iconName = value;
+	    else if (path.equals("current_observation/temp_c"))
+		tempC = value;
+	    else if (path.equals("current_observation/temp_f"))
+		tempF = value;
+	    else if (path.equals("location/city"))
+		city = value;
+	    else if (path.equals("moon_phase/sunrise/hour"))
+		sunriseH = value;
+	    else if (path.equals("moon_phase/sunrise/minute"))
+		sunriseM = value;
+	    else if (path.equals("moon_phase/sunset/hour"))
+		sunsetH = value;
+	    else if (path.equals("moon_phase/sunset/minute"))
+		sunsetM = value;
+	    else if (path.equals("moon_phase/percentIlluminated"))
+		moonPercentIlluminated = value;
+	    else if (path.equals("moon_phase/ageOfMoon"))
+		ageOfMoon = value;
+	    else if (path.equals("response/error/description"))
+		error = value;
+	}
+    }
+
+    private static int requireInt(String value, String name) throws IOException {
+	try {
+	    return Integer.parseInt(value.trim());
+	} catch (Exception e) {
+	    throw new IOException("No " + name + " in response");
 	}
-	return jArray;
     }
 
 }
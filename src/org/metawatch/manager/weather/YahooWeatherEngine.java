@@ -1,27 +1,19 @@
 package org.metawatch.manager.weather;
 
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.HttpStatus;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.util.EntityUtils;
 import org.metawatch.manager.Application;
 import org.metawatch.manager.Idle;
 import org.metawatch.manager.Log;
 import org.metawatch.manager.MetaWatchService;
 import org.metawatch.manager.MetaWatchService.Preferences;
 import org.metawatch.manager.MetaWatchStatus;
-import org.metawatch.manager.Monitors;
 import org.metawatch.manager.Utils;
 import org.xml.sax.Attributes;
 import org.xml.sax.InputSource;
@@ -33,6 +25,8 @@ import android.content.Context;
 
 public class YahooWeatherEngine extends AbstractWeatherEngine {
 
+    private final static long PLACE_MAX_AGE = 24 * 60 * 60 * 1000;
+
     public String getIcon(int code) {
 	// http://developer.yahoo.com/weather/
 
@@ -135,13 +129,13 @@ public class YahooWeatherEngine extends AbstractWeatherEngine {
 
 		String placeFinderUrl = null;
 		if (isGeolocationDataUsed()) {
-		    placeFinderUrl = "http://where.yahooapis.com/geocode?q=" + Monitors.getInstance().mLocationData.latitude + "," + Monitors.getInstance().mLocationData.longitude + arguments;
+		    placeFinderUrl = "http://where.yahooapis.com/geocode?q=" + roundedLocation() + arguments;
 		} else {
 		    String weatherLocation = Preferences.weatherCity.replace(" ", "%20");
 		    placeFinderUrl = "http://where.yahooapis.com/geocode?q=" + weatherLocation + arguments;
 		}
 
-		weatherData = requestWeatherFromYahooPlacefinder(placeFinderUrl, weatherData);
+		weatherData = requestWeatherFromYahooPlacefinder(context, placeFinderUrl, weatherData);
 
 		weatherData.error = false;
 		weatherData.errorString = "";
@@ -182,27 +176,17 @@ public class YahooWeatherEngine extends AbstractWeatherEngine {
     /**
      * Checks the YAHOO PLACEFINDER service to lookup WOED, an unique weather location id. This is required to access the weather service later on.
      */
-    private WeatherData requestWeatherFromYahooPlacefinder(String placeFinderUrl, WeatherData weatherData) throws IOException {
+    private WeatherData requestWeatherFromYahooPlacefinder(Context context, String placeFinderUrl, WeatherData weatherData) throws IOException {
 	try {
 	    if (Preferences.logging)
 		Log.d(MetaWatchStatus.TAG, "Placefinder URL: " + placeFinderUrl);
 
-	    // Ask YAHOO PLACEFINDER to search the WOEID.
-	    HttpClient hc = new DefaultHttpClient();
-	    HttpGet httpGet = new HttpGet(placeFinderUrl);
-	    HttpResponse rp = hc.execute(httpGet);
-	    if (rp.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
-		SAXParserFactory spf = SAXParserFactory.newInstance();
-		SAXParser sp = spf.newSAXParser();
-		XMLReader xr = sp.getXMLReader();
-
-		String s = EntityUtils.toString(rp.getEntity());
-		if (Preferences.logging)
-		    Log.d(MetaWatchStatus.TAG, "Got placefinder response " + s);
-
+	    // Ask YAHOO PLACEFINDER to search the WOEID. Places don't move, so
+	    // the answer is good for a day.
+	    InputStream in = WeatherTransport.getInstance(context).get(placeFinderUrl, PLACE_MAX_AGE);
+	    try {
 		YahooPlacefinderHandler handler = new YahooPlacefinderHandler();
-		xr.setContentHandler(handler);
-		xr.parse(new InputSource(new StringReader(s)));
+		parse(in, handler);
 		String woeId = handler.getWoeId();
 		String city = handler.getCity();
 
@@ -220,10 +204,10 @@ public class YahooWeatherEngine extends AbstractWeatherEngine {
 		    Log.d(MetaWatchStatus.TAG, "Got WOEID: " + woeId + " and CITY: " + city);
 
 		// Seconds web service access, now with WOEID
-		return requestWeatherFromWoeId(woeId, weatherData);
+		return requestWeatherFromWoeId(context, woeId, weatherData);
 
-	    } else {
-		throw new IOException("Placefinder failed: " + rp.getStatusLine());
+	    } finally {
+		in.close();
 	    }
 	} catch (SAXException e) {
 	    throw Utils.createCompatibleIOException(e);
@@ -245,7 +229,7 @@ public class YahooWeatherEngine extends AbstractWeatherEngine {
      * @return
      * @throws IOException
      */
-    private WeatherData requestWeatherFromWoeId(String woeId, WeatherData weatherData) throws IOException {
+    private WeatherData requestWeatherFromWoeId(Context context, String woeId, WeatherData weatherData) throws IOException {
 	try {
 	    String url = "http://weather.yahooapis.com/forecastrss?w=" + woeId;
 	    if (Preferences.weatherCelsius) {
@@ -255,21 +239,10 @@ public class YahooWeatherEngine extends AbstractWeatherEngine {
 		Log.d(MetaWatchStatus.TAG, "Weather URL: " + url);
 
 	    // Ask Yahoo Weather API
-	    HttpClient hc = new DefaultHttpClient();
-	    HttpGet httpGet = new HttpGet(url);
-	    HttpResponse rp = hc.execute(httpGet);
-	    if (rp.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
-		SAXParserFactory spf = SAXParserFactory.newInstance();
-		SAXParser sp = spf.newSAXParser();
-		XMLReader xr = sp.getXMLReader();
-
-		String s = EntityUtils.toString(rp.getEntity());
-		if (Preferences.logging)
-		    Log.d(MetaWatchStatus.TAG, "Got Weather API response " + s);
-
+	    InputStream in = WeatherTransport.getInstance(context).get(url, TIME_FIVE_MINUTES);
+	    try {
 		YahooWeatherHandler handler = new YahooWeatherHandler();
-		xr.setContentHandler(handler);
-		xr.parse(new InputSource(new StringReader(s)));
+		parse(in, handler);
 
 		weatherData.ageOfMoon = 0; // TODO
 		weatherData.celsius = Preferences.weatherCelsius;
@@ -288,8 +261,8 @@ public class YahooWeatherEngine extends AbstractWeatherEngine {
 
 		return weatherData;
 
-	    } else {
-		throw new IOException("Placefinder failed: " + rp.getStatusLine());
+	    } finally {
+		in.close();
 	    }
 	} catch (SAXException e) {
 	    throw Utils.createCompatibleIOException(e);
@@ -391,6 +364,13 @@ public class YahooWeatherEngine extends AbstractWeatherEngine {
 
     }
 
+    // Straight from the stream, without reading it into a String first
+    private static void parse(InputStream in, DefaultHandler handler) throws IOException, SAXException, ParserConfigurationException {
+	XMLReader xr = SAXParserFactory.newInstance().newSAXParser().getXMLReader();
+	xr.setContentHandler(handler);
+	xr.parse(new InputSource(in));
+    }
+
     private static int parseCode(String code) {
 	try {
 	    return Integer.parseInt(code.trim());
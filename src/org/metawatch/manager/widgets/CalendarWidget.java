@@ -5,10 +5,9 @@ import java.util.Calendar;
 import java.util.List;
 import java.util.Map;
 
+import org.metawatch.manager.CalendarCache;
 import org.metawatch.manager.FontCache;
 import org.metawatch.manager.MetaWatchService.Preferences;
-import org.metawatch.manager.MetaWatchStatus;
-import org.metawatch.manager.Monitors;
 import org.metawatch.manager.Utils;
 
 import android.app.AlarmManager;
@@ -24,7 +23,6 @@ import android.text.Layout;
 import android.text.StaticLayout;
 import android.text.TextPaint;
 import android.text.format.DateUtils;
-import org.metawatch.manager.Log;
 
 public class CalendarWidget implements InternalWidget {
 
@@ -55,7 +53,7 @@ public class CalendarWidget implements InternalWidget {
     private TextPaint paintSmallNumerals;
     private TextPaint paintNumerals;
 
-    private Utils.CalendarEntry calendarEntry = new Utils.CalendarEntry();
+    private volatile Utils.CalendarEntry calendarEntry = new Utils.CalendarEntry();
 
     public void init(Context context, ArrayList<CharSequence> widgetIds) {
 	this.context = context;
@@ -89,67 +87,56 @@ public class CalendarWidget implements InternalWidget {
 	paintSmall = null;
     }
 
-    long lastRefresh = 0;
-
     public void refresh(ArrayList<CharSequence> widgetIds) {
 
-	// Run the refresh in its own thread, so as not to stall the main MWM
-	// process
+	if (!Preferences.readCalendarDuringMeeting) {
+	    // Only update the current meeting if it is not ongoing
+	    if (calendarEntry != null && calendarEntry.isOngoing(System.currentTimeMillis()))
+		return;
+	}
 
-	Thread thread = new Thread("CalendarWidget.refresh") {
-	    @Override
-	    public void run() {
+	long startTime = System.currentTimeMillis();
+	long endTime = startTime + DateUtils.HOUR_IN_MILLIS * Preferences.calendarLookahead;
+
+	if (!Preferences.readCalendarDuringMeeting) {
+	    startTime -= DateUtils.MINUTE_IN_MILLIS; // to have some
+						     // safety
+						     // margin in
+						     // case the
+						     // meeting
+						     // is just
+						     // starting
+	}
 
-		boolean readCalendar = false;
-		long time = System.currentTimeMillis();
-		if ((time - lastRefresh > 5 * DateUtils.MINUTE_IN_MILLIS) || (Monitors.getInstance().calendarChangedTimestamp > lastRefresh)) {
-		    readCalendar = true;
-		    lastRefresh = System.currentTimeMillis();
-		}
-		if (!Preferences.readCalendarDuringMeeting) {
-		    // Only update the current meeting if it is not ongoing
-		    if (calendarEntry != null && calendarEntry.isOngoing(System.currentTimeMillis())) {
-			readCalendar = false;
-		    }
-		}
-		if (readCalendar) {
-		    if (Preferences.logging)
-			Log.d(MetaWatchStatus.TAG, "CalendarWidget.refresh() start");
-
-		    long startTime = System.currentTimeMillis();
-		    long endTime = startTime + DateUtils.HOUR_IN_MILLIS * Preferences.calendarLookahead;
-
-		    if (!Preferences.readCalendarDuringMeeting) {
-			startTime -= DateUtils.MINUTE_IN_MILLIS; // to have some
-								 // safety
-								 // margin in
-								 // case the
-								 // meeting
-								 // is just
-								 // starting
-		    }
-
-		    List<Utils.CalendarEntry> entries = Utils.readCalendar(context, startTime, endTime, true);
-
-		    if (entries == null || entries.size() == 0) {
-			calendarEntry = new Utils.CalendarEntry();
-		    } else {
-			calendarEntry = entries.get(0);
-
-			// Refresh when the next entry ends
-			Intent intent = new Intent("org.metawatch.manager.UPDATE_CALENDAR");
-			PendingIntent sender = PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
-			AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-			am.set(AlarmManager.RTC_WAKEUP, calendarEntry.endTimestamp, sender);
-		    }
-
-		    if (Preferences.logging)
-			Log.d(MetaWatchStatus.TAG, "CalendarWidget.refresh() stop");
+	// Normally answered straight from memory, otherwise the answer turns up
+	// in time for the next refresh
+	List<Utils.CalendarEntry> entries = CalendarCache.peek(context, startTime, endTime, true);
+	if (entries != null) {
+	    setEntries(entries);
+	} else {
+	    CalendarCache.read(context, startTime, endTime, true, new CalendarCache.Listener() {
+		public void onCalendarRead(List<Utils.CalendarEntry> entries) {
+		    setEntries(entries);
 		}
+	    });
+	}
+    }
 
+    private void setEntries(List<Utils.CalendarEntry> entries) {
+	if (entries == null || entries.size() == 0) {
+	    calendarEntry = new Utils.CalendarEntry();
+	} else {
+	    Utils.CalendarEntry previous = calendarEntry;
+	    calendarEntry = entries.get(0);
+
+	    // Refresh when the next entry ends
+	    if (previous == null || previous.endTimestamp != calendarEntry.endTimestamp) {
+		Intent intent = new Intent("org.metawatch.manager.UPDATE_CALENDAR");
+		PendingIntent sender = PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+		AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+		am.set(AlarmManager.RTC_WAKEUP, calendarEntry.endTimestamp, sender);
 	    }
-	};
-	thread.start();
+	}
     }
 
     public void get(ArrayList<CharSequence> widgetIds, Map<String, WidgetData> result) {
@@ -233,7 +220,7 @@ public class CalendarWidget implements InternalWidget {
 
 	Bitmap icon = iconFile == null ? null : Utils.getBitmap(context, iconFile);
 
-	widget.bitmap = Bitmap.createBitmap(widget.width, widget.height, Bitmap.Config.RGB_565);
+	widget.bitmap = WidgetBitmapPool.obtain(widget.width, widget.height);
 	Canvas canvas = new Canvas(widget.bitmap);
 	canvas.drawColor(Color.WHITE);
 
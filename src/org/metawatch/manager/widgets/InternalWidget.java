@@ -18,6 +18,11 @@ public interface InternalWidget {
 	public Bitmap bitmap;
 
 	public int priority;
+
+	// Set by WidgetManager, changes whenever the contents do. Widgets hand
+	// out a new bitmap when they redraw rather than drawing over one
+	// that's already been handed out.
+	public int version;
     }
 
     public void init(Context context, ArrayList<CharSequence> widgetIds);
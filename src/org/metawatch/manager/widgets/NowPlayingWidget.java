@@ -98,7 +98,7 @@ public class NowPlayingWidget implements InternalWidget {
 	    trackInfoText = text.toString();
 	}
 
-	widget.bitmap = Bitmap.createBitmap(widget.width, widget.height, Bitmap.Config.RGB_565);
+	widget.bitmap = WidgetBitmapPool.obtain(widget.width, widget.height);
 	Canvas canvas = new Canvas(widget.bitmap);
 	canvas.drawColor(Color.WHITE);
 
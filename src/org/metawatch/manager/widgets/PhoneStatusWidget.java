@@ -86,7 +86,7 @@ public class PhoneStatusWidget implements InternalWidget {
 	String count = level == -1 ? "-" : level + "%";
 
 	widget.priority = level == -1 ? 0 : 1;
-	widget.bitmap = Bitmap.createBitmap(widget.width, widget.height, Bitmap.Config.RGB_565);
+	widget.bitmap = WidgetBitmapPool.obtain(widget.width, widget.height);
 	Canvas canvas = new Canvas(widget.bitmap);
 	canvas.drawColor(Color.WHITE);
 
@@ -134,7 +134,7 @@ public class TestWidget implements InternalWidget {
     }
 
     private Bitmap draw(int width, int height) {
-	Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+	Bitmap bitmap = WidgetBitmapPool.obtain(width, height);
 	Canvas canvas = new Canvas(bitmap);
 	canvas.drawColor(Color.WHITE);
 
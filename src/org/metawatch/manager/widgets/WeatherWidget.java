@@ -1,6 +1,7 @@
 package org.metawatch.manager.widgets;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Map;
 
 import org.metawatch.manager.FontCache;
@@ -9,6 +10,7 @@ import org.metawatch.manager.MetaWatchService.GeolocationMode;
 import org.metawatch.manager.MetaWatchService.Preferences;
 import org.metawatch.manager.Monitors;
 import org.metawatch.manager.Utils;
+import org.metawatch.manager.weather.WeatherData;
 
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -59,6 +61,23 @@ public class WeatherWidget implements InternalWidget {
     public final static String id_11 = "weather_46_46";
     final static String desc_11 = "Current Weather (46x46)";
 
+    /*
+     * The last bitmap drawn for each widget and the stamp of what it was
+     * drawn from. The weather changes every few minutes at most, the idle
+     * screen is redrawn far more often than that.
+     */
+    private static class Rendered {
+	final String stamp;
+	final Bitmap bitmap;
+
+	Rendered(String stamp, Bitmap bitmap) {
+	    this.stamp = stamp;
+	    this.bitmap = bitmap;
+	}
+    }
+
+    private final Map<String, Rendered> rendered = new HashMap<String, Rendered>();
+
     private Context context = null;
     private TextPaint paintSmall;
     private TextPaint paintSmallOutline;
@@ -69,6 +88,7 @@ public class WeatherWidget implements InternalWidget {
 
     public void init(Context context, ArrayList<CharSequence> widgetIds) {
 	this.context = context;
+	rendered.clear();
 
 	paintSmall = new TextPaint();
 	paintSmall.setColor(Color.BLACK);
@@ -103,6 +123,7 @@ public class WeatherWidget implements InternalWidget {
 
     public void shutdown() {
 	paintSmall = null;
+	rendered.clear();
     }
 
     public void refresh(ArrayList<CharSequence> widgetIds) {
@@ -113,6 +134,8 @@ public class WeatherWidget implements InternalWidget {
 	if (context == null)
 	    return;
 
+	final String stamp = stamp();
+
 	if (widgetIds == null || widgetIds.contains(id_0)) {
 	    InternalWidget.WidgetData widget = new InternalWidget.WidgetData();
 
@@ -121,7 +144,7 @@ public class WeatherWidget implements InternalWidget {
 	    widget.width = 24;
 	    widget.height = 32;
 
-	    widget.bitmap = draw0();
+	    widget.bitmap = render(id_0, stamp);
 	    widget.priority = calcPriority();
 
 	    result.put(widget.id, widget);
@@ -135,7 +158,7 @@ public class WeatherWidget implements InternalWidget {
 	    widget.width = 96;
 	    widget.height = 32;
 
-	    widget.bitmap = draw1();
+	    widget.bitmap = render(id_1, stamp);
 	    widget.priority = calcPriority();
 
 	    result.put(widget.id, widget);
@@ -149,7 +172,7 @@ public class WeatherWidget implements InternalWidget {
 	    widget.width = 96;
 	    widget.height = 32;
 
-	    widget.bitmap = draw2();
+	    widget.bitmap = render(id_2, stamp);
 	    widget.priority = calcPriority();
 
 	    result.put(widget.id, widget);
@@ -163,7 +186,7 @@ public class WeatherWidget implements InternalWidget {
 	    widget.width = 24;
 	    widget.height = 32;
 
-	    widget.bitmap = draw3();
+	    widget.bitmap = render(id_3, stamp);
 	    widget.priority = Monitors.getInstance().weatherData.moonPercentIlluminated != -1 ? calcPriority() : -1;
 
 	    result.put(widget.id, widget);
@@ -177,7 +200,7 @@ public class WeatherWidget implements InternalWidget {
 	    widget.width = 80;
 	    widget.height = 16;
 
-	    widget.bitmap = draw4();
+	    widget.bitmap = render(id_4, stamp);
 	    widget.priority = calcPriority();
 
 	    result.put(widget.id, widget);
@@ -191,7 +214,7 @@ public class WeatherWidget implements InternalWidget {
 	    widget.width = 16;
 	    widget.height = 16;
 
-	    widget.bitmap = draw5();
+	    widget.bitmap = render(id_5, stamp);
 	    widget.priority = Monitors.getInstance().weatherData.moonPercentIlluminated != -1 ? calcPriority() : -1;
 
 	    result.put(widget.id, widget);
@@ -205,7 +228,7 @@ public class WeatherWidget implements InternalWidget {
 	    widget.width = 80;
 	    widget.height = 16;
 
-	    widget.bitmap = draw6();
+	    widget.bitmap = render(id_6, stamp);
 	    widget.priority = calcPriority();
 
 	    result.put(widget.id, widget);
@@ -219,7 +242,7 @@ public class WeatherWidget implements InternalWidget {
 	    widget.width = 48;
 	    widget.height = 32;
 
-	    widget.bitmap = draw7();
+	    widget.bitmap = render(id_7, stamp);
 	    widget.priority = calcPriority();
 
 	    result.put(widget.id, widget);
@@ -233,7 +256,7 @@ public class WeatherWidget implements InternalWidget {
 	    widget.width = 12;
 	    widget.height = 12;
 
-	    widget.bitmap = draw8();
+	    widget.bitmap = render(id_8, stamp);
 	    widget.priority = calcPriority();
 
 	    result.put(widget.id, widget);
@@ -247,7 +270,7 @@ public class WeatherWidget implements InternalWidget {
 	    widget.width = 24;
 	    widget.height = 24;
 
-	    widget.bitmap = draw9();
+	    widget.bitmap = render(id_9, stamp);
 	    widget.priority = calcPriority();
 
 	    result.put(widget.id, widget);
@@ -261,7 +284,7 @@ public class WeatherWidget implements InternalWidget {
 	    widget.width = 24;
 	    widget.height = 16;
 
-	    widget.bitmap = draw10();
+	    widget.bitmap = render(id_10, stamp);
 	    widget.priority = calcPriority();
 
 	    result.put(widget.id, widget);
@@ -275,13 +298,77 @@ public class WeatherWidget implements InternalWidget {
 	    widget.width = 46;
 	    widget.height = 46;
 
-	    widget.bitmap = draw11();
+	    widget.bitmap = render(id_11, stamp);
 	    widget.priority = calcPriority();
 
 	    result.put(widget.id, widget);
 	}
     }
 
+    /*
+     * Everything the widgets are drawn from: the weather, whether there's a
+     * location yet for the placeholders, and the settings and theme that
+     * change the layout.
+     */
+    private String stamp() {
+	WeatherData data = Monitors.getInstance().weatherData;
+	StringBuilder builder = new StringBuilder();
+	builder.append(data.received).append('/').append(data.timeStamp).append('/').append(data.forecastTimeStamp).append('/');
+	builder.append(Monitors.getInstance().mLocationData.received).append('/').append(Preferences.weatherGeolocationMode).append('/');
+	builder.append(Preferences.overlayWeatherText).append('/').append(Preferences.displayWidgetIconOnTop).append('/');
+	builder.append(Preferences.invertLCD).append('/').append(MetaWatchService.watchType).append('/');
+	builder.append(Preferences.themeName);
+	return builder.toString();
+    }
+
+    /*
+     * The widget's bitmap, drawn again only if stamp has changed since the
+     * last time. A new drawing that comes out the same as the old one is
+     * dropped, so WidgetManager keeps seeing the same bitmap.
+     */
+    private Bitmap render(String id, String stamp) {
+	Rendered last = rendered.get(id);
+	if (last != null && last.stamp.equals(stamp) && !last.bitmap.isRecycled())
+	    return last.bitmap;
+
+	Bitmap bitmap = draw(id);
+	if (last != null && !last.bitmap.isRecycled() && WidgetManager.getInstance(context).samePixels(last.bitmap, bitmap)) {
+	    WidgetBitmapPool.release(bitmap);
+	    bitmap = last.bitmap;
+	} else {
+	    WidgetBitmapPool.keep(bitmap);
+	}
+	rendered.put(id, new Rendered(stamp, bitmap));
+	return bitmap;
+    }
+
+    private Bitmap draw(String id) {
+	if (id.equals(id_0))
+	    return draw0();
+	else if (id.equals(id_1))
+	    return draw1();
+	else if (id.equals(id_2))
+	    return draw2();
+	else if (id.equals(id_3))
+	    return draw3();
+	else if (id.equals(id_4))
+	    return draw4();
+	else if (id.equals(id_5))
+	    return draw5();
+	else if (id.equals(id_6))
+	    return draw6();
+	else if (id.equals(id_7))
+	    return draw7();
+	else if (id.equals(id_8))
+	    return draw8();
+	else if (id.equals(id_9))
+	    return draw9();
+	else if (id.equals(id_10))
+	    return draw10();
+	else
+	    return draw11();
+    }
+
     private int calcPriority() {
 	if (Preferences.weatherProvider == MetaWatchService.WeatherProvider.DISABLED)
 	    return -1;
@@ -290,7 +377,7 @@ public class WeatherWidget implements InternalWidget {
     }
 
     private Bitmap draw0() {
-	Bitmap bitmap = Bitmap.createBitmap(24, 32, Bitmap.Config.RGB_565);
+	Bitmap bitmap = WidgetBitmapPool.obtain(24, 32);
 	Canvas canvas = new Canvas(bitmap);
 	canvas.drawColor(Color.WHITE);
 
@@ -323,7 +410,7 @@ public class WeatherWidget implements InternalWidget {
     }
 
     private Bitmap draw1() {
-	Bitmap bitmap = Bitmap.createBitmap(96, 32, Bitmap.Config.RGB_565);
+	Bitmap bitmap = WidgetBitmapPool.obtain(96, 32);
 	Canvas canvas = new Canvas(bitmap);
 	canvas.drawColor(Color.WHITE);
 
@@ -390,7 +477,7 @@ public class WeatherWidget implements InternalWidget {
     }
 
     private Bitmap draw2() {
-	Bitmap bitmap = Bitmap.createBitmap(96, 32, Bitmap.Config.RGB_565);
+	Bitmap bitmap = WidgetBitmapPool.obtain(96, 32);
 	Canvas canvas = new Canvas(bitmap);
 	canvas.drawColor(Color.WHITE);
 
@@ -442,7 +529,7 @@ public class WeatherWidget implements InternalWidget {
     final static int[] phaseImage = { 0, 0, 1, 1, 1, 1, 1, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 5, 5, 5, 5, 5, 6, 6, 7, 7, 7, 7, 0, 0, 0 };
 
     private Bitmap draw3() {
-	Bitmap bitmap = Bitmap.createBitmap(24, 32, Bitmap.Config.RGB_565);
+	Bitmap bitmap = WidgetBitmapPool.obtain(24, 32);
 	Canvas canvas = new Canvas(bitmap);
 	canvas.drawColor(Color.WHITE);
 
@@ -469,7 +556,7 @@ public class WeatherWidget implements InternalWidget {
     }
 
     private Bitmap draw4() {
-	Bitmap bitmap = Bitmap.createBitmap(80, 16, Bitmap.Config.RGB_565);
+	Bitmap bitmap = WidgetBitmapPool.obtain(80, 16);
 	Canvas canvas = new Canvas(bitmap);
 	canvas.drawColor(Color.WHITE);
 
@@ -529,7 +616,7 @@ public class WeatherWidget implements InternalWidget {
     }
 
     private Bitmap draw5() {
-	Bitmap bitmap = Bitmap.createBitmap(16, 16, Bitmap.Config.RGB_565);
+	Bitmap bitmap = WidgetBitmapPool.obtain(16, 16);
 	Canvas canvas = new Canvas(bitmap);
 	canvas.drawColor(Color.WHITE);
 
@@ -551,7 +638,7 @@ public class WeatherWidget implements InternalWidget {
     }
 
     private Bitmap draw6() {
-	Bitmap bitmap = Bitmap.createBitmap(80, 16, Bitmap.Config.RGB_565);
+	Bitmap bitmap = WidgetBitmapPool.obtain(80, 16);
 	Canvas canvas = new Canvas(bitmap);
 	canvas.drawColor(Color.WHITE);
 
@@ -602,7 +689,7 @@ public class WeatherWidget implements InternalWidget {
     }
 
     private Bitmap draw7() {
-	Bitmap bitmap = Bitmap.createBitmap(48, 32, Bitmap.Config.RGB_565);
+	Bitmap bitmap = WidgetBitmapPool.obtain(48, 32);
 	Canvas canvas = new Canvas(bitmap);
 	canvas.drawColor(Color.WHITE);
 
@@ -657,7 +744,7 @@ public class WeatherWidget implements InternalWidget {
     }
 
     private Bitmap draw8() {
-	Bitmap bitmap = Bitmap.createBitmap(12, 12, Bitmap.Config.RGB_565);
+	Bitmap bitmap = WidgetBitmapPool.obtain(12, 12);
 	Canvas canvas = new Canvas(bitmap);
 	canvas.drawColor(Color.WHITE);
 
@@ -678,7 +765,7 @@ public class WeatherWidget implements InternalWidget {
     }
 
     private Bitmap draw9() {
-	Bitmap bitmap = Bitmap.createBitmap(24, 24, Bitmap.Config.RGB_565);
+	Bitmap bitmap = WidgetBitmapPool.obtain(24, 24);
 	Canvas canvas = new Canvas(bitmap);
 	canvas.drawColor(Color.WHITE);
 
@@ -698,7 +785,7 @@ public class WeatherWidget implements InternalWidget {
     }
 
     private Bitmap draw10() {
-	Bitmap bitmap = Bitmap.createBitmap(24, 16, Bitmap.Config.RGB_565);
+	Bitmap bitmap = WidgetBitmapPool.obtain(24, 16);
 	Canvas canvas = new Canvas(bitmap);
 	canvas.drawColor(Color.WHITE);
 
@@ -732,7 +819,7 @@ public class WeatherWidget implements InternalWidget {
     }
 
     private Bitmap draw11() {
-	Bitmap bitmap = Bitmap.createBitmap(46, 46, Bitmap.Config.RGB_565);
+	Bitmap bitmap = WidgetBitmapPool.obtain(46, 46);
 	Canvas canvas = new Canvas(bitmap);
 	canvas.drawColor(Color.WHITE);
 
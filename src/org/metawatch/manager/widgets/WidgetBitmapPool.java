@@ -0,0 +1,79 @@
+package org.metawatch.manager.widgets;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import android.graphics.Bitmap;
+
+/*
+ * Spare widget bitmaps, by size. Most refreshes redraw a widget exactly as it
+ * was, so WidgetManager keeps the bitmap it already had and hands the new one
+ * back here for the next refresh; in the steady state widgets draw into the
+ * same few buffers instead of allocating new ones.
+ *
+ * A bitmap from obtain() has whatever the last user left in it, so draw every
+ * pixel. Don't keep a reference to it after handing it over in a WidgetData,
+ * WidgetManager may give it back.
+ */
+public class WidgetBitmapPool {
+
+    private static final int MAX_PER_SIZE = 4;
+
+    private static final Map<Integer, ArrayList<Bitmap>> sFree = new HashMap<Integer, ArrayList<Bitmap>>();
+    // Bitmaps handed out by obtain(), only those may come back
+    private static final Map<Bitmap, Boolean> sOwned = new WeakHashMap<Bitmap, Boolean>();
+
+    private WidgetBitmapPool() {
+    }
+
+    public static synchronized Bitmap obtain(int width, int height) {
+	Bitmap bitmap = null;
+	ArrayList<Bitmap> free = sFree.get(key(width, height));
+	while (bitmap == null && free != null && !free.isEmpty()) {
+	    bitmap = free.remove(free.size() - 1);
+	    if (bitmap.isRecycled())
+		bitmap = null;
+	}
+	if (bitmap == null)
+	    bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+	sOwned.put(bitmap, Boolean.TRUE);
+	return bitmap;
+    }
+
+    /*
+     * Takes back a bitmap from obtain() that nobody else has seen. Anything
+     * else is ignored.
+     */
+    static synchronized void release(Bitmap bitmap) {
+	if (bitmap == null || sOwned.remove(bitmap) == null || bitmap.isRecycled())
+	    return;
+
+	final Integer key = key(bitmap.getWidth(), bitmap.getHeight());
+	ArrayList<Bitmap> free = sFree.get(key);
+	if (free == null) {
+	    free = new ArrayList<Bitmap>(MAX_PER_SIZE);
+	    sFree.put(key, free);
+	}
+	if (free.size() < MAX_PER_SIZE)
+	    free.add(bitmap);
+    }
+
+    /*
+     * For a bitmap from obtain() that the caller holds on to after handing it
+     * over, so it's never given back and drawn over.
+     */
+    static synchronized void keep(Bitmap bitmap) {
+	sOwned.remove(bitmap);
+    }
+
+    public static synchronized void clear() {
+	sFree.clear();
+	sOwned.clear();
+    }
+
+    private static Integer key(int width, int height) {
+	return (width << 16) | (height & 0xffff);
+    }
+}
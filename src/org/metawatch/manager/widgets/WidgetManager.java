@@ -1,6 +1,7 @@
 package org.metawatch.manager.widgets;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -28,6 +29,11 @@ public class WidgetManager {
     Object lock = new Object();
 
     long lastWidgetBroadcast = 0;
+    int lastVersion = 0;
+
+    // Scratch rows for samePixels(), guarded by lock
+    private int[] rowA = new int[0];
+    private int[] rowB = new int[0];
 
     public String defaultWidgetsDigital = "weather_96_32|missedCalls_24_32,unreadSms_24_32,unreadGmail_24_32";
     public String defaultWidgetsAnalog = "weather_80_16|missedCalls_16_16,unreadSms_16_16,unreadGmail_16_16";
@@ -47,6 +53,8 @@ public class WidgetManager {
     }
     
     public void destroy() {
+	WidgetBitmapPool.clear();
+	WidgetRow.clearStrips();
 	mInstance = null;
     }
 
@@ -82,11 +90,16 @@ public class WidgetManager {
 	    if (dataCache == null)
 		dataCache = new HashMap<String, WidgetData>();
 
+	    Map<String, WidgetData> previous = new HashMap<String, WidgetData>(dataCache);
+
 	    for (InternalWidget widget : widgets) {
 		widget.refresh(widgetsDesired);
 		widget.get(widgetsDesired, dataCache);
 	    }
 
+	    for (Map.Entry<String, WidgetData> entry : dataCache.entrySet())
+		updateVersion(previous.get(entry.getKey()), entry.getValue());
+
 	    if (System.currentTimeMillis() - lastWidgetBroadcast > TIME_ONE_MINUTE) {
 		Intent intent = new Intent("org.metawatch.manager.REFRESH_WIDGET_REQUEST");
 		Bundle b = new Bundle();
@@ -108,6 +121,53 @@ public class WidgetManager {
 	}
     }
 
+    /*
+     * Widgets are regenerated on every refresh, mostly with the same
+     * contents. Only a widget that actually looks different gets a new
+     * version, so the idle screen can leave the others alone.
+     */
+    private void updateVersion(WidgetData previous, WidgetData current) {
+	if (previous == current)
+	    return;
+
+	if (previous != null && previous.width == current.width && previous.height == current.height && previous.priority == current.priority && samePixels(previous.bitmap, current.bitmap)) {
+	    current.version = previous.version;
+	    // Keep drawing from the bitmap we already had, the new copy goes
+	    // back to the pool for the next refresh
+	    if (current.bitmap != previous.bitmap) {
+		WidgetBitmapPool.release(current.bitmap);
+		current.bitmap = previous.bitmap;
+	    }
+	} else
+	    current.version = ++lastVersion;
+    }
+
+    boolean samePixels(Bitmap a, Bitmap b) {
+	if (a == b)
+	    return true;
+	if (a == null || b == null)
+	    return false;
+
+	final int width = a.getWidth();
+	final int height = a.getHeight();
+	if (b.getWidth() != width || b.getHeight() != height)
+	    return false;
+
+	synchronized (lock) {
+	    if (rowA.length != width) {
+		rowA = new int[width];
+		rowB = new int[width];
+	    }
+	    for (int y = 0; y < height; y++) {
+		a.getPixels(rowA, 0, width, 0, y, width, 1);
+		b.getPixels(rowB, 0, width, 0, y, width, 1);
+		if (!Arrays.equals(rowA, rowB))
+		    return false;
+	    }
+	}
+	return true;
+    }
+
     public Map<String, WidgetData> getCachedWidgets(Context context, ArrayList<CharSequence> widgetsDesired) {
 	if (dataCache == null)
 	    return refreshWidgets(context, widgetsDesired);
@@ -158,12 +218,13 @@ public class WidgetManager {
 
 	    int[] buffer = b.getIntArray("array");
 
-	    widget.bitmap = Bitmap.createBitmap(widget.width, widget.height, Bitmap.Config.RGB_565);
+	    widget.bitmap = WidgetBitmapPool.obtain(widget.width, widget.height);
 	    widget.bitmap.setPixels(buffer, 0, widget.width, 0, 0, widget.width, widget.height);
 
 	    if (dataCache == null)
 		dataCache = new HashMap<String, WidgetData>();
 
+	    updateVersion(dataCache.get(widget.id), widget);
 	    dataCache.put(widget.id, widget);
 	    if (Preferences.logging)
 		Log.d(MetaWatchStatus.TAG, "Received widget " + widget.id + " successfully");
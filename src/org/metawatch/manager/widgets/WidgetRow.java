@@ -1,16 +1,43 @@
 package org.metawatch.manager.widgets;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
+import org.metawatch.manager.IdleCompositor.Placement;
 import org.metawatch.manager.MetaWatchService;
 import org.metawatch.manager.MetaWatchService.Preferences;
 import org.metawatch.manager.widgets.InternalWidget.WidgetData;
 
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Color;
 
 public class WidgetRow {
 
+    private static final int MAX_STRIPS = 8;
+
+    /*
+     * A row drawn on its own, on a transparent background so it can go
+     * straight over whatever is under it.
+     */
+    private static class Strip {
+	Bitmap bitmap;
+	String contents;
+    }
+
+    // Rows are rebuilt on every refresh, so strips are kept by the widgets
+    // in the row
+    private static final Map<String, Strip> sStrips = new LinkedHashMap<String, Strip>(MAX_STRIPS, 0.75f, true) {
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	protected boolean removeEldestEntry(Map.Entry<String, Strip> eldest) {
+	    return size() > MAX_STRIPS;
+	}
+    };
+
     ArrayList<CharSequence> widgetIDs = new ArrayList<CharSequence>();
 
     ArrayList<WidgetData> widgets = null;
@@ -87,7 +114,60 @@ public class WidgetRow {
 	return totalHeight;
     }
 
+    /*
+     * Draws the row at y. The composed row is kept and only redrawn once one
+     * of its widgets has a new version.
+     */
     public void draw(Map<String, WidgetData> widgetData, Canvas canvas, int y) {
+	if (widgets == null || totalHeight == 0)
+	    return;
+
+	List<Placement> placements = new ArrayList<Placement>(widgets.size());
+	place(0, placements);
+
+	final int width = screenWidth();
+	StringBuilder contents = new StringBuilder();
+	for (Placement placement : placements) {
+	    contents.append(placement.id).append(':').append(placement.version).append(':').append(placement.x).append(':').append(placement.y).append(':').append(placement.visible).append(';');
+	}
+
+	synchronized (sStrips) {
+	    final String key = width + "/" + widgetIDs.toString();
+	    Strip strip = sStrips.get(key);
+	    if (strip == null) {
+		strip = new Strip();
+		sStrips.put(key, strip);
+	    }
+	    if (strip.bitmap == null || strip.bitmap.getWidth() != width || strip.bitmap.getHeight() != totalHeight) {
+		strip.bitmap = Bitmap.createBitmap(width, totalHeight, Bitmap.Config.ARGB_8888);
+		strip.contents = null;
+	    }
+
+	    final String drawn = contents.toString();
+	    if (!drawn.equals(strip.contents)) {
+		strip.bitmap.eraseColor(Color.TRANSPARENT);
+		Canvas stripCanvas = new Canvas(strip.bitmap);
+		for (Placement placement : placements) {
+		    if (placement.visible)
+			stripCanvas.drawBitmap(placement.bitmap, placement.x, placement.y, null);
+		}
+		strip.contents = drawn;
+	    }
+
+	    canvas.drawBitmap(strip.bitmap, 0, y, null);
+	}
+    }
+
+    public static void clearStrips() {
+	synchronized (sStrips) {
+	    sStrips.clear();
+	}
+    }
+
+    /*
+     * Adds where each widget in the row lands when the row is drawn at y.
+     */
+    public void place(int y, List<Placement> out) {
 	if (widgets == null)
 	    return;
 
@@ -98,8 +178,8 @@ public class WidgetRow {
 	    if (widget.height < totalHeight)
 		yAdd = (totalHeight / 2) - (widget.height / 2);
 
-	    if (!(Preferences.hideEmptyWidgets && Preferences.hiddenWidgetsReserveSpace && (widget.priority < 1)))
-		canvas.drawBitmap(widget.bitmap, (int) x, y + yAdd, null);
+	    boolean visible = !(Preferences.hideEmptyWidgets && Preferences.hiddenWidgetsReserveSpace && (widget.priority < 1));
+	    out.add(new Placement(widget, (int) x, y + yAdd, visible));
 
 	    x += ((space * 2) + widget.width);
 	}